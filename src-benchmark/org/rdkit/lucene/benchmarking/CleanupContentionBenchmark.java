@@ -0,0 +1,226 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene.benchmarking;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.rdkit.lucene.bin.RDKit;
+import org.rdkit.lucene.bin.RDKitCleanupScope;
+
+/**
+ * A micro benchmark that compares the throughput of the global wave based
+ * cleanup of {@link RDKit} with thread confined cleanup scopes
+ * (see {@link RDKit#openCleanupScope()}) for 1 up to N concurrent threads.
+ * Every operation registers a few objects and cleans them up again, like
+ * a fingerprint calculation or a substructure verification does. The objects
+ * are plain Java objects with a delete() method, so that only the bookkeeping
+ * is measured and no native library is required. Output is given per number
+ * of threads on the console.
+ * 
+ * @author Manuel Schwarze
+ */
+public class CleanupContentionBenchmark {
+
+	//
+	// Constants
+	//
+
+	/** The default number of cleanup operations per thread. */
+	public static final int DEFAULT_OPERATIONS = 200000;
+
+	/** The default number of objects registered per cleanup operation. */
+	public static final int DEFAULT_OBJECTS = 3;
+
+	//
+	// Inner Classes
+	//
+
+	/**
+	 * Stand-in for an RDKit wrapper object.
+	 */
+	public static class DeletableObject {
+
+		/** Counts all delete() calls to ensure that they really happen. */
+		private static final AtomicLong g_lDeleted = new AtomicLong();
+
+		public void delete() {
+			g_lDeleted.incrementAndGet();
+		}
+	}
+
+	/**
+	 * A way of cleaning up objects to be measured.
+	 */
+	private enum Mode {
+
+		/** The global synchronized wave tracker. */
+		TRACKER {
+			@Override
+			void run(final int iOperations, final int iObjects) {
+				for (int iOp = 0; iOp < iOperations; iOp++) {
+					final int iWaveId = RDKit.createUniqueCleanupWaveId();
+					try {
+						for (int i = 0; i < iObjects; i++) {
+							RDKit.markForCleanup(new DeletableObject(), iWaveId);
+						}
+					}
+					finally {
+						RDKit.cleanupMarkedObjects(iWaveId);
+					}
+				}
+			}
+		},
+
+		/** Thread confined cleanup scopes. */
+		SCOPE {
+			@Override
+			void run(final int iOperations, final int iObjects) {
+				for (int iOp = 0; iOp < iOperations; iOp++) {
+					final RDKitCleanupScope scope = RDKit.openCleanupScope();
+					try {
+						for (int i = 0; i < iObjects; i++) {
+							scope.markForCleanup(new DeletableObject());
+						}
+					}
+					finally {
+						scope.close();
+					}
+				}
+			}
+		};
+
+		abstract void run(int iOperations, int iObjects);
+	}
+
+	//
+	// Static Methods
+	//
+
+	public static void benchmark(final int iMaxThreads, final int iOperations, final int iObjects)
+			throws InterruptedException {
+		System.out.println("CleanupContentionBenchmark - 1 to " + iMaxThreads + " threads, " +
+				iOperations + " operations per thread, " + iObjects + " objects per operation, " +
+				Runtime.getRuntime().availableProcessors() + " processors");
+		System.out.println("Threads;Tracker (ops/s);Scope (ops/s);Speedup");
+
+		// Warm up both modes
+		long lRegistered = 2L * iOperations * iObjects;
+		measure(Mode.TRACKER, 1, iOperations, iObjects);
+		measure(Mode.SCOPE, 1, iOperations, iObjects);
+
+		// Double the threads up to the maximum
+		for (int iThreads = 1; iThreads > 0; iThreads = (iThreads == iMaxThreads ? 0 : Math.min(iThreads << 1, iMaxThreads))) {
+			final double dTrackerPerSec = measure(Mode.TRACKER, iThreads, iOperations, iObjects);
+			final double dScopePerSec = measure(Mode.SCOPE, iThreads, iOperations, iObjects);
+			lRegistered += 2L * iThreads * iOperations * iObjects;
+			System.out.println(iThreads + ";" +
+					String.format("%.0f;%.0f;%.1f", dTrackerPerSec, dScopePerSec, dScopePerSec / Math.max(1, dTrackerPerSec)));
+		}
+
+		if (DeletableObject.g_lDeleted.get() != lRegistered) {
+			throw new IllegalStateException("Not all registered objects have been deleted: " +
+					DeletableObject.g_lDeleted.get() + " of " + lRegistered);
+		}
+	}
+
+	public static void printInfoAndExit() {
+		System.out.println("CleanupContentionBenchmark usage:\n" +
+				"    CleanupContentionBenchmark [<maxThreads> [<operationsPerThread> [<objectsPerOperation>]]]\n" +
+				"\n" +
+				"Threads are doubled from 1 up to the maximum, which defaults to twice the\n" +
+				"number of processors. Default are " + DEFAULT_OPERATIONS + " operations per thread\n" +
+				"with " + DEFAULT_OBJECTS + " objects each.");
+		System.exit(1);
+	}
+
+	public static void main(final String[] argv) throws InterruptedException {
+		try {
+			benchmark(argv.length > 0 ? Integer.parseInt(argv[0]) : 2 * Runtime.getRuntime().availableProcessors(),
+					argv.length > 1 ? Integer.parseInt(argv[1]) : DEFAULT_OPERATIONS,
+							argv.length > 2 ? Integer.parseInt(argv[2]) : DEFAULT_OBJECTS);
+		}
+		catch (final NumberFormatException exc) {
+			printInfoAndExit();
+		}
+	}
+
+	//
+	// Private Methods
+	//
+
+	/**
+	 * Runs the specified mode concurrently and measures the overall throughput.
+	 * 
+	 * @return Cleanup operations per second over all threads.
+	 */
+	private static double measure(final Mode mode, final int iThreads, final int iOperations,
+			final int iObjects) throws InterruptedException {
+		final CountDownLatch latchStart = new CountDownLatch(1);
+		final CountDownLatch latchDone = new CountDownLatch(iThreads);
+		final List<Thread> listThreads = new ArrayList<Thread>(iThreads);
+
+		for (int i = 0; i < iThreads; i++) {
+			final Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						latchStart.await();
+						mode.run(iOperations, iObjects);
+					}
+					catch (final InterruptedException exc) {
+						Thread.currentThread().interrupt();
+					}
+					finally {
+						latchDone.countDown();
+					}
+				}
+			}, "CleanupContentionBenchmark-" + i);
+			thread.start();
+			listThreads.add(thread);
+		}
+
+		final long lStart = System.nanoTime();
+		latchStart.countDown();
+		latchDone.await();
+		final long lNs = System.nanoTime() - lStart;
+
+		for (final Thread thread : listThreads) {
+			thread.join();
+		}
+
+		return (double)iThreads * iOperations * 1000000000d / Math.max(1, lNs);
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene.benchmarking;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.LineNumberReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.RDKit.RDKFuncs;
+import org.rdkit.lucene.bin.RDKit;
+import org.rdkit.lucene.fingerprint.DefaultFingerprintFactory;
+import org.rdkit.lucene.fingerprint.DefaultFingerprintSettings;
+import org.rdkit.lucene.fingerprint.FingerprintType;
+
+/**
+ * A micro benchmark that compares the fingerprint throughput of 1 up to N
+ * concurrent threads for fingerprint types, which are calculated under a
+ * JVM-wide lock by default (Avalon and Pattern), with the throughput after
+ * validated concurrent calculation was enabled (see
+ * {@link DefaultFingerprintFactory#setConcurrentCalculation(boolean)}).
+ * Fingerprints are calculated for the canonical SMILES of the passed in
+ * file, like it happens during indexing. Output is given per fingerprint
+ * type and number of threads on the console.
+ * 
+ * @author Manuel Schwarze
+ */
+public class FingerprintConcurrencyBenchmark {
+
+	//
+	// Constants
+	//
+
+	/** The default number of bits of the fingerprints. */
+	public static final int DEFAULT_NUM_BITS = 1024;
+
+	/** The default number of times each thread calculates all fingerprints. */
+	public static final int DEFAULT_REPETITIONS = 2;
+
+	//
+	// Static Methods
+	//
+
+	public static void benchmark(final String strInputFileWithSmiles, final int iMaxThreads,
+			final int iRepetitions) throws IOException, InterruptedException {
+		final List<String> listCanonSmiles = readCanonSmiles(strInputFileWithSmiles);
+		System.out.println("FingerprintConcurrencyBenchmark - " + listCanonSmiles.size() + " molecules, 1 to " +
+				iMaxThreads + " threads, " + iRepetitions + " repetitions, " +
+				Runtime.getRuntime().availableProcessors() + " processors");
+		System.out.println("Type;Threads;Locked (fp/s);Concurrent (fp/s);Speedup");
+
+		for (final FingerprintType fpType : FingerprintType.values()) {
+			if (fpType.isLockRequired()) {
+				final DefaultFingerprintSettings settings = new DefaultFingerprintSettings(fpType);
+				settings.setNumBits(DEFAULT_NUM_BITS);
+				final DefaultFingerprintFactory factoryLocked = new DefaultFingerprintFactory(settings);
+				final DefaultFingerprintFactory factoryConcurrent = new DefaultFingerprintFactory(settings);
+
+				if (!factoryConcurrent.setConcurrentCalculation(true)) {
+					System.out.println(fpType + ";Concurrent calculation failed the validation");
+					continue;
+				}
+
+				// Warm up both factories
+				measure(factoryLocked, listCanonSmiles, 1, 1);
+				measure(factoryConcurrent, listCanonSmiles, 1, 1);
+
+				// Double the threads up to the maximum
+				for (int iThreads = 1; iThreads > 0; iThreads = (iThreads == iMaxThreads ? 0 : Math.min(iThreads << 1, iMaxThreads))) {
+					final double dLockedPerSec = measure(factoryLocked, listCanonSmiles, iThreads, iRepetitions);
+					final double dConcurrentPerSec = measure(factoryConcurrent, listCanonSmiles, iThreads, iRepetitions);
+					System.out.println(fpType + ";" + iThreads + ";" +
+							String.format("%.0f;%.0f;%.1f", dLockedPerSec, dConcurrentPerSec,
+									dConcurrentPerSec / Math.max(1, dLockedPerSec)));
+				}
+			}
+		}
+	}
+
+	public static void printInfoAndExit() {
+		System.out.println("FingerprintConcurrencyBenchmark usage:\n" +
+				"    FingerprintConcurrencyBenchmark <smilesFile> [<maxThreads> [<repetitions>]]\n" +
+				"\n" +
+				"The SMILES file contains one SMILES per line. Everything after the first\n" +
+				"whitespace of a line is ignored. Threads are doubled from 1 up to the maximum,\n" +
+				"which defaults to the number of processors. Default are " + DEFAULT_REPETITIONS + " repetitions.");
+		System.exit(1);
+	}
+
+	public static void main(final String[] argv) throws IOException, InterruptedException {
+		// Check arguments
+		if (argv.length == 0 || argv.length > 3) {
+			printInfoAndExit();
+		}
+		else {
+			RDKit.activate();
+			benchmark(argv[0],
+					argv.length > 1 ? Integer.parseInt(argv[1]) : Runtime.getRuntime().availableProcessors(),
+							argv.length > 2 ? Integer.parseInt(argv[2]) : DEFAULT_REPETITIONS);
+		}
+	}
+
+	//
+	// Private Methods
+	//
+
+	/**
+	 * Calculates all fingerprints concurrently and measures the overall throughput.
+	 * 
+	 * @return Fingerprints per second over all threads.
+	 */
+	private static double measure(final DefaultFingerprintFactory factory, final List<String> listCanonSmiles,
+			final int iThreads, final int iRepetitions) throws InterruptedException {
+		final CountDownLatch latchStart = new CountDownLatch(1);
+		final List<Thread> listThreads = new ArrayList<Thread>(iThreads);
+
+		for (int i = 0; i < iThreads; i++) {
+			final Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						latchStart.await();
+						for (int iRun = 0; iRun < iRepetitions; iRun++) {
+							for (final String strCanonSmiles : listCanonSmiles) {
+								factory.createStructureFingerprint(strCanonSmiles, true);
+							}
+						}
+					}
+					catch (final InterruptedException exc) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}, "FingerprintConcurrencyBenchmark-" + i);
+			thread.start();
+			listThreads.add(thread);
+		}
+
+		final long lStart = System.nanoTime();
+		latchStart.countDown();
+		for (final Thread thread : listThreads) {
+			thread.join();
+		}
+		final long lNs = System.nanoTime() - lStart;
+
+		return (double)iThreads * iRepetitions * listCanonSmiles.size() * 1000000000d / Math.max(1, lNs);
+	}
+
+	private static List<String> readCanonSmiles(final String strInputFileWithSmiles) throws IOException {
+		final List<String> listCanonSmiles = new ArrayList<String>();
+		final LineNumberReader lineReader = new LineNumberReader(new FileReader(strInputFileWithSmiles));
+
+		try {
+			String strLine;
+			while ((strLine = lineReader.readLine()) != null) {
+				strLine = strLine.trim().replaceAll("\t", " ");
+				final int indexSmilesEnd = strLine.indexOf(" ");
+				if (indexSmilesEnd > -1) {
+					strLine = strLine.substring(0, indexSmilesEnd);
+				}
+				if (!strLine.isEmpty()) {
+					try {
+						final String strCanonSmiles = RDKFuncs.getCanonSmiles(strLine, true);
+						if (strCanonSmiles != null && !strCanonSmiles.isEmpty()) {
+							listCanonSmiles.add(strCanonSmiles);
+						}
+					}
+					catch (final Exception exc) {
+						System.out.println("Skipping invalid SMILES in line " +
+								lineReader.getLineNumber() + ": " + strLine);
+					}
+				}
+			}
+		}
+		finally {
+			lineReader.close();
+		}
+
+		return listCanonSmiles;
+	}
+}
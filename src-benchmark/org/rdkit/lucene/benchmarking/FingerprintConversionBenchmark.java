@@ -0,0 +1,214 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene.benchmarking;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.LineNumberReader;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.RDKit.ExplicitBitVect;
+import org.RDKit.ROMol;
+import org.RDKit.RWMol;
+import org.rdkit.lucene.bin.RDKit;
+import org.rdkit.lucene.fingerprint.DefaultFingerprintSettings;
+import org.rdkit.lucene.fingerprint.FingerprintSettings;
+import org.rdkit.lucene.fingerprint.FingerprintType;
+import org.rdkit.lucene.util.ChemUtils;
+
+/**
+ * A micro benchmark that compares the conversion of RDKit fingerprints into
+ * Java BitSets bit by bit (one JNI call per bit position) with the bulk
+ * conversion based on the list of set bits (see {@link ChemUtils#toBitSet(ExplicitBitVect)}).
+ * Fingerprints of all types are calculated up front for the SMILES of the
+ * passed in file, only the conversion is measured. Output is given per
+ * fingerprint type on the console.
+ * 
+ * @author Manuel Schwarze
+ */
+public class FingerprintConversionBenchmark {
+
+	//
+	// Constants
+	//
+
+	/** The default number of bits of the fingerprints. */
+	public static final int DEFAULT_NUM_BITS = 2048;
+
+	/** The default number of times all fingerprints get converted. */
+	public static final int DEFAULT_REPETITIONS = 5;
+
+	//
+	// Static Methods
+	//
+
+	/**
+	 * Converts an RDKit bit vector into a Java BitSet by querying every single bit.
+	 * This was the original conversion and is used as reference.
+	 * 
+	 * @param rdkitBitVector RDKit (C++ based) bit vector. Must not be null.
+	 * 
+	 * @return BitSet. Never null.
+	 */
+	public static BitSet toBitSetPerBit(final ExplicitBitVect rdkitBitVector) {
+		final int iLength = (int)rdkitBitVector.getNumBits();
+		final BitSet fingerprint = new BitSet(iLength);
+		for (int i = 0; i < iLength; i++) {
+			if (rdkitBitVector.getBit(i)) {
+				fingerprint.set(i);
+			}
+		}
+
+		return fingerprint;
+	}
+
+	public static void benchmark(final String strInputFileWithSmiles, final int iNumBits,
+			final int iRepetitions) throws IOException {
+		final List<ROMol> listMols = readMolecules(strInputFileWithSmiles);
+		System.out.println("FingerprintConversionBenchmark - " + listMols.size() + " molecules, " +
+				iNumBits + " bits, " + iRepetitions + " repetitions");
+		System.out.println("Type;Avg On Bits;Per Bit (in ms);Bulk (in ms);Speedup");
+
+		for (final FingerprintType fpType : FingerprintType.values()) {
+			final FingerprintSettings settings = new DefaultFingerprintSettings(fpType).setNumBits(iNumBits);
+			final int iWaveId = RDKit.createUniqueCleanupWaveId();
+
+			try {
+				final List<ExplicitBitVect> listFps = new ArrayList<ExplicitBitVect>(listMols.size());
+				for (final ROMol mol : listMols) {
+					listFps.add(RDKit.markForCleanup(fpType.calculate(mol, settings), iWaveId));
+				}
+
+				// Warm up both conversions and check that they deliver the same results
+				long lOnBits = 0;
+				for (final ExplicitBitVect rdkitBitVector : listFps) {
+					final BitSet fpReference = toBitSetPerBit(rdkitBitVector);
+					if (!fpReference.equals(ChemUtils.toBitSet(rdkitBitVector))) {
+						throw new IllegalStateException("Bulk conversion delivers a different result for " + fpType);
+					}
+					lOnBits += fpReference.cardinality();
+				}
+
+				long lPerBitNs = 0;
+				long lBulkNs = 0;
+				for (int iRun = 0; iRun < iRepetitions; iRun++) {
+					long lStart = System.nanoTime();
+					for (final ExplicitBitVect rdkitBitVector : listFps) {
+						toBitSetPerBit(rdkitBitVector);
+					}
+					lPerBitNs += System.nanoTime() - lStart;
+
+					lStart = System.nanoTime();
+					for (final ExplicitBitVect rdkitBitVector : listFps) {
+						ChemUtils.toBitSet(rdkitBitVector);
+					}
+					lBulkNs += System.nanoTime() - lStart;
+				}
+
+				System.out.println(fpType.toString() + ";" +
+						(listFps.isEmpty() ? 0 : lOnBits / listFps.size()) + ";" +
+						(lPerBitNs / 1000000) + ";" + (lBulkNs / 1000000) + ";" +
+						String.format("%.1f", (double)lPerBitNs / Math.max(1, lBulkNs)));
+			}
+			finally {
+				RDKit.cleanupMarkedObjects(iWaveId);
+			}
+		}
+
+		for (final ROMol mol : listMols) {
+			mol.delete();
+		}
+	}
+
+	public static void printInfoAndExit() {
+		System.out.println("FingerprintConversionBenchmark usage:\n" +
+				"    FingerprintConversionBenchmark <smilesFile> [<numBits> [<repetitions>]]\n" +
+				"\n" +
+				"The SMILES file contains one SMILES per line. Everything after the first\n" +
+				"whitespace of a line is ignored. Defaults are " + DEFAULT_NUM_BITS + " bits and " +
+				DEFAULT_REPETITIONS + " repetitions.");
+		System.exit(1);
+	}
+
+	public static void main(final String[] argv) throws IOException {
+		// Check arguments
+		if (argv.length == 0 || argv.length > 3) {
+			printInfoAndExit();
+		}
+		else {
+			RDKit.activate();
+			benchmark(argv[0],
+					argv.length > 1 ? Integer.parseInt(argv[1]) : DEFAULT_NUM_BITS,
+							argv.length > 2 ? Integer.parseInt(argv[2]) : DEFAULT_REPETITIONS);
+		}
+	}
+
+	//
+	// Private Methods
+	//
+
+	private static List<ROMol> readMolecules(final String strInputFileWithSmiles) throws IOException {
+		final List<ROMol> listMols = new ArrayList<ROMol>();
+		final LineNumberReader lineReader = new LineNumberReader(new FileReader(strInputFileWithSmiles));
+
+		try {
+			String strLine;
+			while ((strLine = lineReader.readLine()) != null) {
+				strLine = strLine.trim().replaceAll("\t", " ");
+				final int indexSmilesEnd = strLine.indexOf(" ");
+				if (indexSmilesEnd > -1) {
+					strLine = strLine.substring(0, indexSmilesEnd);
+				}
+				if (!strLine.isEmpty()) {
+					try {
+						final ROMol mol = RWMol.MolFromSmiles(strLine);
+						if (mol != null) {
+							listMols.add(mol);
+						}
+					}
+					catch (final Exception exc) {
+						System.out.println("Skipping invalid SMILES in line " +
+								lineReader.getLineNumber() + ": " + strLine);
+					}
+				}
+			}
+		}
+		finally {
+			lineReader.close();
+		}
+
+		return listMols;
+	}
+}
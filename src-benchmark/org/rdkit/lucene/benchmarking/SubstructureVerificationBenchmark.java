@@ -0,0 +1,242 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene.benchmarking;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.LineNumberReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.RDKit.RDKFuncs;
+import org.RDKit.ROMol;
+import org.RDKit.RWMol;
+import org.rdkit.lucene.ChemicalIndex;
+import org.rdkit.lucene.bin.RDKit;
+
+/**
+ * A micro benchmark that compares the throughput of the substructure verification
+ * step for the two ways a molecule can be stored in a {@link ChemicalIndex}:
+ * As canonical SMILES, which needs to be parsed again for every candidate, or
+ * as binary RDKit molecule (see {@link ChemicalIndex#setStoreMoleculePickles(boolean)}).
+ * The index itself is not involved, the stored values are prepared in memory
+ * the same way the index does it. Output is given per query on the console.
+ * 
+ * @author Manuel Schwarze
+ */
+public class SubstructureVerificationBenchmark {
+
+	//
+	// Constants
+	//
+
+	/** The default number of times all molecules get verified per query. */
+	public static final int DEFAULT_REPETITIONS = 3;
+
+	/** The default queries, if none are specified. */
+	public static final String[] DEFAULT_QUERIES = new String[] {
+		"c1ccccc1", "C(=O)O", "c1ccncc1", "C1CCCCC1", "CS(=O)C"
+	};
+
+	//
+	// Static Methods
+	//
+
+	public static void benchmark(final String strInputFileWithSmiles, final int iRepetitions,
+			final String... arrQuerySmiles) throws IOException {
+		final List<String> listCanonSmiles = new ArrayList<String>();
+		final List<byte[]> listPickles = new ArrayList<byte[]>();
+		long lPickleBytes = 0;
+		long lSmilesChars = 0;
+
+		// Prepare stored values like the index does it
+		for (final String strSmiles : readSmiles(strInputFileWithSmiles)) {
+			final int iWaveId = RDKit.createUniqueCleanupWaveId();
+			try {
+				final String strCanonSmiles = RDKFuncs.getCanonSmiles(strSmiles, true);
+				if (strCanonSmiles != null && !strCanonSmiles.isEmpty()) {
+					final ROMol mol = RDKit.markForCleanup(
+							RWMol.MolFromSmiles(strCanonSmiles, 0, false), iWaveId);
+					mol.updatePropertyCache();
+					RDKFuncs.fastFindRings(mol);
+					final byte[] arrPickle = RDKit.toByteArray(mol);
+					listCanonSmiles.add(strCanonSmiles);
+					listPickles.add(arrPickle);
+					lSmilesChars += strCanonSmiles.length();
+					lPickleBytes += arrPickle.length;
+				}
+			}
+			catch (final Exception exc) {
+				System.out.println("Skipping invalid SMILES: " + strSmiles);
+			}
+			finally {
+				RDKit.cleanupMarkedObjects(iWaveId);
+			}
+		}
+
+		final int iCount = listCanonSmiles.size();
+		System.out.println("SubstructureVerificationBenchmark - " + iCount + " molecules, " +
+				iRepetitions + " repetitions, avg. SMILES length " + (iCount == 0 ? 0 : lSmilesChars / iCount) +
+				", avg. pickle size " + (iCount == 0 ? 0 : lPickleBytes / iCount) + " bytes");
+		System.out.println("Query;Hits;SMILES (mol/s);Pickle (mol/s);Speedup");
+
+		for (final String strQuerySmiles : arrQuerySmiles) {
+			final int iWaveId = RDKit.createUniqueCleanupWaveId();
+			try {
+				final ROMol molQuery = RDKit.markForCleanup(RWMol.MolFromSmiles(strQuerySmiles, 0, false), iWaveId);
+
+				// Warm up both paths and check that they deliver the same results
+				final int iHits = verifySmiles(listCanonSmiles, molQuery);
+				if (iHits != verifyPickles(listPickles, molQuery)) {
+					throw new IllegalStateException("Pickle verification delivers different hits for " + strQuerySmiles);
+				}
+
+				long lSmilesNs = 0;
+				long lPickleNs = 0;
+				for (int iRun = 0; iRun < iRepetitions; iRun++) {
+					long lStart = System.nanoTime();
+					verifySmiles(listCanonSmiles, molQuery);
+					lSmilesNs += System.nanoTime() - lStart;
+
+					lStart = System.nanoTime();
+					verifyPickles(listPickles, molQuery);
+					lPickleNs += System.nanoTime() - lStart;
+				}
+
+				final double dSmilesPerSec = (double)iCount * iRepetitions * 1000000000d / Math.max(1, lSmilesNs);
+				final double dPicklePerSec = (double)iCount * iRepetitions * 1000000000d / Math.max(1, lPickleNs);
+				System.out.println(strQuerySmiles + ";" + iHits + ";" +
+						String.format("%.0f;%.0f;%.1f", dSmilesPerSec, dPicklePerSec, dPicklePerSec / Math.max(1, dSmilesPerSec)));
+			}
+			catch (final Exception exc) {
+				System.out.println("Skipping invalid query SMILES: " + strQuerySmiles);
+			}
+			finally {
+				RDKit.cleanupMarkedObjects(iWaveId);
+			}
+		}
+	}
+
+	public static void printInfoAndExit() {
+		System.out.println("SubstructureVerificationBenchmark usage:\n" +
+				"    SubstructureVerificationBenchmark <smilesFile> [<repetitions> [<querySmiles>...]]\n" +
+				"\n" +
+				"The SMILES file contains one SMILES per line. Everything after the first\n" +
+				"whitespace of a line is ignored. Default are " + DEFAULT_REPETITIONS + " repetitions\n" +
+				"with a few common substructure queries.");
+		System.exit(1);
+	}
+
+	public static void main(final String[] argv) throws IOException {
+		// Check arguments
+		if (argv.length == 0) {
+			printInfoAndExit();
+		}
+		else {
+			RDKit.activate();
+			String[] arrQuerySmiles = DEFAULT_QUERIES;
+			if (argv.length > 2) {
+				arrQuerySmiles = new String[argv.length - 2];
+				System.arraycopy(argv, 2, arrQuerySmiles, 0, arrQuerySmiles.length);
+			}
+			benchmark(argv[0], argv.length > 1 ? Integer.parseInt(argv[1]) : DEFAULT_REPETITIONS,
+					arrQuerySmiles);
+		}
+	}
+
+	//
+	// Private Methods
+	//
+
+	private static int verifySmiles(final List<String> listCanonSmiles, final ROMol molQuery) {
+		int iHits = 0;
+
+		for (final String strCanonSmiles : listCanonSmiles) {
+			final ROMol mol = RWMol.MolFromSmiles(strCanonSmiles, 0, false);
+			try {
+				mol.updatePropertyCache(false);
+				if (mol.hasSubstructMatch(molQuery)) {
+					iHits++;
+				}
+			}
+			finally {
+				mol.delete();
+			}
+		}
+
+		return iHits;
+	}
+
+	private static int verifyPickles(final List<byte[]> listPickles, final ROMol molQuery) {
+		int iHits = 0;
+
+		for (final byte[] arrPickle : listPickles) {
+			final ROMol mol = RDKit.toROMol(arrPickle);
+			try {
+				mol.updatePropertyCache(false);
+				if (mol.hasSubstructMatch(molQuery)) {
+					iHits++;
+				}
+			}
+			finally {
+				mol.delete();
+			}
+		}
+
+		return iHits;
+	}
+
+	private static List<String> readSmiles(final String strInputFileWithSmiles) throws IOException {
+		final List<String> listSmiles = new ArrayList<String>();
+		final LineNumberReader lineReader = new LineNumberReader(new FileReader(strInputFileWithSmiles));
+
+		try {
+			String strLine;
+			while ((strLine = lineReader.readLine()) != null) {
+				strLine = strLine.trim().replaceAll("\t", " ");
+				final int indexSmilesEnd = strLine.indexOf(" ");
+				if (indexSmilesEnd > -1) {
+					strLine = strLine.substring(0, indexSmilesEnd);
+				}
+				if (!strLine.isEmpty()) {
+					listSmiles.add(strLine);
+				}
+			}
+		}
+		finally {
+			lineReader.close();
+		}
+
+		return listSmiles;
+	}
+}
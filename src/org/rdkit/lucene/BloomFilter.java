@@ -0,0 +1,138 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene;
+
+/**
+ * A Bloom filter over strings, which uses double hashing to derive its hash
+ * functions from a single 64 bit hash. It never misses a string that has been
+ * added, but reports strings that have not been added with a certain false
+ * positive rate, as long as not more strings than expected have been added.
+ * This class is not thread-safe. Filters that are not changed anymore can be
+ * read concurrently.
+ * 
+ * @author Manuel Schwarze
+ */
+final class BloomFilter {
+
+	//
+	// Members
+	//
+
+	private final long[] m_arrWords;
+	private final long m_lBits;
+	private final int m_iHashes;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new empty Bloom filter.
+	 * 
+	 * @param lExpectedCount Expected number of strings to be added.
+	 * @param dFalsePositiveRate False positive rate at the expected number of strings.
+	 * 		Must be > 0 and < 1.
+	 */
+	BloomFilter(final long lExpectedCount, final double dFalsePositiveRate) {
+		final long lExpected = Math.max(1, lExpectedCount);
+		final double dBits = Math.ceil(-lExpected * Math.log(dFalsePositiveRate) / (Math.log(2) * Math.log(2)));
+		final int iWords = (int)Math.max(1, Math.min(Integer.MAX_VALUE, ((long)dBits + 63) / 64));
+		m_arrWords = new long[iWords];
+		m_lBits = iWords * 64L;
+		m_iHashes = (int)Math.max(1, Math.round((double)m_lBits / lExpected * Math.log(2)));
+	}
+
+	//
+	// Package Methods
+	//
+
+	/**
+	 * Adds a string to the filter.
+	 * 
+	 * @param str String. Must not be null.
+	 */
+	void add(final String str) {
+		final long lHash = hash(str);
+		final long lHash1 = (int)lHash;
+		final long lHash2 = (int)(lHash >>> 32);
+		for (int i = 0; i < m_iHashes; i++) {
+			final long lBit = ((lHash1 + i * lHash2) & Long.MAX_VALUE) % m_lBits;
+			m_arrWords[(int)(lBit >>> 6)] |= (1L << lBit);
+		}
+	}
+
+	/**
+	 * Determines, if a string may have been added.
+	 * 
+	 * @param str String. Must not be null.
+	 * 
+	 * @return False, if the string has definitely not been added. True otherwise.
+	 */
+	boolean mightContain(final String str) {
+		final long lHash = hash(str);
+		final long lHash1 = (int)lHash;
+		final long lHash2 = (int)(lHash >>> 32);
+		for (int i = 0; i < m_iHashes; i++) {
+			final long lBit = ((lHash1 + i * lHash2) & Long.MAX_VALUE) % m_lBits;
+			if ((m_arrWords[(int)(lBit >>> 6)] & (1L << lBit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of bytes the bits of this filter occupy.
+	 * 
+	 * @return Memory usage in bytes.
+	 */
+	long getMemoryUsage() {
+		return m_arrWords.length * 8L;
+	}
+
+	//
+	// Private Methods
+	//
+
+	private static long hash(final String str) {
+		long lHash = 0x9e3779b97f4a7c15L;
+		for (int i = 0; i < str.length(); i++) {
+			lHash = (lHash ^ str.charAt(i)) * 0xbf58476d1ce4e5b9L;
+			lHash ^= (lHash >>> 29);
+		}
+		lHash ^= (lHash >>> 32);
+		lHash *= 0x94d049bb133111ebL;
+		lHash ^= (lHash >>> 29);
+		return lHash;
+	}
+}
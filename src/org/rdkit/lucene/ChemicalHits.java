@@ -0,0 +1,306 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+
+/**
+ * A lightweight list of search hits. Only document ids and scores are kept
+ * when the hits get created. Primary keys and SMILES are read lazily from the
+ * index and only for the hits that are requested, e.g. the page that is
+ * currently displayed. Resolved values are cached. The hits pin the index
+ * reader that was searched, hence document ids stay valid while molecules
+ * are added concurrently. Hits must be closed when done. This class is
+ * thread-safe.
+ * 
+ * @author Manuel Schwarze
+ * 
+ * @see ChemicalIndex#getHits(org.apache.lucene.search.TopDocsCollector)
+ */
+public class ChemicalHits implements Closeable {
+
+	//
+	// Members
+	//
+
+	/** The index the hits belong to. */
+	private final ChemicalIndex m_index;
+
+	/** The acquired searcher the hits have been found with. */
+	private final IndexSearcher m_searcher;
+
+	/** The cache of primary key and SMILES columns. Can be null. */
+	private final MoleculeColumnCache m_molColumnCache;
+
+	/** Document ids of the hits. */
+	private final int[] m_arrDocs;
+
+	/** Scores of the hits. */
+	private final float[] m_arrScores;
+
+	/** Total number of hits, which may be more than the hits kept. */
+	private final int m_iTotalHits;
+
+	/** Lazily resolved primary keys. Entries are null, if not resolved yet. */
+	private final String[] m_arrPKs;
+
+	/** Lazily resolved SMILES. Entries are null, if not resolved yet. */
+	private final String[] m_arrSmiles;
+
+	/** Flags of hits that have been resolved already. */
+	private final boolean[] m_arrResolved;
+
+	/** Set when the hits were closed. */
+	private boolean m_bClosed;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates new hits.
+	 * 
+	 * @param index The index the hits belong to. Must not be null.
+	 * @param searcher The acquired searcher that was used to find the hits.
+	 * 		It gets released when the hits are closed. Must not be null.
+	 * @param topDocs The hits. Must not be null.
+	 * @param molColumnCache Cache of primary key and SMILES columns. Can be
+	 * 		null to read stored fields always.
+	 */
+	ChemicalHits(final ChemicalIndex index, final IndexSearcher searcher, final TopDocs topDocs,
+			final MoleculeColumnCache molColumnCache) {
+		final ScoreDoc[] arrScoreDocs = (topDocs.scoreDocs == null ? new ScoreDoc[0] : topDocs.scoreDocs);
+
+		m_index = index;
+		m_searcher = searcher;
+		m_molColumnCache = molColumnCache;
+		m_arrDocs = new int[arrScoreDocs.length];
+		m_arrScores = new float[arrScoreDocs.length];
+		for (int i = 0; i < arrScoreDocs.length; i++) {
+			m_arrDocs[i] = arrScoreDocs[i].doc;
+			m_arrScores[i] = arrScoreDocs[i].score;
+		}
+		m_iTotalHits = topDocs.totalHits;
+		m_arrPKs = new String[arrScoreDocs.length];
+		m_arrSmiles = new String[arrScoreDocs.length];
+		m_arrResolved = new boolean[arrScoreDocs.length];
+		m_bClosed = false;
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Returns the number of hits in this list.
+	 * 
+	 * @return Number of hits.
+	 */
+	public int size() {
+		return m_arrDocs.length;
+	}
+
+	/**
+	 * Returns the total number of hits the search found, which may be
+	 * more than the hits in this list, if the search was limited.
+	 * 
+	 * @return Total number of hits.
+	 */
+	public int getTotalHits() {
+		return m_iTotalHits;
+	}
+
+	/**
+	 * Returns the document id of a hit.
+	 * 
+	 * @param index Index of the hit.
+	 * 
+	 * @return Document id within the pinned index reader.
+	 */
+	public int getDocId(final int index) {
+		return m_arrDocs[index];
+	}
+
+	/**
+	 * Returns the score of a hit.
+	 * 
+	 * @param index Index of the hit.
+	 * 
+	 * @return Score.
+	 */
+	public float getScore(final int index) {
+		return m_arrScores[index];
+	}
+
+	/**
+	 * Returns the primary key of a hit. It is read from the index, if
+	 * not done before.
+	 * 
+	 * @param index Index of the hit.
+	 * 
+	 * @return Primary key or null, if the molecule does not have one.
+	 * 
+	 * @throws IOException Thrown, if the index could not be read.
+	 */
+	public String getPrimaryKey(final int index) throws IOException {
+		resolve(index, 1);
+		return m_arrPKs[index];
+	}
+
+	/**
+	 * Returns the SMILES of a hit. It is read from the index, if
+	 * not done before.
+	 * 
+	 * @param index Index of the hit.
+	 * 
+	 * @return SMILES or null, if the molecule does not have one.
+	 * 
+	 * @throws IOException Thrown, if the index could not be read.
+	 */
+	public String getSmiles(final int index) throws IOException {
+		resolve(index, 1);
+		return m_arrSmiles[index];
+	}
+
+	/**
+	 * Returns the primary keys of a page of hits. Only this page gets read
+	 * from the index, if not done before.
+	 * 
+	 * @param iStart Index of the first hit of the page.
+	 * @param iCount Maximum number of hits of the page. The page ends
+	 * 		with the last hit at the latest.
+	 * 
+	 * @return Array of primary keys in hit order. Elements are null for
+	 * 		molecules without primary key. Never null.
+	 * 
+	 * @throws IOException Thrown, if the index could not be read.
+	 */
+	public String[] getPrimaryKeys(final int iStart, final int iCount) throws IOException {
+		final int iEnd = getPageEnd(iStart, iCount);
+		resolve(iStart, iEnd - iStart);
+		return Arrays.copyOfRange(m_arrPKs, iStart, iEnd);
+	}
+
+	/**
+	 * Returns the SMILES of a page of hits. Only this page gets read
+	 * from the index, if not done before.
+	 * 
+	 * @param iStart Index of the first hit of the page.
+	 * @param iCount Maximum number of hits of the page. The page ends
+	 * 		with the last hit at the latest.
+	 * 
+	 * @return Array of SMILES in hit order. Elements are null for
+	 * 		molecules without SMILES. Never null.
+	 * 
+	 * @throws IOException Thrown, if the index could not be read.
+	 */
+	public String[] getSmiles(final int iStart, final int iCount) throws IOException {
+		final int iEnd = getPageEnd(iStart, iCount);
+		resolve(iStart, iEnd - iStart);
+		return Arrays.copyOfRange(m_arrSmiles, iStart, iEnd);
+	}
+
+	/**
+	 * Returns true, if these hits have been closed.
+	 * 
+	 * @return True, if closed. False otherwise.
+	 */
+	public synchronized boolean isClosed() {
+		return m_bClosed;
+	}
+
+	/**
+	 * Releases the pinned index reader. Already resolved values stay
+	 * available, but nothing else can be resolved anymore. Calling this
+	 * method multiple times has no effect.
+	 * 
+	 * @throws IOException Thrown, if closing an outdated reader failed.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (!m_bClosed) {
+			m_bClosed = true;
+			m_index.releaseSearcher(m_searcher);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ChemicalHits { size=" + m_arrDocs.length + ", totalHits=" + m_iTotalHits + " }";
+	}
+
+	//
+	// Private Methods
+	//
+
+	/**
+	 * Determines the end of a page and checks the page boundaries.
+	 */
+	private int getPageEnd(final int iStart, final int iCount) {
+		if (iStart < 0 || iStart > m_arrDocs.length) {
+			throw new IndexOutOfBoundsException("Start of page out of bounds: " + iStart);
+		}
+		if (iCount < 0) {
+			throw new IllegalArgumentException("Page size must not be negative.");
+		}
+
+		return (int)Math.min((long)iStart + iCount, m_arrDocs.length);
+	}
+
+	/**
+	 * Reads primary keys and SMILES of all unresolved hits of the specified
+	 * range, either from the molecule column cache or from stored fields.
+	 */
+	private synchronized void resolve(final int iStart, final int iCount) throws IOException {
+		if (iStart < 0 || iStart + iCount > m_arrDocs.length) {
+			throw new IndexOutOfBoundsException("Hit out of bounds: " + (iStart < 0 ? iStart : iStart + iCount - 1));
+		}
+
+		for (int i = iStart; i < iStart + iCount; i++) {
+			if (!m_arrResolved[i]) {
+				if (m_bClosed) {
+					throw new IllegalStateException("Hits have been closed already.");
+				}
+				ChemicalIndex.readHitFields(m_searcher.getIndexReader(), m_molColumnCache, m_arrDocs,
+						i, iStart + iCount, m_arrResolved, m_arrPKs, m_arrSmiles);
+				break;
+			}
+		}
+	}
+}
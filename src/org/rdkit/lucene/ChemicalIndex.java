@@ -36,12 +36,32 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
@@ -50,38 +70,163 @@ import org.RDKit.GenericRDKitException;
 import org.RDKit.RDKFuncs;
 import org.RDKit.ROMol;
 import org.RDKit.RWMol;
+import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.Field.Index;
 import org.apache.lucene.document.Field.Store;
-import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.document.NumericField;
 import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.FieldInfos;
 import org.apache.lucene.index.IndexNotFoundException;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
 import org.apache.lucene.queryParser.MultiFieldQueryParser;
 import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryWrapperFilter;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.TopDocsCollector;
 import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.FixedBitSet;
 import org.apache.lucene.util.ReaderUtil;
 import org.apache.lucene.util.Version;
 import org.rdkit.lucene.bin.RDKit;
+import org.rdkit.lucene.bin.RDKitCleanupScope;
 import org.rdkit.lucene.fingerprint.FingerprintFactory;
+import org.rdkit.lucene.fingerprint.MoleculeFingerprintFactory;
 import org.rdkit.lucene.sdf.SDFParser;
 import org.rdkit.lucene.sdf.SDFRecord;
+import org.rdkit.lucene.util.ChemUtils;
+import org.rdkit.lucene.util.SystemUtils;
 
 public class ChemicalIndex {
 
+	//
+	// Inner Classes
+	//
+
+	/**
+	 * A batch of substructure candidates of a single index segment together
+	 * with the verification result.
+	 */
+	protected static class VerificationBatch {
+
+		//
+		// Members
+		//
+
+		private final int m_iSegment;
+		private final IndexReader m_reader;
+		private final int[] m_arrDocs;
+		private final float[] m_arrScores;
+		private final int[] m_arrHitIndexes;
+		private int m_iCount;
+		private int m_iHits;
+
+		//
+		// Constructor
+		//
+
+		private VerificationBatch(final int iSegment, final IndexReader reader) {
+			m_iSegment = iSegment;
+			m_reader = reader;
+			m_arrDocs = new int[SUBSTRUCTURE_VERIFICATION_BATCH_SIZE];
+			m_arrScores = new float[SUBSTRUCTURE_VERIFICATION_BATCH_SIZE];
+			m_arrHitIndexes = new int[SUBSTRUCTURE_VERIFICATION_BATCH_SIZE];
+			m_iCount = 0;
+			m_iHits = 0;
+		}
+
+		//
+		// Private Methods
+		//
+
+		private void add(final int iDoc, final float fScore) {
+			m_arrDocs[m_iCount] = iDoc;
+			m_arrScores[m_iCount] = fScore;
+			m_iCount++;
+		}
+
+		private boolean isFull() {
+			return m_iCount == m_arrDocs.length;
+		}
+	}
+
+	/**
+	 * The fields available for free text searches in a certain index reader.
+	 */
+	private static class FreeTextFields {
+
+		//
+		// Members
+		//
+
+		private final WeakReference<Object> m_refReaderKey;
+		private final String[] m_arrFields;
+
+		//
+		// Constructor
+		//
+
+		private FreeTextFields(final IndexReader reader, final String[] arrFields) {
+			m_refReaderKey = new WeakReference<Object>(reader.getCoreCacheKey());
+			m_arrFields = arrFields;
+		}
+
+		//
+		// Private Methods
+		//
+
+		private boolean isValidFor(final IndexReader reader) {
+			return m_refReaderKey.get() == reader.getCoreCacheKey();
+		}
+	}
+
+	/**
+	 * A query parser for free text searches of a single thread together with
+	 * the fields it was created for.
+	 */
+	private static class FreeTextQueryParser {
+
+		//
+		// Members
+		//
+
+		private final String[] m_arrFields;
+		private final MultiFieldQueryParser m_parser;
+
+		//
+		// Constructor
+		//
+
+		private FreeTextQueryParser(final String[] arrFields, final Analyzer analyzer) {
+			m_arrFields = arrFields;
+			m_parser = new MultiFieldQueryParser(LUCENE_VERSION, arrFields, analyzer);
+		}
+	}
+
 	//
 	// Constants
 	//
@@ -103,14 +248,57 @@ public class ChemicalIndex {
 	/** Field name of molecule names (synonyms). */
 	public static final String FIELD_NAME = "name";
 
+	/** Field name of the number of set bits of the fingerprint (numeric, not stored). */
+	public static final String FIELD_FP_COUNT = "fpcount";
+
+	/** Field name of the binary RDKit molecule (optional, stored only). */
+	public static final String FIELD_MOL_PICKLE = "molpickle";
+
+	/** Field name of the fixed-width hash of the canonicalized SMILES (indexed only). */
+	public static final String FIELD_SMILES_HASH = "smileshash";
+
 	/** Empty results. */
 	private static final String[] EMPTY_RESULTS = new String[0];
 
+	/** Number of fingerprint candidates that get verified at once by a substructure search. */
+	static final int SUBSTRUCTURE_VERIFICATION_BATCH_SIZE = 256;
+
+	/**
+	 * Share of documents a fingerprint bit must be set in to be dropped from
+	 * a screen that gets verified afterwards, as it screens out almost nothing.
+	 */
+	static final double PLAN_DROP_BIT_MIN_DOC_FREQ_RATIO = 0.95d;
+
+	/**
+	 * Share of documents the rarest fingerprint bit must be set in to prefer
+	 * a linear scan of the fingerprint sidecar over intersecting postings.
+	 */
+	static final double PLAN_LINEAR_SCAN_MIN_DOC_FREQ_RATIO = 0.1d;
+
+	/** Fields needed to resolve primary keys of search hits. */
+	private static final FieldSelector FIELD_SELECTOR_PK = new MapFieldSelector(FIELD_PK);
+
+	/** Fields needed to confirm an exact structure match. */
+	private static final FieldSelector FIELD_SELECTOR_SMILES = new MapFieldSelector(FIELD_SMILES);
+
+	/** Fields needed to resolve primary keys and SMILES of search hits. */
+	private static final FieldSelector FIELD_SELECTOR_HIT = new MapFieldSelector(FIELD_PK, FIELD_SMILES);
+
+	/** Fields needed to verify a substructure candidate. */
+	private static final FieldSelector FIELD_SELECTOR_VERIFICATION =
+			new MapFieldSelector(FIELD_SMILES, FIELD_MOL_PICKLE);
+
+	/** Number of errors in a row after which adding molecules from an SDF file is given up. */
+	static final int MAX_SUBSEQUENTIAL_ERRORS = 100;
+
+	/** Default interval in milliseconds to make changes visible to searches. */
+	public static final long DEFAULT_SEARCHER_REFRESH_INTERVAL = 1000;
+
 	//
 	// Members
 	//
 
-	private boolean m_bShutdown;
+	private volatile boolean m_bShutdown;
 
 	private final Directory m_directory;
 
@@ -120,15 +308,73 @@ public class ChemicalIndex {
 
 	private final IndexWriterConfigFactory m_configFactory;
 
-	private IndexWriter m_writer;
+	private volatile IndexWriter m_writer;
+
+	private volatile SearcherManager m_searcherManager;
+
+	/** The writer the searcher manager gets near-real-time readers from. Null, if it reads the directory. */
+	private volatile IndexWriter m_writerSearched;
+
+	private ScheduledExecutorService m_execRefresh;
+
+	private volatile long m_lSearcherRefreshInterval;
+
+	private final AtomicBoolean m_abChangesPending;
+
+	/** The snapshot that is pinned to the current thread, if any. */
+	private final ThreadLocal<SearcherSnapshot> m_tlSnapshot;
 
-	private IndexSearcher m_searcher;
+	/** Segment cores, which have a structure hash for every document, or not. */
+	private final Map<Object, Boolean> m_mapHashedSegments;
+
+	/** The fields for free text searches of the reader that was searched last. */
+	private volatile FreeTextFields m_freeTextFields;
+
+	/** The analyzer of the current thread for free text searches. */
+	private final ThreadLocal<Analyzer> m_tlAnalyzer;
+
+	/** The query parser of the current thread for free text searches. */
+	private final ThreadLocal<FreeTextQueryParser> m_tlQueryParser;
 
 	private final List<IndexListener> m_lListener;
 
-	private final Object m_lockWriter = new Object(); // TODO: Used to block reading operations when writing
+	private volatile boolean m_bStoreMoleculePickles;
+
+	private volatile FingerprintSidecar m_fpSidecar;
+
+	private volatile FingerprintBitmapCache m_fpBitmapCache;
+
+	private volatile MoleculeColumnCache m_molColumnCache;
+
+	private volatile KeyBloomFilterCache m_keyBloomFilterCache;
+
+	private volatile boolean m_bPrimaryKeyFilterEnabled;
 
-	private final Object m_lockSearcher = new Object(); // TODO: Used to block writing operations when reading
+	/** The keys of the index while the writer is open, if enabled. Guarded by m_lockWriter. */
+	private volatile PrimaryKeyFilter m_pkFilter;
+
+	/** Creates the searchers of new readers and prepares the caches for them. */
+	private final SearcherFactory m_searcherFactory;
+
+	private volatile ExecutorService m_execVerification;
+
+	private volatile int m_iVerificationParallelism;
+
+	/** Guards the creation of the writer. */
+	private final Object m_lockWriter = new Object();
+
+	/** Guards the creation of the searcher manager and the refresh executor. */
+	private final Object m_lockSearcher = new Object();
+
+	/** Serializes refreshing the searcher, so that a refresh request is never skipped. */
+	private final Object m_lockRefresh = new Object();
+
+	/**
+	 * Makes checking a key with the primary key filter and writing its document
+	 * atomic. Writes that use the filter hold the write lock, all other writes
+	 * hold the read lock, so that the filter never gets created while they are in flight.
+	 */
+	private final ReadWriteLock m_lockPrimaryKeys = new ReentrantReadWriteLock();
 
 	//
 	// Constructor
@@ -179,8 +425,33 @@ public class ChemicalIndex {
 		m_fingerprintFactory = fingerprintFactory;
 		m_configFactory = (configFactory == null ? new DefaultIndexWriterConfigFactory(analyzerFactory) : configFactory);
 		m_writer = null;
-		m_searcher = null;
+		m_searcherManager = null;
+		m_writerSearched = null;
+		m_execRefresh = null;
+		m_lSearcherRefreshInterval = DEFAULT_SEARCHER_REFRESH_INTERVAL;
+		m_abChangesPending = new AtomicBoolean(false);
+		m_tlSnapshot = new ThreadLocal<SearcherSnapshot>();
+		m_mapHashedSegments = Collections.synchronizedMap(new WeakHashMap<Object, Boolean>());
+		m_freeTextFields = null;
+		m_tlAnalyzer = new ThreadLocal<Analyzer>();
+		m_tlQueryParser = new ThreadLocal<FreeTextQueryParser>();
 		m_lListener = new ArrayList<IndexListener>();
+		m_bStoreMoleculePickles = false;
+		m_fpSidecar = null;
+		m_fpBitmapCache = null;
+		m_molColumnCache = null;
+		m_keyBloomFilterCache = null;
+		m_bPrimaryKeyFilterEnabled = false;
+		m_pkFilter = null;
+		m_searcherFactory = new SearcherFactory() {
+			@Override
+			public IndexSearcher newSearcher(final IndexReader reader) throws IOException {
+				warmReader(reader);
+				return super.newSearcher(reader);
+			}
+		};
+		m_execVerification = null;
+		m_iVerificationParallelism = 1;
 	}
 
 	//
@@ -213,6 +484,228 @@ public class ChemicalIndex {
 		}
 	}
 
+	/**
+	 * Determines, if molecules that get added from now on shall be stored
+	 * also in binary RDKit form. Substructure verification uses the binary
+	 * form instead of parsing the stored SMILES again, if available for a
+	 * molecule. This makes the index larger. Note: The RDKit Java wrappers
+	 * transfer the binary form element by element, which can cost as much as
+	 * parsing the SMILES. Molecules that were indexed before are not affected.
+	 * 
+	 * @param bStoreMoleculePickles True to store binary molecules. False otherwise.
+	 * 		The default is false.
+	 */
+	public void setStoreMoleculePickles(final boolean bStoreMoleculePickles) {
+		m_bStoreMoleculePickles = bStoreMoleculePickles;
+	}
+
+	/**
+	 * Determines, if molecules get stored also in binary RDKit form when they
+	 * are added.
+	 * 
+	 * @return True, if binary molecules get stored. False otherwise.
+	 * 
+	 * @see #setStoreMoleculePickles(boolean)
+	 */
+	public boolean isStoreMoleculePickles() {
+		return m_bStoreMoleculePickles;
+	}
+
+	/**
+	 * Sets the fingerprint sidecar store to be used for fingerprint screens.
+	 * If set, fingerprint matches of queries without selective bits are found
+	 * by scanning the packed fingerprints of the sidecar instead of intersecting
+	 * the posting lists of all query bits. All hits get the same score then and
+	 * are delivered in index order.
+	 * The sidecar gets closed when this index is shut down.
+	 * 
+	 * @param fpSidecar Fingerprint sidecar store. Its number of bits must match the
+	 * 		structure fingerprints of the index. Can be null to use the inverted index.
+	 */
+	public void setFingerprintSidecar(final FingerprintSidecar fpSidecar) {
+		m_fpSidecar = fpSidecar;
+	}
+
+	/**
+	 * Returns the fingerprint sidecar store used for fingerprint screens.
+	 * 
+	 * @return Fingerprint sidecar store or null, if the inverted index is used.
+	 * 
+	 * @see #setFingerprintSidecar(FingerprintSidecar)
+	 */
+	public FingerprintSidecar getFingerprintSidecar() {
+		return m_fpSidecar;
+	}
+
+	/**
+	 * Sets the cache of fingerprint bit bitmaps to be used for fingerprint screens.
+	 * If set, screens that would intersect posting lists intersect the cached
+	 * bitmaps of the query bits instead. All hits get the same score then and
+	 * are delivered in index order.
+	 * 
+	 * @param fpBitmapCache Fingerprint bitmap cache. Can be null to use the
+	 * 		inverted index directly.
+	 */
+	public void setFingerprintBitmapCache(final FingerprintBitmapCache fpBitmapCache) {
+		m_fpBitmapCache = fpBitmapCache;
+	}
+
+	/**
+	 * Returns the cache of fingerprint bit bitmaps used for fingerprint screens.
+	 * 
+	 * @return Fingerprint bitmap cache or null, if the inverted index is used directly.
+	 * 
+	 * @see #setFingerprintBitmapCache(FingerprintBitmapCache)
+	 */
+	public FingerprintBitmapCache getFingerprintBitmapCache() {
+		return m_fpBitmapCache;
+	}
+
+	/**
+	 * Sets the cache of SMILES and primary key columns. If set, substructure
+	 * verification and the resolution of primary keys look up these values
+	 * by document id instead of reading stored documents. Segments that store
+	 * molecule pickles still get verified based on the pickles, as molecules
+	 * are created faster from them than from SMILES.
+	 * 
+	 * @param molColumnCache Molecule column cache. Can be null to read stored
+	 * 		fields always.
+	 */
+	public void setMoleculeColumnCache(final MoleculeColumnCache molColumnCache) {
+		m_molColumnCache = molColumnCache;
+	}
+
+	/**
+	 * Returns the cache of SMILES and primary key columns.
+	 * 
+	 * @return Molecule column cache or null, if stored fields are read always.
+	 * 
+	 * @see #setMoleculeColumnCache(MoleculeColumnCache)
+	 */
+	public MoleculeColumnCache getMoleculeColumnCache() {
+		return m_molColumnCache;
+	}
+
+	/**
+	 * Sets the cache of Bloom filters over primary keys and structure hashes.
+	 * If set, lookups by primary key and exact structure searches skip all
+	 * segments that definitely do not contain the key, and return without
+	 * accessing the index at all for keys that do not exist. Filters of new
+	 * segments get built when the searcher gets refreshed.
+	 * 
+	 * @param keyBloomFilterCache Key Bloom filter cache. Can be null to
+	 * 		look up all keys in the index.
+	 */
+	public void setKeyBloomFilterCache(final KeyBloomFilterCache keyBloomFilterCache) {
+		m_keyBloomFilterCache = keyBloomFilterCache;
+	}
+
+	/**
+	 * Returns the cache of Bloom filters over primary keys and structure hashes.
+	 * 
+	 * @return Key Bloom filter cache or null, if all keys are looked up in the index.
+	 * 
+	 * @see #setKeyBloomFilterCache(KeyBloomFilterCache)
+	 */
+	public KeyBloomFilterCache getKeyBloomFilterCache() {
+		return m_keyBloomFilterCache;
+	}
+
+	/**
+	 * Enables or disables the primary key filter for adding molecules. If
+	 * enabled, the keys of the index are kept in a compact in-memory filter
+	 * while the writer is open. Molecules with keys that are definitely new
+	 * get added without deleting an older version first, which makes initial
+	 * loads and loads of mostly new molecules cheaper. Only molecules with keys
+	 * that may exist already replace an older version. The filter needs about
+	 * 2.4 bytes per molecule of the index when the writer gets opened, plus
+	 * the same for every molecule added afterwards. While enabled, molecules
+	 * get written one at a time, which suits loads from a single thread
+	 * like {@link #addSDFFileToIndex(File, String, String, Set, int)}.
+	 * 
+	 * @param bEnabled True to enable the filter. False to replace an older
+	 * 		version of every molecule that gets added (default).
+	 */
+	public void setPrimaryKeyFilterEnabled(final boolean bEnabled) {
+		synchronized (m_lockWriter) {
+			m_bPrimaryKeyFilterEnabled = bEnabled;
+			if (!bEnabled) {
+				m_pkFilter = null;
+			}
+		}
+	}
+
+	/**
+	 * Returns true, if the primary key filter is used for adding molecules.
+	 * 
+	 * @return True, if enabled. False otherwise.
+	 * 
+	 * @see #setPrimaryKeyFilterEnabled(boolean)
+	 */
+	public boolean isPrimaryKeyFilterEnabled() {
+		return m_bPrimaryKeyFilterEnabled;
+	}
+
+	/**
+	 * Sets the interval in which changes get made visible to searches. While
+	 * molecules are added, a background thread refreshes the searcher in this
+	 * interval from the near-real-time reader of the open index writer, hence
+	 * searches can be served during continuous ingest without reopening the
+	 * index. Call {@link #refreshSearcher()} or {@link #commit()} to make
+	 * changes visible immediately.
+	 * 
+	 * @param lMillis Refresh interval in milliseconds. Must be > 0.
+	 */
+	public void setSearcherRefreshInterval(final long lMillis) {
+		if (lMillis <= 0) {
+			throw new IllegalArgumentException("Refresh interval must be a positive number > 0.");
+		}
+
+		m_lSearcherRefreshInterval = lMillis;
+	}
+
+	/**
+	 * Returns the interval in which changes get made visible to searches.
+	 * 
+	 * @return Refresh interval in milliseconds.
+	 * 
+	 * @see #setSearcherRefreshInterval(long)
+	 */
+	public long getSearcherRefreshInterval() {
+		return m_lSearcherRefreshInterval;
+	}
+
+	/**
+	 * Sets the executor to be used for verifying substructure candidates in
+	 * parallel. Every worker creates its own copy of the query molecule.
+	 * Results are merged in index order, hence they are the same as
+	 * without executor. The executor is not shut down by this index.
+	 * 
+	 * @param execVerification Executor for verification tasks. Can be null to
+	 * 		verify candidates in the searching thread.
+	 * @param iParallelism Number of threads of the executor that shall be used
+	 * 		by a single search. Twice as many batches are kept in flight. Must be > 0.
+	 */
+	public void setVerificationExecutor(final ExecutorService execVerification, final int iParallelism) {
+		if (iParallelism <= 0) {
+			throw new IllegalArgumentException("Parallelism must be a positive number > 0.");
+		}
+
+		m_iVerificationParallelism = iParallelism;
+		m_execVerification = execVerification;
+	}
+
+	/**
+	 * Returns the executor used for verifying substructure candidates in parallel.
+	 * 
+	 * @return Executor or null, if candidates get verified in the searching thread.
+	 * 
+	 * @see #setVerificationExecutor(ExecutorService, int)
+	 */
+	public ExecutorService getVerificationExecutor() {
+		return m_execVerification;
+	}
+
 	/**
 	 * Adds the specified SDF file to the index.
 	 * 
@@ -282,7 +775,7 @@ public class ChemicalIndex {
 					iTotalErrors++;
 					LOGGER.log(Level.SEVERE, "Molecule " + strPK + " could not be added to index.", exc);
 
-					if (iSubsequentialErrors > 100) {
+					if (iSubsequentialErrors > MAX_SUBSEQUENTIAL_ERRORS) {
 						throw new IOException("Too many errors in a row. Giving up.", exc);
 					}
 
@@ -305,7 +798,38 @@ public class ChemicalIndex {
 		if (iTotalErrors > 0) {
 			LOGGER.log(Level.SEVERE, iTotalErrors + " molecules could not be added due to errors.");
 		}
+
+		commit();
+	}
+
+	/**
+	 * Adds the specified SDF file to the index using a multi-stage pipeline:
+	 * The calling thread parses the SDF records, a pool of worker threads
+	 * canonicalizes and fingerprints the molecules in parallel and a single
+	 * writer thread adds the resulting documents to the index in the order
+	 * of the SDF file. Skipping of primary keys and error handling work the
+	 * same way as in {@link #addSDFFileToIndex(File, String, String, Set)}.
+	 * The throughput of every stage gets logged when done.
+	 * 
+	 * @param sdfFile SDF File. Must not be null.
+	 * @param strFieldPrimaryKey The field name that holds the primary key. Must not be null.
+	 * @param strIgnoreUpToPK Start indexing on that primery key. Ignore the ones before. Can be null.
+	 * @param setIgnorePKs Set of primary keys with structures that shall not be indexed. Can be null.
+	 * @param iWorkerThreads Number of threads to canonicalize and fingerprint molecules. Must be > 0.
+	 * 
+	 * @return The pipeline that was used, which provides statistics about its stages.
+	 * 
+	 * @throws IOException
+	 */
+	public SDFIngestPipeline addSDFFileToIndex(final File sdfFile, final String strFieldPrimaryKey,
+			final String strIgnoreUpToPK, final Set<String> setIgnorePKs, final int iWorkerThreads)
+					throws IOException {
+		final SDFIngestPipeline pipeline = new SDFIngestPipeline(this, iWorkerThreads);
+		pipeline.run(sdfFile, strFieldPrimaryKey, strIgnoreUpToPK, setIgnorePKs);
+		commit();
+		return pipeline;
 	}
+
 	/**
 	 * Notifies all index listener when a molecule has been added.
 	 * 
@@ -327,22 +851,74 @@ public class ChemicalIndex {
 		}
 	}
 
+	/**
+	 * Commits all changes to the index directory and makes them visible to
+	 * searches. This is called automatically after adding SDF files.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if committing failed.
+	 */
+	public void commit() throws IOException {
+		final IndexWriter writer = m_writer;
+		if (writer != null) {
+			writer.commit();
+		}
+		refreshSearcher();
+	}
+
+	/**
+	 * Makes all changes visible to searches, which have been added so far.
+	 * Searches that are running continue to use the former state of the index.
+	 * If another thread is refreshing the searcher, this call waits for it.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if reopening the index reader failed.
+	 */
+	public void refreshSearcher() throws IOException {
+		SearcherManager manager;
+		while ((manager = m_searcherManager) != null) {
+			try {
+				synchronized (m_lockRefresh) {
+					m_abChangesPending.set(false);
+					manager.maybeRefresh();
+				}
+				break;
+			}
+			catch (final AlreadyClosedException exc) {
+				// The manager was replaced or closed concurrently - refresh the current one, if any
+				if (m_searcherManager == manager) {
+					break;
+				}
+			}
+		}
+	}
+
 	/**
 	 * Closes writer and searcher of this index. This may take some time, if
-	 * merges are currently running. Writer and searcher will be recreated on
-	 * demand. To avoid this, call {@link #shutdown()} instead.
+	 * merges are currently running. Searches that are running continue to use
+	 * their searcher until they are done. Writer and searcher will be recreated
+	 * on demand. To avoid this, call {@link #shutdown()} instead.
 	 * 
 	 * @throws IOException
 	 *             Thrown, if closing of searcher or writer failed.
 	 */
 	public void close() throws IOException {
-		if (m_searcher != null) {
-			m_searcher.close();
-			m_searcher = null;
+		synchronized (m_lockSearcher) {
+			if (m_execRefresh != null) {
+				m_execRefresh.shutdownNow();
+				m_execRefresh = null;
+			}
+			if (m_searcherManager != null) {
+				m_searcherManager.close();
+				m_searcherManager = null;
+			}
 		}
-		if (m_writer != null) {
-			m_writer.close(true);
-			m_writer = null;
+		synchronized (m_lockWriter) {
+			if (m_writer != null) {
+				m_writer.close(true);
+				m_writer = null;
+			}
+			m_pkFilter = null;
 		}
 	}
 
@@ -357,6 +933,11 @@ public class ChemicalIndex {
 	public void shutdown() throws IOException {
 		m_bShutdown = true;
 		close();
+
+		final FingerprintSidecar fpSidecar = m_fpSidecar;
+		if (fpSidecar != null) {
+			fpSidecar.close();
+		}
 	}
 
 	/**
@@ -392,10 +973,10 @@ public class ChemicalIndex {
 					throws IOException, GenericRDKitException {
 		final String strStructure = sdf.getStructure();
 
-		final String strCanonSmiles = RDKFuncs.getCanonSmiles(strStructure, false);
+		final PreparedMolecule molPrepared = prepareMoleculeFromMolBlock(strStructure);
 
-		if (strCanonSmiles != null && !strCanonSmiles.isEmpty()) {
-			addMolecule(strPK, strCanonSmiles, listNames, mapProperties);
+		if (molPrepared != null) {
+			addPreparedMolecule(strPK, molPrepared, listNames, mapProperties);
 		}
 		else {
 			LOGGER.log(Level.WARNING, "Canonical SMILES could not be created for\n" + strStructure);
@@ -422,8 +1003,88 @@ public class ChemicalIndex {
 	public void addMoleculeAsSmiles(final String strPK, final String strSmiles,
 			final List<String> listNames, final Map<String, Object> mapProperties)
 					throws IOException, GenericRDKitException {
-		addMolecule(strPK, RDKFuncs.getCanonSmiles(strSmiles, true), listNames,
-				mapProperties);
+		final PreparedMolecule molPrepared = prepareMoleculeFromSmiles(strSmiles);
+
+		if (molPrepared == null) {
+			throw new IllegalArgumentException(
+					"Canonical SMILES could not be created for " + strSmiles);
+		}
+
+		addPreparedMolecule(strPK, molPrepared, listNames, mapProperties);
+	}
+
+	/**
+	 * Adds the specified prepared molecule with the specified primary key and
+	 * registers also the specified names (if not null) for the index. If a
+	 * molecule with the same primary key was already registered before, it
+	 * will get removed and re-added.
+	 * 
+	 * @param strPK
+	 *            Primary key to be used for the molecule. Must not be null.
+	 * @param molPrepared
+	 *            The prepared molecule. Must not be null.
+	 * @param listNames
+	 *            Optional list of names to be added for synonym searches (e.g.
+	 *            NVP number). Can be null.
+	 * @param mapProperties
+	 *            Optional list of properties to be added as other fields. Can be null.
+	 * 
+	 * @see #prepareMoleculeFromMolBlock(String)
+	 * @see #prepareMoleculeFromSmiles(String)
+	 */
+	public void addPreparedMolecule(final String strPK, final PreparedMolecule molPrepared,
+			final List<String> listNames, final Map<String, Object> mapProperties)
+					throws IOException {
+		final Document doc = createMoleculeDocument(strPK, molPrepared, listNames, mapProperties);
+		writeMoleculeDocument(strPK, molPrepared.getCanonSmiles(), doc);
+	}
+
+	/**
+	 * Prepares a molecule for indexing based on a mol block. The mol block
+	 * gets canonicalized only once. The structure fingerprint and all other
+	 * indexed values are derived from the canonical SMILES, which gets parsed
+	 * at most once into an RDKit molecule. All RDKit objects are freed
+	 * afterwards in a single cleanup wave.
+	 * 
+	 * @param strMolBlock
+	 *            Mol block of the molecule. Must not be null.
+	 * 
+	 * @return Prepared molecule or null, if no canonical SMILES could be created.
+	 * 
+	 * @throws GenericRDKitException
+	 *             Thrown, if RDKit failed to process the molecule.
+	 */
+	public PreparedMolecule prepareMoleculeFromMolBlock(final String strMolBlock)
+			throws GenericRDKitException {
+		if (strMolBlock == null) {
+			throw new IllegalArgumentException("Mol block must not be null.");
+		}
+
+		return prepareMolecule(RDKFuncs.getCanonSmiles(strMolBlock, false));
+	}
+
+	/**
+	 * Prepares a molecule for indexing based on a SMILES. The SMILES gets
+	 * canonicalized only once. The structure fingerprint and all other
+	 * indexed values are derived from the canonical SMILES, which gets parsed
+	 * at most once into an RDKit molecule. All RDKit objects are freed
+	 * afterwards in a single cleanup wave.
+	 * 
+	 * @param strSmiles
+	 *            SMILES of the molecule. Must not be null.
+	 * 
+	 * @return Prepared molecule or null, if no canonical SMILES could be created.
+	 * 
+	 * @throws GenericRDKitException
+	 *             Thrown, if RDKit failed to process the molecule.
+	 */
+	public PreparedMolecule prepareMoleculeFromSmiles(final String strSmiles)
+			throws GenericRDKitException {
+		if (strSmiles == null) {
+			throw new IllegalArgumentException("SMILES must not be null.");
+		}
+
+		return prepareMolecule(RDKFuncs.getCanonSmiles(strSmiles, true));
 	}
 
 	/**
@@ -433,9 +1094,14 @@ public class ChemicalIndex {
 	 */
 	public int getIndexedMoleculeCount() throws IOException {
 		try {
-			final IndexSearcher searcher = prepareSearcher();
+			final IndexSearcher searcher = acquireSearcher();
 			if (searcher != null) {
-				return searcher.getIndexReader().numDocs();
+				try {
+					return searcher.getIndexReader().numDocs();
+				}
+				finally {
+					releaseSearcher(searcher);
+				}
 			}
 			else {
 				return -1;
@@ -448,7 +1114,8 @@ public class ChemicalIndex {
 
 	/**
 	 * Searches molecules based on a free text search, which may contain several
-	 * fields.
+	 * fields. Terms without field are searched in all indexed text fields, i.e.
+	 * not in fingerprint bits.
 	 * 
 	 * @param strFreeSearch
 	 *            Search string (human). Must not be null.
@@ -468,23 +1135,20 @@ public class ChemicalIndex {
 			ParseException {
 		TopScoreDocCollector collector = null;
 
-		final IndexSearcher searcher = prepareSearcher();
+		final IndexSearcher searcher = acquireSearcher();
 		if (searcher != null) {
-			//final QueryParser queryParser = new QueryParser(LUCENE_VERSION,
-			//		FIELD_NAME, m_analyzerFactory.createAnalyzer());
+			try {
+				//final QueryParser queryParser = new QueryParser(LUCENE_VERSION,
+				//		FIELD_NAME, m_analyzerFactory.createAnalyzer());
 
-			final List<String> listFields = new ArrayList<String>(50);
-			final FieldInfos fields = ReaderUtil.getMergedFieldInfos(searcher.getIndexReader());
-			final Iterator<FieldInfo> fieldIterator = fields.iterator();
-			while (fieldIterator.hasNext()) {
-				listFields.add(fieldIterator.next().name);
+				final Query query = getFreeTextQueryParser(searcher.getIndexReader()).parse(strFreeSearch);
+				collector = TopScoreDocCollector.create(getCollectorSize(iMaxHits,
+						searcher.getIndexReader().numDocs()), true);
+				searcher.search(query, collector);
+			}
+			finally {
+				releaseSearcher(searcher);
 			}
-			final MultiFieldQueryParser mfQueryParser = new MultiFieldQueryParser(LUCENE_VERSION,
-					listFields.toArray(new String[listFields.size()]), m_analyzerFactory.createAnalyzer());
-
-			final Query query = mfQueryParser.parse(strFreeSearch);
-			collector = TopScoreDocCollector.create(iMaxHits, true);
-			searcher.search(query, collector);
 		}
 
 		return collector;
@@ -505,14 +1169,25 @@ public class ChemicalIndex {
 	public Document searchMoleculeByPK(final String strPK) throws IOException {
 		Document doc = null;
 
-		final IndexSearcher searcher = prepareSearcher();
+		final IndexSearcher searcher = acquireSearcher();
 		if (searcher != null) {
-			final Query query = new TermQuery(new Term(FIELD_PK, strPK));
-			final TopScoreDocCollector collector = TopScoreDocCollector.create(1, true);
-			searcher.search(query, collector);
-			if (collector.getTotalHits() > 0) {
-				doc = searcher.doc(collector.topDocs().scoreDocs[0].doc);
-			}
+			try {
+				final Term term = new Term(FIELD_PK, strPK);
+				final KeyBloomFilterCache keyBloomFilterCache = m_keyBloomFilterCache;
+
+				// Unknown keys are rejected without accessing the index, if possible
+				if (keyBloomFilterCache == null || keyBloomFilterCache.mightContainAny(searcher.getIndexReader(), term)) {
+					final Query query = new TermQuery(term);
+					final TopScoreDocCollector collector = TopScoreDocCollector.create(1, true);
+					searcher.search(query, collector);
+					if (collector.getTotalHits() > 0) {
+						doc = searcher.doc(collector.topDocs().scoreDocs[0].doc);
+					}
+				}
+			}
+			finally {
+				releaseSearcher(searcher);
+			}
 		}
 
 		return doc;
@@ -539,15 +1214,23 @@ public class ChemicalIndex {
 			final String strName, final int iMaxHits) throws IOException {
 		TopScoreDocCollector collector = null;
 
-		final IndexSearcher searcher = prepareSearcher();
+		final IndexSearcher searcher = acquireSearcher();
 		if (searcher != null) {
-			final Query query1 = new TermQuery(new Term(FIELD_NAME, strName));
-			final Query query2 = new TermQuery(new Term(FIELD_PK, strName));
-			final BooleanQuery query = new BooleanQuery();
-			query.add(query1, BooleanClause.Occur.SHOULD);
-			query.add(query2, BooleanClause.Occur.SHOULD);
-			collector = TopScoreDocCollector.create(iMaxHits, true);
-			searcher.search(query, collector);
+			try {
+				final Query query1 = new TermQuery(new Term(FIELD_NAME, strName));
+				final Query query2 = new TermQuery(new Term(FIELD_PK, strName));
+				final BooleanQuery query = new BooleanQuery();
+				query.add(query1, BooleanClause.Occur.SHOULD);
+				query.add(query2, BooleanClause.Occur.SHOULD);
+				final IndexReader reader = searcher.getIndexReader();
+				collector = TopScoreDocCollector.create(getCollectorSize(iMaxHits,
+						(long)reader.docFreq(new Term(FIELD_NAME, strName)) +
+						reader.docFreq(new Term(FIELD_PK, strName))), true);
+				searcher.search(query, collector);
+			}
+			finally {
+				releaseSearcher(searcher);
+			}
 		}
 
 		return collector;
@@ -555,7 +1238,9 @@ public class ChemicalIndex {
 
 	/**
 	 * Searches molecules based on a canonical smiles. The passed in smile will
-	 * be canonicalized and compared to known molecule data.
+	 * be canonicalized and compared to known molecule data. The lookup uses
+	 * the fixed-width structure hash of the SMILES. Segments with molecules
+	 * that have been added without hash are looked up by SMILES instead.
 	 * 
 	 * @param strSmiles
 	 *            Smiles to search for. Must not be null. Does not need to be in
@@ -574,15 +1259,28 @@ public class ChemicalIndex {
 	public TopDocsCollector<ScoreDoc> searchExactMolecules(
 			final String strSmiles, final int iMaxHits) throws IOException,
 			GenericRDKitException {
-		TopScoreDocCollector collector = null;
+		UnrankedDocCollector collector = null;
 
-		final IndexSearcher searcher = prepareSearcher();
+		final IndexSearcher searcher = acquireSearcher();
 		if (searcher != null) {
-			// Convert SMILES into RDKit Molecule and canonicalize
-			final String canonSmiles = RDKFuncs.getCanonSmiles(strSmiles, true);
-			final Query query = new TermQuery(new Term(FIELD_SMILES, canonSmiles));
-			collector = TopScoreDocCollector.create(iMaxHits, true);
-			searcher.search(query, collector);
+			try {
+				// Convert SMILES into RDKit Molecule and canonicalize
+				final String canonSmiles = RDKFuncs.getCanonSmiles(strSmiles, true);
+				final IndexReader reader = searcher.getIndexReader();
+				collector = new UnrankedDocCollector(getCollectorSize(iMaxHits, reader.numDocs()));
+
+				final List<IndexReader> listSubReaders = new ArrayList<IndexReader>();
+				ReaderUtil.gatherSubReaders(listSubReaders, reader);
+				int iDocBase = 0;
+				for (final IndexReader subReader : listSubReaders) {
+					collector.setNextReader(subReader, iDocBase);
+					collectExactMatches(subReader, canonSmiles, collector);
+					iDocBase += subReader.maxDoc();
+				}
+			}
+			finally {
+				releaseSearcher(searcher);
+			}
 		}
 
 		return collector;
@@ -610,26 +1308,34 @@ public class ChemicalIndex {
 			throw new IllegalArgumentException("SMILES must not be null.");
 		}
 
-		TopScoreDocCollector collector = null;
+		UnrankedDocCollector collector = null;
 
-		final IndexSearcher searcher = prepareSearcher();
+		final IndexSearcher searcher = acquireSearcher();
 		if (searcher != null) {
-			// Calculate query fingerprint
-			final BitSet fpQuery = m_fingerprintFactory.createQueryFingerprint(strSmiles, false);
-
-			if (fpQuery != null) {
-				// Create query for checking if all query fingerprint bit positions
-				// are matching set bits in a molecules fingerprint
-				final BooleanQuery query = new BooleanQuery();
-				for (int i = fpQuery.nextSetBit(0); i >= 0; i = fpQuery
-						.nextSetBit(i + 1)) {
-					query.add(new BooleanClause(new TermQuery(new Term(FIELD_FP,
-							Integer.toString(i))), BooleanClause.Occur.MUST));
+			try {
+				// Calculate query fingerprint
+				final BitSet fpQuery = m_fingerprintFactory.createQueryFingerprint(strSmiles, false);
+
+				if (fpQuery != null) {
+					// Bits must not be dropped, as results do not get verified
+					final FingerprintSidecar fpSidecar = m_fpSidecar;
+					final FingerprintQueryPlan plan = planFingerprintQuery(
+							searcher.getIndexReader(), fpQuery, false, fpSidecar != null);
+
+					// All hits score the same, hence they are not ranked
+					collector = new UnrankedDocCollector(getCollectorSize(iMaxHits, plan.getMaxCandidates()));
+
+					if (plan.getEstimatedCandidates() > 0) {
+						// Scan packed fingerprints, if a sidecar is available and preferred
+						if (plan.getStrategy() != FingerprintQueryPlan.Strategy.LINEAR_SCAN ||
+								!fpSidecar.screen(searcher.getIndexReader(), fpQuery, collector)) {
+							searcher.search(createScreenQuery(plan), collector);
+						}
+					}
 				}
-
-				// Perform the search
-				collector = TopScoreDocCollector.create(iMaxHits, true);
-				searcher.search(query, collector);
+			}
+			finally {
+				releaseSearcher(searcher);
 			}
 		}
 
@@ -639,268 +1345,1800 @@ public class ChemicalIndex {
 	/**
 	 * Searches molecules which contain the passed in molecule as a
 	 * substructure. This is based on fingerprint matches as well as
-	 * substructure searches.
+	 * substructure searches. Fingerprint candidates are pulled lazily segment
+	 * by segment in index order and verified in batches. The search stops as
+	 * soon as the maximum number of hits has been confirmed, hence the first
+	 * hits in index order are returned. If a verification executor is set,
+	 * batches get verified in parallel, but the result is the same.
 	 * 
 	 * @param strSmiles
 	 *            Smiles to search for. Must not be null.
 	 * @param iMaxHits
-	 *            Maximum number of hits to return.
+	 *            Maximum number of hits to return. If <= 0, all candidates
+	 *            are verified and all hits are returned.
 	 * 
 	 * @return Collector with search results or null, if index has been
 	 *         shutdown.
 	 * 
 	 * @throws IOException
 	 *             Thrown, if index could not be read.
-	 * @throws ParseException
-	 *             Thrown, if search string could not be parsed.
+	 * 
+	 * @see #setVerificationExecutor(ExecutorService, int)
 	 */
 	public TopDocsCollector<ScoreDoc> searchMoleculesWithSubstructure(
 			final String strSmiles, final int iMaxHits) throws IOException {
-		SubstructureScoreDocCollector collector = null;
-		final TopDocsCollector<ScoreDoc> colFpMatch = searchMoleculesByFingerprintMatch(
-				strSmiles, Math.min(iMaxHits * 10, 100000));
-		int iErrors = 0;
-
-		IndexSearcher searcher = null;
-		if (colFpMatch != null && (searcher = prepareSearcher()) != null) {
-			// Scored in order, because colFpMatch is scored in order already
-			collector = SubstructureScoreDocCollector.create(iMaxHits, true);
-
-			// If similar molecules have been found, walk through them and check
-			// for substructures
-			if (colFpMatch.getTotalHits() > 0) {
-				final int iWaveId = RDKit.createUniqueCleanupWaveId();
-				try {
-					final RWMol molQuery = RDKit.markForCleanup(RWMol.MolFromSmiles(strSmiles, 0, false), iWaveId);
-
-					if (molQuery != null) {
-						final TopDocs topDocs = colFpMatch.topDocs();
-						if (topDocs != null) {
-							final ScoreDoc[] arrScoreDoc = topDocs.scoreDocs;
-							int iCountHits = 0;
-							if (arrScoreDoc != null) {
-								final int iLength = arrScoreDoc.length;
-								for (int i = 0; i < iLength && iCountHits < iMaxHits; i++) {
-									final int iDocID = arrScoreDoc[i].doc;
-									final Document doc = searcher.doc(iDocID);
-									if (doc != null) {
-										final String smilesExisting = doc.get(FIELD_SMILES);
-										if (smilesExisting != null) {
-											final int iWaveIdLoop = RDKit
-													.createUniqueCleanupWaveId();
-											try {
-												final RWMol mol = RDKit.markForCleanup(RWMol
-														.MolFromSmiles(smilesExisting, 0, false), iWaveIdLoop);
-												mol.updatePropertyCache(false);
-												if (mol.hasSubstructMatch(molQuery)) {
-													iCountHits++;
-													collector.collect(iDocID, arrScoreDoc[i].score);
-												}
-											}
-											catch (final GenericRDKitException exc) {
-												iErrors++;
+		if (strSmiles == null) {
+			throw new IllegalArgumentException("SMILES must not be null.");
+		}
+
+		UnrankedDocCollector collector = null;
+		final AtomicInteger aiErrors = new AtomicInteger();
+
+		final IndexSearcher searcher = acquireSearcher();
+		if (searcher != null) {
+			try {
+				// Calculate query fingerprint
+				final BitSet fpQuery = m_fingerprintFactory.createQueryFingerprint(strSmiles, false);
+
+				if (fpQuery != null) {
+					final IndexReader reader = searcher.getIndexReader();
+					final int iLimit = (iMaxHits > 0 ? iMaxHits : Integer.MAX_VALUE);
+
+					// Hits are collected in index order, which is the order of the verification
+					collector = new UnrankedDocCollector(getCollectorSize(iLimit, reader.numDocs()));
+
+					// Settings are read once to stay consistent during the search
+					final ExecutorService execVerification = m_execVerification;
+					final int iMaxPendingBatches = 2 * m_iVerificationParallelism;
+					final LinkedList<Future<VerificationBatch>> listPending = new LinkedList<Future<VerificationBatch>>();
+					final AtomicBoolean abDone = new AtomicBoolean(false);
+					final int[] arrCollecting = new int[] { -1 }; // Index of the segment the collector is set to
+
+					final RDKitCleanupScope scope = RDKit.openCleanupScope();
+					try {
+						final RWMol molQuery = (execVerification != null ? null :
+							scope.markForCleanup(RWMol.MolFromSmiles(strSmiles, 0, false)));
+
+						final FingerprintSidecar fpSidecar = m_fpSidecar;
+						final FingerprintBitmapCache fpBitmapCache = m_fpBitmapCache;
+						final FingerprintQueryPlan plan = planFingerprintQuery(reader, fpQuery, true, fpSidecar != null);
+
+						if ((execVerification != null || molQuery != null) && plan.getEstimatedCandidates() > 0) {
+							final List<IndexReader> listSubReaders = new ArrayList<IndexReader>();
+							ReaderUtil.gatherSubReaders(listSubReaders, reader);
+							final int[] arrDocBases = new int[listSubReaders.size()];
+							Weight weight = null;
+							int iHits = 0;
+
+							for (int iSegment = 0, iDocBase = 0; iSegment < arrDocBases.length && iHits < iLimit; iSegment++) {
+								final IndexReader subReader = listSubReaders.get(iSegment);
+								arrDocBases[iSegment] = iDocBase;
+								iDocBase += subReader.maxDoc();
+
+								// Get candidates lazily from the fingerprint screen
+								DocIdSetIterator candidates = null;
+								if (plan.getStrategy() == FingerprintQueryPlan.Strategy.LINEAR_SCAN) {
+									candidates = fpSidecar.iterator(subReader, fpQuery);
+								}
+								else if (plan.getStrategy() == FingerprintQueryPlan.Strategy.INVERTED_INDEX &&
+										fpBitmapCache != null) {
+									candidates = fpBitmapCache.iterator(subReader, plan);
+								}
+								Scorer scorer = null;
+								if (candidates == null) {
+									if (weight == null) {
+										weight = searcher.createNormalizedWeight(createFingerprintQuery(plan));
+									}
+									candidates = scorer = weight.scorer(subReader, true, false);
+								}
+
+								if (candidates != null) {
+									VerificationBatch batch = new VerificationBatch(iSegment, subReader);
+									int iDoc;
+									do {
+										iDoc = candidates.nextDoc();
+										if (iDoc != DocIdSetIterator.NO_MORE_DOCS) {
+											batch.add(iDoc, scorer == null ? 1.0f : scorer.score());
+										}
+
+										// Verify a full batch or the rest
+										if (batch.isFull() || (batch.m_iCount > 0 && iDoc == DocIdSetIterator.NO_MORE_DOCS)) {
+											if (execVerification == null) {
+												verifySubstructureCandidates(batch, molQuery, iLimit - iHits, null, aiErrors);
+												iHits += collectVerifiedBatch(batch, listSubReaders, arrDocBases,
+														arrCollecting, iLimit - iHits, collector);
 											}
-											finally {
-												RDKit.cleanupMarkedObjects(iWaveIdLoop);
+											else {
+												listPending.add(execVerification.submit(createVerificationTask(
+														batch, strSmiles, iLimit, abDone, aiErrors)));
+												while (listPending.size() >= iMaxPendingBatches && iHits < iLimit) {
+													iHits += collectVerifiedBatch(getVerifiedBatch(listPending.removeFirst()),
+															listSubReaders, arrDocBases, arrCollecting, iLimit - iHits, collector);
+												}
 											}
+											batch = new VerificationBatch(iSegment, subReader);
 										}
 									}
+									while (iDoc != DocIdSetIterator.NO_MORE_DOCS && iHits < iLimit);
 								}
 							}
+
+							// Merge the results of parallel verification in order
+							while (!listPending.isEmpty() && iHits < iLimit) {
+								iHits += collectVerifiedBatch(getVerifiedBatch(listPending.removeFirst()),
+										listSubReaders, arrDocBases, arrCollecting, iLimit - iHits, collector);
+							}
 						}
 					}
-				}
-				catch (final Exception exc) {
-					LOGGER.log(Level.SEVERE, "Search SMILES could not be used.", exc);
-				}
-				finally {
-					RDKit.cleanupMarkedObjects(iWaveId);
+					catch (final RuntimeException exc) {
+						LOGGER.log(Level.SEVERE, "Search SMILES could not be used.", exc);
+					}
+					finally {
+						// Stop verification that is not needed anymore - running tasks
+						// still read from the searcher, which must not be released before
+						abDone.set(true);
+						awaitVerificationTasks(listPending);
+						scope.close();
+					}
 				}
 			}
-
-			if (iErrors > 0) {
-				LOGGER.log(Level.SEVERE, iErrors + " molecules failed substructure searching.");
+			finally {
+				releaseSearcher(searcher);
 			}
 		}
 
+		if (aiErrors.get() > 0) {
+			LOGGER.log(Level.SEVERE, aiErrors.get() + " molecules failed substructure searching.");
+		}
+
 		return collector;
 	}
 
 	/**
-	 * A convenience method to get the primary keys of the documents, which have
-	 * been found by a search and are now contained in a Collector object.
+	 * Searches molecules which match the passed in query and contain the passed
+	 * in molecule as a substructure. The substructure check is performed by a
+	 * {@link SubstructureFilter} inside the search, hence it can be combined
+	 * with any other Lucene query, e.g. a free text or name query.
 	 * 
-	 * @param collector
-	 *            Search result. Can be null.
+	 * @param strSmiles
+	 *            Smiles to search for. Must not be null.
+	 * @param query
+	 *            Query that molecules need to match in addition. Can be null
+	 *            to search all molecules.
+	 * @param iMaxHits
+	 *            Maximum number of hits to return.
 	 * 
-	 * @return Array of primary keys in the order that the collector provides.
-	 *         Can be empty, but will never be null.
+	 * @return Collector with search results or null, if index has been
+	 *         shutdown.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index could not be read.
 	 */
-	public String[] getPrimaryKeysForSearchHits(final TopDocsCollector<ScoreDoc> collector)
-			throws IOException {
-		String[] arrRet = EMPTY_RESULTS;
+	public TopDocsCollector<ScoreDoc> searchMoleculesWithSubstructure(
+			final String strSmiles, final Query query, final int iMaxHits) throws IOException {
+		TopDocsCollector<ScoreDoc> collector = null;
 
-		IndexSearcher searcher = null;
-		if (collector != null && (searcher = prepareSearcher()) != null) {
-			final TopDocs topDocs = collector.topDocs();
-			if (topDocs != null) {
-				final List<String> listPKs = new ArrayList<String>(topDocs.totalHits);
-				final ScoreDoc[] arrScoreDoc = topDocs.scoreDocs;
-				if (arrScoreDoc != null) {
-					final int iLength = arrScoreDoc.length;
-					arrRet = new String[iLength];
-					for (int i = 0; i < iLength; i++) {
-						final Document doc = searcher.doc(arrScoreDoc[i].doc);
-						if (doc != null) {
-							final Fieldable fieldPk = doc.getFieldable(FIELD_PK);
-							if (fieldPk != null) {
-								listPKs.add(fieldPk.stringValue());
-							}
+		final IndexSearcher searcher = acquireSearcher();
+		if (searcher != null) {
+			try {
+				final SubstructureFilter filter = createSubstructureFilter(strSmiles);
+				if (filter != null) {
+					try {
+						if (query == null) {
+							// All molecules score the same, hence hits are not ranked
+							collector = new UnrankedDocCollector(getCollectorSize(iMaxHits,
+									searcher.getIndexReader().numDocs()));
+							searcher.search(new MatchAllDocsQuery(), filter, collector);
+						}
+						else {
+							collector = TopScoreDocCollector.create(getCollectorSize(iMaxHits,
+									searcher.getIndexReader().numDocs()), true);
+							searcher.search(query, filter, collector);
 						}
 					}
+					catch (final RuntimeException exc) {
+						LOGGER.log(Level.SEVERE, "Search SMILES could not be used.", exc);
+					}
+					finally {
+						filter.close();
+					}
+
+					if (filter.getErrorCount() > 0) {
+						LOGGER.log(Level.SEVERE, filter.getErrorCount() + " molecules failed substructure searching.");
+					}
 				}
-				arrRet = listPKs.toArray(new String[listPKs.size()]);
+			}
+			finally {
+				releaseSearcher(searcher);
 			}
 		}
 
-		return arrRet;
+		return collector;
 	}
 
-	//
-	// Protected Methods
-	//
-
 	/**
-	 * Adds the RDKit molecule with the specified primary key to the index.
+	 * Creates a filter that accepts only molecules which contain the passed
+	 * in molecule as a substructure. It uses the fingerprint sidecar, if set.
+	 * The caller is responsible for closing the filter after the search.
 	 * 
-	 * @param strPK
-	 *            Primary key to be used for the molecule. Must not be null.
-	 * @param canonSmiles
-	 *            Canonical Smiles. Must not be null.
-	 * @param listNames
-	 *            Optional list of names to be added for synonym searches (e.g.
-	 *            NVP number). Can be null.
-	 * @param mapProperties
-	 *            Optional list of properties to be added as other fields. Can be null.
+	 * @param strSmiles
+	 *            Smiles to search for. Must not be null.
+	 * 
+	 * @return Substructure filter or null, if no query fingerprint could be
+	 *         calculated.
 	 */
-	protected void addMolecule(final String strPK, final String canonSmiles,
-			final List<String> listNames, final Map<String, Object> mapProperties)
-					throws IOException, GenericRDKitException {
-		// Pre-checks
-		if (strPK == null) {
-			throw new IllegalArgumentException("Primary key must not be null.");
-		}
-		if (canonSmiles == null || canonSmiles.trim().isEmpty()) {
-			throw new IllegalArgumentException(
-					"Canonical SMILES must not be null or empty.");
+	public SubstructureFilter createSubstructureFilter(final String strSmiles) throws IOException {
+		if (strSmiles == null) {
+			throw new IllegalArgumentException("SMILES must not be null.");
 		}
 
-		final IndexWriter writer = prepareWriter();
-		if (writer != null) {
-			// Delete existing index document with the same PK (primary key)
-			writer.deleteDocuments(new TermQuery(new Term(FIELD_PK, strPK)));
-
-			// OR:
-			// Delete existing index document with the same canonical smiles
-			// if (canonSmiles != null) {
-			// writer.deleteDocuments(new TermQuery(new Term(FIELD_CANON_SMILES,
-			// canonSmiles)));
-			// }
+		SubstructureFilter filter = null;
 
-			final BitSet fp = m_fingerprintFactory.createStructureFingerprint(canonSmiles, true);
+		final BitSet fpQuery = m_fingerprintFactory.createQueryFingerprint(strSmiles, false);
+		final IndexSearcher searcher = (fpQuery == null ? null : acquireSearcher());
+		if (searcher != null) {
+			try {
+				final FingerprintSidecar fpSidecar = m_fpSidecar;
+				final FingerprintBitmapCache fpBitmapCache = m_fpBitmapCache;
+				final FingerprintQueryPlan plan = planFingerprintQuery(
+						searcher.getIndexReader(), fpQuery, true, fpSidecar != null);
+				final Query queryScreen = createFingerprintQuery(plan);
+				final Filter filterScreen =
+						(fpBitmapCache != null && plan.getStrategy() == FingerprintQueryPlan.Strategy.INVERTED_INDEX ?
+								fpBitmapCache.createFilter(plan, queryScreen) : new QueryWrapperFilter(queryScreen));
+				filter = new SubstructureFilter(strSmiles, fpQuery, filterScreen,
+						plan.getStrategy() == FingerprintQueryPlan.Strategy.LINEAR_SCAN ? fpSidecar : null,
+						m_molColumnCache);
+			}
+			finally {
+				releaseSearcher(searcher);
+			}
+		}
 
-			// Create new index document
-			final Document doc = new Document();
-			doc.add(new Field(FIELD_PK, strPK, Store.YES,
-					Index.NOT_ANALYZED_NO_NORMS));
+		return filter;
+	}
 
-			// This is the canonical SMILES structure
-			doc.add(new Field(FIELD_SMILES, canonSmiles, Store.YES,
-					Index.NOT_ANALYZED_NO_NORMS));
+	/**
+	 * Determines how molecules would get screened by the query fingerprint of
+	 * the passed in molecule. This is meant for diagnostics.
+	 * 
+	 * @param strSmiles
+	 *            Smiles to search for. Must not be null.
+	 * @param bVerified
+	 *            True to plan the screen of a substructure search, which gets
+	 *            verified afterwards. False to plan a pure fingerprint match.
+	 * 
+	 * @return Plan or null, if index has been shutdown or no query fingerprint
+	 * 		could be calculated.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index could not be read.
+	 */
+	public FingerprintQueryPlan planFingerprintQuery(final String strSmiles, final boolean bVerified)
+			throws IOException {
+		if (strSmiles == null) {
+			throw new IllegalArgumentException("SMILES must not be null.");
+		}
 
-			// For the fingerprint we store only the bit positions as numbers
-			for (int i = fp.nextSetBit(0); i >= 0; i = fp.nextSetBit(i + 1)) {
-				doc.add(new Field(FIELD_FP, Integer.toString(i), Store.NO,
-						Index.NOT_ANALYZED_NO_NORMS, Field.TermVector.NO));
-			}
+		FingerprintQueryPlan plan = null;
 
-			// Add names for the molecule
-			if (listNames != null) {
-				for (final String name : listNames) {
-					doc.add(new Field(FIELD_NAME, name, Store.YES,
-							Index.NOT_ANALYZED_NO_NORMS));
+		final IndexSearcher searcher = acquireSearcher();
+		if (searcher != null) {
+			try {
+				final BitSet fpQuery = m_fingerprintFactory.createQueryFingerprint(strSmiles, false);
+				if (fpQuery != null) {
+					plan = planFingerprintQuery(searcher.getIndexReader(), fpQuery, bVerified, m_fpSidecar != null);
 				}
 			}
+			finally {
+				releaseSearcher(searcher);
+			}
+		}
 
-			// Add other properties for the molecule
-			if (mapProperties != null) {
-				for (final String key : mapProperties.keySet()) {
-					final Object value = mapProperties.get(key);
-					if (value != null) {
-						final String strValue = value.toString();
-						doc.add(new Field(key, strValue, Store.YES,
-								Index.NOT_ANALYZED_NO_NORMS));
+		return plan;
+	}
+
+	/**
+	 * Searches molecules with a structure fingerprint that is similar to the
+	 * structure fingerprint of the passed in molecule. The similarity is measured
+	 * as Tanimoto coefficient c / (a + b - c) with a and b being the number of
+	 * set bits of query and molecule and c the number of common bits. Molecules
+	 * are pruned before any Tanimoto coefficient gets calculated: Only molecules
+	 * with a bit count b within the bounds t * a <= b <= a / t can reach the
+	 * threshold t (Swamidass and Baldi), and they must share at least t * a bits
+	 * with the query. Hence, only molecules that have at least one of the
+	 * a - ceil(t * a) + 1 least frequent query bits set are considered. The higher
+	 * the threshold, the fewer posting lists need to be read.
+	 * 
+	 * Note: Molecules need to be indexed with the fingerprint bit count
+	 * ({@link #FIELD_FP_COUNT}), which is done since this search exists. Molecules
+	 * of older indexes are not found until they are indexed again.
+	 * 
+	 * @param strSmiles
+	 *            Smiles to search for. Must not be null.
+	 * @param dThreshold
+	 *            Minimal Tanimoto similarity. Must be > 0 and <= 1.
+	 * @param iMaxHits
+	 *            Maximum number of hits to return (top k). Must be > 0.
+	 * 
+	 * @return Collector with search results ordered by descending similarity,
+	 *         which is also used as score, or null, if index has been shutdown.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index could not be read.
+	 */
+	public TopDocsCollector<ScoreDoc> searchMoleculesBySimilarity(
+			final String strSmiles, final double dThreshold, final int iMaxHits) throws IOException {
+		// Pre-checks
+		if (strSmiles == null) {
+			throw new IllegalArgumentException("SMILES must not be null.");
+		}
+		if (dThreshold <= 0 || dThreshold > 1) {
+			throw new IllegalArgumentException("Similarity threshold must be > 0 and <= 1.");
+		}
+		if (iMaxHits <= 0) {
+			throw new IllegalArgumentException("Maximum number of hits must be > 0.");
+		}
+
+		SubstructureScoreDocCollector collector = null;
+
+		final IndexSearcher searcher = acquireSearcher();
+		if (searcher != null) {
+			try {
+				// Similarity compares fingerprints of the same kind
+				final BitSet fpQuery = m_fingerprintFactory.createStructureFingerprint(strSmiles, false);
+
+				if (fpQuery != null) {
+					collector = SubstructureScoreDocCollector.create(getCollectorSize(iMaxHits,
+							searcher.getIndexReader().numDocs()), true);
+
+					final int iQueryCount = fpQuery.cardinality();
+					if (iQueryCount > 0) {
+						final IndexReader reader = searcher.getIndexReader();
+
+						// Order the query bits by their frequency, rarest first
+						final Term[] arrTerms = new Term[iQueryCount];
+						final int[] arrDocFreqs = new int[iQueryCount];
+						final Integer[] arrOrder = new Integer[iQueryCount];
+						for (int i = fpQuery.nextSetBit(0), j = 0; i >= 0; i = fpQuery.nextSetBit(i + 1), j++) {
+							arrTerms[j] = new Term(FIELD_FP, Integer.toString(i));
+							arrDocFreqs[j] = reader.docFreq(arrTerms[j]);
+							arrOrder[j] = j;
+						}
+						Arrays.sort(arrOrder, new Comparator<Integer>() {
+							@Override
+							public int compare(final Integer i1, final Integer i2) {
+								return arrDocFreqs[i1] - arrDocFreqs[i2];
+							}
+						});
+
+						// Swamidass-Baldi bounds for the bit count of hits (with some tolerance
+						// for rounding errors, e.g. 0.7 * 10 = 7.000000000000001)
+						final int iMinCount = (int)Math.ceil(dThreshold * iQueryCount - 1e-9);
+						final int iMaxCount = (int)Math.floor(iQueryCount / dThreshold + 1e-9);
+
+						// Every hit must share at least ceil(t * a) bits with the query, hence
+						// it must contain at least one of the a - ceil(t * a) + 1 rarest query bits
+						final Term[] arrScreenTerms = new Term[iQueryCount - iMinCount + 1];
+						for (int i = 0; i < arrScreenTerms.length; i++) {
+							arrScreenTerms[i] = arrTerms[arrOrder[i]];
+						}
+
+						final List<IndexReader> listSubReaders = new ArrayList<IndexReader>();
+						ReaderUtil.gatherSubReaders(listSubReaders, reader);
+						int iDocBase = 0;
+						for (final IndexReader subReader : listSubReaders) {
+							collector.setNextReader(subReader, iDocBase);
+							searchSimilarMolecules(subReader, arrTerms, arrScreenTerms, iQueryCount,
+									iMinCount, iMaxCount, dThreshold, collector);
+							iDocBase += subReader.maxDoc();
+						}
 					}
 				}
 			}
+			finally {
+				releaseSearcher(searcher);
+			}
+		}
 
-			writer.addDocument(doc);
+		return collector;
+	}
 
-			onMoleculeAdded(strPK, canonSmiles);
-		}
-		else {
-			throw new IOException("Index writer is unavailable.");
+	/**
+	 * A convenience method to get the primary keys of the documents, which have
+	 * been found by a search and are now contained in a Collector object. If a
+	 * snapshot is open in the current thread, its searcher is used. Otherwise
+	 * the document ids get resolved against the current state of the index,
+	 * which may differ from the one that was searched, if molecules have been
+	 * added meanwhile.
+	 * 
+	 * @param collector
+	 *            Search result. Can be null.
+	 * 
+	 * @return Array of primary keys in the order that the collector provides.
+	 *         Can be empty, but will never be null.
+	 * 
+	 * @see #acquireSnapshot()
+	 */
+	public String[] getPrimaryKeysForSearchHits(final TopDocsCollector<ScoreDoc> collector)
+			throws IOException {
+		String[] arrRet = EMPTY_RESULTS;
+
+		final IndexSearcher searcher = (collector == null ? null : acquireSearcher());
+		if (searcher != null) {
+			try {
+				arrRet = getPrimaryKeys(searcher, collector);
+			}
+			finally {
+				releaseSearcher(searcher);
+			}
 		}
+
+		return arrRet;
 	}
 
 	/**
-	 * Creates the index writer, if it is currently closed.
+	 * A convenience method to get the primary keys of the documents, which have
+	 * been found by a search within the passed in snapshot.
 	 * 
-	 * @return The writer, if one is available. Null otherwise.
+	 * @param snapshot
+	 *            Snapshot the search was performed with. Must not be null and
+	 *            must not be closed.
+	 * @param collector
+	 *            Search result. Can be null.
 	 * 
-	 * @throws IOException
-	 *             Thrown, if index writer could not be opened.
+	 * @return Array of primary keys in the order that the collector provides.
+	 *         Can be empty, but will never be null.
 	 */
-	protected IndexWriter prepareWriter() throws IOException {
-		if (isShutdown()) {
-			return null;
+	public String[] getPrimaryKeysForSearchHits(final SearcherSnapshot snapshot,
+			final TopDocsCollector<ScoreDoc> collector) throws IOException {
+		if (snapshot == null) {
+			throw new IllegalArgumentException("Snapshot must not be null.");
 		}
-
-		if (m_writer == null) {
-			close(); // Close a reader
-			m_writer = new IndexWriter(m_directory,
-					m_configFactory.createIndexWriterConfig(m_analyzerFactory.createAnalyzer()));
+		if (snapshot.isClosed()) {
+			throw new IllegalArgumentException("Snapshot must not be closed.");
 		}
 
-		return m_writer;
+		return (collector == null ? EMPTY_RESULTS : getPrimaryKeys(snapshot.getSearcher(), collector));
 	}
 
 	/**
-	 * Creates the index searcher, if it is currently closed.
+	 * Turns the documents, which have been found by a search, into a
+	 * lightweight hit list. Primary keys and SMILES get only read when they
+	 * are requested, e.g. page by page, instead of for all hits at once. If a
+	 * snapshot is open in the current thread, its index reader is used.
+	 * Otherwise the document ids get resolved against the current state of
+	 * the index, like in {@link #getPrimaryKeysForSearchHits(TopDocsCollector)}.
 	 * 
-	 * @return The searcher, if one is available. Null otherwise.
+	 * @param collector
+	 *            Search result. Can be null.
+	 * 
+	 * @return Hits in the order that the collector provides, which must be
+	 *         closed when done, or null, if the collector is null or the
+	 *         index has been shutdown.
 	 * 
 	 * @throws IOException
 	 *             Thrown, if index searcher could not be opened.
+	 * 
+	 * @see #acquireSnapshot()
 	 */
-	protected IndexSearcher prepareSearcher() throws IOException {
-		if (isShutdown()) {
-			return null;
-		}
+	public ChemicalHits getHits(final TopDocsCollector<ScoreDoc> collector) throws IOException {
+		ChemicalHits hits = null;
 
-		if (m_searcher == null) {
-			close(); // Close a writer
+		final IndexSearcher searcher = (collector == null ? null : acquireSearcher());
+		if (searcher != null) {
 			try {
-				m_searcher = new IndexSearcher(IndexReader.open(m_directory));
+				hits = new ChemicalHits(this, searcher, collector.topDocs(), m_molColumnCache);
 			}
-			catch (final IndexNotFoundException exc) {
-				LOGGER.log(Level.WARNING, "The index does not exist yet.");
-				throw new IOException("The index does not exist yet.", exc);
+			finally {
+				if (hits == null) {
+					releaseSearcher(searcher);
+				}
+			}
+		}
+
+		return hits;
+	}
+
+	/**
+	 * Turns the documents, which have been found by a search within the
+	 * passed in snapshot, into a lightweight hit list. The hits keep the
+	 * index reader of the snapshot open on their own, hence they can be used
+	 * after the snapshot was closed.
+	 * 
+	 * @param snapshot
+	 *            Snapshot the search was performed with. Must not be null and
+	 *            must not be closed.
+	 * @param collector
+	 *            Search result. Can be null.
+	 * 
+	 * @return Hits in the order that the collector provides, which must be
+	 *         closed when done, or null, if the collector is null.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if the snapshot could not be accessed.
+	 */
+	public ChemicalHits getHits(final SearcherSnapshot snapshot,
+			final TopDocsCollector<ScoreDoc> collector) throws IOException {
+		if (snapshot == null) {
+			throw new IllegalArgumentException("Snapshot must not be null.");
+		}
+		if (snapshot.isClosed()) {
+			throw new IllegalArgumentException("Snapshot must not be closed.");
+		}
+
+		ChemicalHits hits = null;
+
+		if (collector != null) {
+			final IndexSearcher searcher = snapshot.getSearcher();
+			searcher.getIndexReader().incRef();
+			try {
+				hits = new ChemicalHits(this, searcher, collector.topDocs(), m_molColumnCache);
+			}
+			finally {
+				if (hits == null) {
+					releaseSearcher(searcher);
+				}
+			}
+		}
+
+		return hits;
+	}
+
+	/**
+	 * Pins the current state of the index to the calling thread. Until the
+	 * returned snapshot gets closed, all searches of this thread as well as
+	 * {@link #getPrimaryKeysForSearchHits(TopDocsCollector)} use the same
+	 * index reader, hence document ids of search hits stay valid while
+	 * molecules are added concurrently. Other threads are not affected.
+	 * The snapshot must be closed by the calling thread, as a snapshot
+	 * that is never closed keeps its reader open and stays pinned.
+	 * 
+	 * @return Snapshot, which must be closed when done, or null, if index
+	 * 		has been shutdown.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index searcher could not be opened.
+	 */
+	public SearcherSnapshot acquireSnapshot() throws IOException {
+		SearcherSnapshot snapshot = null;
+
+		final IndexSearcher searcher = acquireSearcher();
+		if (searcher != null) {
+			snapshot = new SearcherSnapshot(this, searcher, getPinnedSnapshot());
+			m_tlSnapshot.set(snapshot);
+		}
+
+		return snapshot;
+	}
+
+	//
+	// Protected Methods
+	//
+
+	/**
+	 * Returns the fields that free text searches look into, if a term does not
+	 * specify a field. These are all indexed fields except the fingerprint
+	 * and structure hash fields. The list is determined once per index reader.
+	 * 
+	 * @param reader Top level index reader. Must not be null.
+	 * 
+	 * @return Field names. Never null. The returned array must not be changed.
+	 */
+	protected String[] getFreeTextFields(final IndexReader reader) {
+		final FreeTextFields freeTextFields = m_freeTextFields;
+		if (freeTextFields != null && freeTextFields.isValidFor(reader)) {
+			return freeTextFields.m_arrFields;
+		}
+
+		final List<String> listFields = new ArrayList<String>(50);
+		final FieldInfos fields = ReaderUtil.getMergedFieldInfos(reader);
+		final Iterator<FieldInfo> fieldIterator = fields.iterator();
+		while (fieldIterator.hasNext()) {
+			final FieldInfo fieldInfo = fieldIterator.next();
+			if (fieldInfo.isIndexed && !FIELD_FP.equals(fieldInfo.name) &&
+					!FIELD_FP_COUNT.equals(fieldInfo.name) && !FIELD_SMILES_HASH.equals(fieldInfo.name)) {
+				listFields.add(fieldInfo.name);
+			}
+		}
+
+		final String[] arrFields = listFields.toArray(new String[listFields.size()]);
+		m_freeTextFields = new FreeTextFields(reader, arrFields);
+
+		return arrFields;
+	}
+
+	/**
+	 * Returns the query parser of the current thread for free text searches.
+	 * It gets recreated only, if the fields of the index have been determined
+	 * again. The analyzer of a thread is created once and reused.
+	 * 
+	 * @param reader Top level index reader. Must not be null.
+	 * 
+	 * @return Query parser. Never null. It must not be used by other threads.
+	 */
+	protected MultiFieldQueryParser getFreeTextQueryParser(final IndexReader reader) {
+		final String[] arrFields = getFreeTextFields(reader);
+
+		FreeTextQueryParser parser = m_tlQueryParser.get();
+		if (parser == null || parser.m_arrFields != arrFields) {
+			Analyzer analyzer = m_tlAnalyzer.get();
+			if (analyzer == null) {
+				analyzer = m_analyzerFactory.createAnalyzer();
+				m_tlAnalyzer.set(analyzer);
+			}
+			parser = new FreeTextQueryParser(arrFields, analyzer);
+			m_tlQueryParser.set(parser);
+		}
+
+		return parser.m_parser;
+	}
+
+	/**
+	 * Adds the RDKit molecule with the specified primary key to the index.
+	 * 
+	 * @param strPK
+	 *            Primary key to be used for the molecule. Must not be null.
+	 * @param canonSmiles
+	 *            Canonical Smiles. Must not be null.
+	 * @param listNames
+	 *            Optional list of names to be added for synonym searches (e.g.
+	 *            NVP number). Can be null.
+	 * @param mapProperties
+	 *            Optional list of properties to be added as other fields. Can be null.
+	 */
+	protected void addMolecule(final String strPK, final String canonSmiles,
+			final List<String> listNames, final Map<String, Object> mapProperties)
+					throws IOException, GenericRDKitException {
+		// Pre-checks
+		if (canonSmiles == null || canonSmiles.trim().isEmpty()) {
+			throw new IllegalArgumentException(
+					"Canonical SMILES must not be null or empty.");
+		}
+
+		addPreparedMolecule(strPK, prepareMolecule(canonSmiles), listNames, mapProperties);
+	}
+
+	/**
+	 * Creates a query for checking if all query fingerprint bit positions
+	 * are matching set bits in a molecules fingerprint.
+	 * 
+	 * @param fpQuery Query fingerprint. Must not be null.
+	 * 
+	 * @return Fingerprint query.
+	 */
+	protected Query createFingerprintQuery(final BitSet fpQuery) {
+		final BooleanQuery query = new BooleanQuery();
+		for (int i = fpQuery.nextSetBit(0); i >= 0; i = fpQuery
+				.nextSetBit(i + 1)) {
+			query.add(new BooleanClause(new TermQuery(new Term(FIELD_FP,
+					Integer.toString(i))), BooleanClause.Occur.MUST));
+		}
+
+		return query;
+	}
+
+	/**
+	 * Creates the query for the screen described by the passed in plan. The
+	 * clauses are added in the order of the plan, i.e. the rarest bit first.
+	 * 
+	 * @param plan Fingerprint query plan. Must not be null.
+	 * 
+	 * @return Fingerprint query. When verifying directly, a query that matches
+	 * 		all documents.
+	 */
+	protected Query createFingerprintQuery(final FingerprintQueryPlan plan) {
+		if (plan.getStrategy() == FingerprintQueryPlan.Strategy.DIRECT_VERIFICATION) {
+			return new MatchAllDocsQuery();
+		}
+
+		final BooleanQuery query = new BooleanQuery();
+		for (int i = 0; i < plan.getBitCount(); i++) {
+			query.add(new BooleanClause(new TermQuery(new Term(FIELD_FP,
+					Integer.toString(plan.getBit(i)))), BooleanClause.Occur.MUST));
+		}
+
+		return query;
+	}
+
+	/**
+	 * Creates the query for a fingerprint screen described by the passed in plan.
+	 * It uses the fingerprint bitmap cache, if set and if the plan intersects
+	 * posting lists.
+	 * 
+	 * @param plan Fingerprint query plan. Must not be null.
+	 * 
+	 * @return Screen query.
+	 */
+	protected Query createScreenQuery(final FingerprintQueryPlan plan) {
+		final Query query = createFingerprintQuery(plan);
+		final FingerprintBitmapCache fpBitmapCache = m_fpBitmapCache;
+
+		if (fpBitmapCache != null && plan.getStrategy() == FingerprintQueryPlan.Strategy.INVERTED_INDEX) {
+			return new ConstantScoreQuery(fpBitmapCache.createFilter(plan, query));
+		}
+
+		return query;
+	}
+
+	/**
+	 * Plans the screen of molecules by a query fingerprint based on the document
+	 * frequencies of its bits. Bits get ordered by rarity. If the screen gets
+	 * verified afterwards, bits that are set in almost all documents are dropped,
+	 * as they screen out almost nothing. Without any bit left, candidates are
+	 * verified directly. Otherwise the linear scan of the fingerprint sidecar is
+	 * chosen, if even the rarest bit is common, and the inverted index if not.
+	 * As for the fingerprint query, an empty query fingerprint matches nothing.
+	 * 
+	 * @param reader Index reader. Must not be null.
+	 * @param fpQuery Query fingerprint. Must not be null.
+	 * @param bVerified True, if candidates get verified afterwards, which allows
+	 * 		dropping bits.
+	 * @param bSidecar True, if a fingerprint sidecar is available.
+	 * 
+	 * @return Plan. Never null.
+	 * 
+	 * @throws IOException Thrown, if document frequencies could not be read.
+	 */
+	protected FingerprintQueryPlan planFingerprintQuery(final IndexReader reader, final BitSet fpQuery,
+			final boolean bVerified, final boolean bSidecar) throws IOException {
+		final int iMaxDoc = reader.maxDoc();
+		final int iBitCount = fpQuery.cardinality();
+
+		// Bits and document frequencies are packed into longs for sorting by rarity
+		final long[] arrSorted = new long[iBitCount];
+		int index = 0;
+		for (int i = fpQuery.nextSetBit(0); i >= 0; i = fpQuery.nextSetBit(i + 1)) {
+			arrSorted[index++] = ((long)reader.docFreq(new Term(FIELD_FP, Integer.toString(i))) << 32) | i;
+		}
+		Arrays.sort(arrSorted);
+
+		// Find the first bit that screens out almost nothing
+		int iKept = iBitCount;
+		if (bVerified) {
+			final long lMaxDocFreq = (long)Math.ceil(iMaxDoc * PLAN_DROP_BIT_MIN_DOC_FREQ_RATIO);
+			while (iKept > 0 && (arrSorted[iKept - 1] >>> 32) >= lMaxDocFreq) {
+				iKept--;
+			}
+		}
+
+		final int[] arrBits = new int[iKept];
+		final int[] arrDocFreqs = new int[iKept];
+		final int[] arrDroppedBits = new int[iBitCount - iKept];
+		double dEstimate = iMaxDoc;
+		for (int i = 0; i < iBitCount; i++) {
+			final int iBit = (int)arrSorted[i];
+			if (i < iKept) {
+				arrBits[i] = iBit;
+				arrDocFreqs[i] = (int)(arrSorted[i] >>> 32);
+				dEstimate = dEstimate * arrDocFreqs[i] / Math.max(1, iMaxDoc);
+			}
+			else {
+				arrDroppedBits[i - iKept] = iBit;
+			}
+		}
+
+		// Estimate assumes independent bits, but is 0 only if nothing can match
+		final long lEstimate;
+		if (iBitCount == 0 || (iKept > 0 && arrDocFreqs[0] == 0)) {
+			lEstimate = 0;
+		}
+		else {
+			lEstimate = Math.max(1, Math.round(dEstimate));
+		}
+
+		final FingerprintQueryPlan.Strategy strategy;
+		if (iBitCount > 0 && iKept == 0) {
+			strategy = FingerprintQueryPlan.Strategy.DIRECT_VERIFICATION;
+		}
+		else if (bSidecar && iKept > 0 && arrDocFreqs[0] >= iMaxDoc * PLAN_LINEAR_SCAN_MIN_DOC_FREQ_RATIO) {
+			strategy = FingerprintQueryPlan.Strategy.LINEAR_SCAN;
+		}
+		else {
+			strategy = FingerprintQueryPlan.Strategy.INVERTED_INDEX;
+		}
+
+		final FingerprintQueryPlan plan = new FingerprintQueryPlan(strategy, arrBits, arrDocFreqs,
+				arrDroppedBits, iMaxDoc, lEstimate);
+
+		if (LOGGER.isLoggable(Level.FINE)) {
+			LOGGER.fine(plan.toString());
+		}
+
+		return plan;
+	}
+
+	/**
+	 * Verifies a batch of substructure candidates of a single index segment
+	 * and records the hits in the batch. Each candidate molecule is created
+	 * from its binary form, if stored, or from its SMILES otherwise, which
+	 * are taken from the molecule column cache, if available. This
+	 * method may be called concurrently for different batches, if every
+	 * thread uses its own query molecule.
+	 * 
+	 * @param batch Candidates to be verified. Must not be null.
+	 * @param molQuery Query molecule. Must not be null.
+	 * @param iMaxHits Maximum number of hits, after which verification stops.
+	 * @param abDone Flag that gets set when the search does not need further results,
+	 * 		after which verification stops. Can be null.
+	 * @param aiErrors Counter of molecules that failed verification. Must not be null.
+	 * 
+	 * @throws IOException Thrown, if a document could not be read.
+	 */
+	protected void verifySubstructureCandidates(final VerificationBatch batch, final ROMol molQuery,
+			final int iMaxHits, final AtomicBoolean abDone, final AtomicInteger aiErrors) throws IOException {
+		final IndexReader reader = batch.m_reader;
+		final String[] arrSmiles = getSmilesColumn(m_molColumnCache, reader);
+		batch.m_iHits = 0;
+
+		for (int i = 0; i < batch.m_iCount && batch.m_iHits < iMaxHits &&
+				(abDone == null || !abDone.get()); i++) {
+			try {
+				if (hasSubstructMatch(reader, batch.m_arrDocs[i], arrSmiles, molQuery)) {
+					batch.m_arrHitIndexes[batch.m_iHits++] = i;
+				}
+			}
+			catch (final GenericRDKitException exc) {
+				aiErrors.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Creates a task that verifies a batch of substructure candidates in a worker
+	 * thread. The task creates its own query molecule and uses its own cleanup wave,
+	 * as RDKit molecules must not be shared between threads.
+	 * 
+	 * @param batch Candidates to be verified. Must not be null.
+	 * @param strSmiles Query SMILES. Must not be null.
+	 * @param iMaxHits Maximum number of hits, after which verification stops.
+	 * @param abDone Flag that gets set when the search does not need further results.
+	 * @param aiErrors Counter of molecules that failed verification. Must not be null.
+	 * 
+	 * @return Verification task. Never null.
+	 */
+	protected Callable<VerificationBatch> createVerificationTask(final VerificationBatch batch,
+			final String strSmiles, final int iMaxHits, final AtomicBoolean abDone,
+			final AtomicInteger aiErrors) {
+		return new Callable<VerificationBatch>() {
+			@Override
+			public VerificationBatch call() throws Exception {
+				if (!abDone.get()) {
+					final RDKitCleanupScope scope = RDKit.openCleanupScope();
+					try {
+						final RWMol molQuery = scope.markForCleanup(RWMol.MolFromSmiles(strSmiles, 0, false));
+						if (molQuery != null) {
+							verifySubstructureCandidates(batch, molQuery, iMaxHits, abDone, aiErrors);
+						}
+					}
+					finally {
+						scope.close();
+					}
+				}
+				return batch;
+			}
+		};
+	}
+
+	/**
+	 * Performs the similarity search for a single index segment. First all
+	 * candidates get determined, which have at least one of the screen bits set and
+	 * a bit count within the bounds. Then the common bits of all candidates with the
+	 * query get counted by walking the posting lists of all query bits, skipping
+	 * to the candidates only.
+	 * 
+	 * @param reader Segment reader. Must not be null.
+	 * @param arrTerms Terms of all query bits. Must not be null.
+	 * @param arrScreenTerms Terms of the query bits that every hit must have at least one of.
+	 * 		Must not be null.
+	 * @param iQueryCount Number of set bits of the query.
+	 * @param iMinCount Minimal bit count of a hit.
+	 * @param iMaxCount Maximal bit count of a hit.
+	 * @param dThreshold Minimal Tanimoto similarity.
+	 * @param collector Collector, which has been prepared for the segment already.
+	 * 		Must not be null.
+	 * 
+	 * @throws IOException Thrown, if the index could not be read.
+	 */
+	protected void searchSimilarMolecules(final IndexReader reader, final Term[] arrTerms,
+			final Term[] arrScreenTerms, final int iQueryCount, final int iMinCount, final int iMaxCount,
+			final double dThreshold, final SubstructureScoreDocCollector collector) throws IOException {
+		final int[] arrCounts = FieldCache.DEFAULT.getInts(reader, FIELD_FP_COUNT,
+				FieldCache.NUMERIC_UTILS_INT_PARSER);
+		final FixedBitSet candidates = new FixedBitSet(reader.maxDoc());
+		final TermDocs termDocs = reader.termDocs();
+
+		try {
+			// Screen for candidates (deleted documents are skipped by TermDocs)
+			for (final Term term : arrScreenTerms) {
+				termDocs.seek(term);
+				while (termDocs.next()) {
+					final int iDoc = termDocs.doc();
+					final int iCount = arrCounts[iDoc];
+					if (iCount >= iMinCount && iCount <= iMaxCount) {
+						candidates.set(iDoc);
+					}
+				}
+			}
+
+			final int iCandidates = candidates.cardinality();
+			if (iCandidates > 0) {
+				final int[] arrCandidates = new int[iCandidates];
+				for (int iDoc = candidates.nextSetBit(0), i = 0; iDoc >= 0;
+						iDoc = (iDoc + 1 < candidates.length() ? candidates.nextSetBit(iDoc + 1) : -1)) {
+					arrCandidates[i++] = iDoc;
+				}
+
+				// Count common bits
+				final int[] arrCommon = new int[iCandidates];
+				for (final Term term : arrTerms) {
+					termDocs.seek(term);
+					if (!termDocs.next()) {
+						continue;
+					}
+					for (int i = 0; i < iCandidates; i++) {
+						final int iCandidate = arrCandidates[i];
+						if (termDocs.doc() < iCandidate && !termDocs.skipTo(iCandidate)) {
+							break;
+						}
+						if (termDocs.doc() == iCandidate) {
+							arrCommon[i]++;
+						}
+					}
+				}
+
+				// Calculate Tanimoto similarities
+				for (int i = 0; i < iCandidates; i++) {
+					final int iCommon = arrCommon[i];
+					final int iDoc = arrCandidates[i];
+					final double dSimilarity = (double)iCommon / (iQueryCount + arrCounts[iDoc] - iCommon);
+					if (dSimilarity >= dThreshold) {
+						collector.collect(iDoc, (float)dSimilarity);
+					}
+				}
+			}
+		}
+		finally {
+			termDocs.close();
+		}
+	}
+
+	/**
+	 * Derives all values to be indexed from the passed in canonical SMILES.
+	 * If an RDKit molecule is required, it gets created only once with the
+	 * fast path for canonical SMILES (no sanitization) and is shared for
+	 * all derived values, e.g. the fingerprint and the binary molecule.
+	 * 
+	 * @param strCanonSmiles
+	 *            Canonical SMILES. Can be null.
+	 * 
+	 * @return Prepared molecule or null, if null or an empty SMILES was passed in.
+	 */
+	protected PreparedMolecule prepareMolecule(final String strCanonSmiles) {
+		PreparedMolecule molPrepared = null;
+
+		if (strCanonSmiles != null && !strCanonSmiles.trim().isEmpty()) {
+			final RDKitCleanupScope scope = RDKit.openCleanupScope();
+
+			try {
+				final MoleculeFingerprintFactory factoryMolFps = (m_fingerprintFactory instanceof MoleculeFingerprintFactory ?
+						(MoleculeFingerprintFactory)m_fingerprintFactory : null);
+				final boolean bMoleculeRequiredForFp = (factoryMolFps != null &&
+						factoryMolFps.isMoleculeRequiredForStructureFingerprint());
+				final boolean bStorePickle = m_bStoreMoleculePickles;
+				ROMol mol = null;
+				BitSet fp;
+				byte[] arrPickle = null;
+
+				if (bMoleculeRequiredForFp || bStorePickle) {
+					mol = scope.markForCleanup(
+							RWMol.MolFromSmiles(strCanonSmiles, 0, false /** Do not sanitize */));
+					mol.updatePropertyCache();
+					RDKFuncs.fastFindRings(mol);
+				}
+
+				if (bMoleculeRequiredForFp) {
+					fp = factoryMolFps.createStructureFingerprint(mol);
+				}
+				else {
+					fp = m_fingerprintFactory.createStructureFingerprint(strCanonSmiles, true);
+				}
+
+				if (bStorePickle) {
+					arrPickle = RDKit.toByteArray(mol);
+				}
+
+				if (fp == null) {
+					throw new IllegalArgumentException(
+							"Structure fingerprint could not be calculated for " + strCanonSmiles);
+				}
+
+				molPrepared = new PreparedMolecule(strCanonSmiles, fp, arrPickle);
+			}
+			finally {
+				scope.close();
+			}
+		}
+
+		return molPrepared;
+	}
+
+	/**
+	 * Creates the index document for the molecule with the specified primary key.
+	 * This does not touch the index writer, hence it can be called from multiple
+	 * threads at the same time.
+	 * 
+	 * @param strPK
+	 *            Primary key to be used for the molecule. Must not be null.
+	 * @param molPrepared
+	 *            Prepared molecule. Must not be null.
+	 * @param listNames
+	 *            Optional list of names to be added for synonym searches (e.g.
+	 *            NVP number). Can be null.
+	 * @param mapProperties
+	 *            Optional list of properties to be added as other fields. Can be null.
+	 * 
+	 * @return Index document. Never null.
+	 */
+	protected Document createMoleculeDocument(final String strPK, final PreparedMolecule molPrepared,
+			final List<String> listNames, final Map<String, Object> mapProperties) {
+		// Pre-checks
+		if (strPK == null) {
+			throw new IllegalArgumentException("Primary key must not be null.");
+		}
+		if (molPrepared == null) {
+			throw new IllegalArgumentException("Prepared molecule must not be null.");
+		}
+
+		final String canonSmiles = molPrepared.getCanonSmiles();
+		final BitSet fp = molPrepared.getFingerprint();
+
+		// Create new index document
+		final Document doc = new Document();
+		doc.add(new Field(FIELD_PK, strPK, Store.YES,
+				Index.NOT_ANALYZED_NO_NORMS));
+
+		// This is the canonical SMILES structure
+		doc.add(new Field(FIELD_SMILES, canonSmiles, Store.YES,
+				Index.NOT_ANALYZED_NO_NORMS));
+
+		// The fixed-width hash of the SMILES is used for exact structure lookups
+		final Field fieldHash = new Field(FIELD_SMILES_HASH, ChemUtils.getStructureHash(canonSmiles),
+				Store.NO, Index.NOT_ANALYZED_NO_NORMS);
+		fieldHash.setIndexOptions(FieldInfo.IndexOptions.DOCS_ONLY);
+		doc.add(fieldHash);
+
+		// Binary molecule for fast substructure verification (optional)
+		final byte[] arrPickle = molPrepared.getPickle();
+		if (arrPickle != null) {
+			doc.add(new Field(FIELD_MOL_PICKLE, arrPickle));
+		}
+
+		// For the fingerprint we store only the bit positions as numbers
+		for (int i = fp.nextSetBit(0); i >= 0; i = fp.nextSetBit(i + 1)) {
+			doc.add(new Field(FIELD_FP, Integer.toString(i), Store.NO,
+					Index.NOT_ANALYZED_NO_NORMS, Field.TermVector.NO));
+		}
+
+		// The number of set bits is used to prune similarity searches - it is only read
+		// through the field cache, hence no lower precision terms are needed for range queries
+		doc.add(new NumericField(FIELD_FP_COUNT, Integer.MAX_VALUE, Store.NO, true)
+		.setIntValue(fp.cardinality()));
+
+		// Add names for the molecule
+		if (listNames != null) {
+			for (final String name : listNames) {
+				doc.add(new Field(FIELD_NAME, name, Store.YES,
+						Index.NOT_ANALYZED_NO_NORMS));
+			}
+		}
+
+		// Add other properties for the molecule
+		if (mapProperties != null) {
+			for (final String key : mapProperties.keySet()) {
+				final Object value = mapProperties.get(key);
+				if (value != null) {
+					final String strValue = value.toString();
+					doc.add(new Field(key, strValue, Store.YES,
+							Index.NOT_ANALYZED_NO_NORMS));
+				}
+			}
+		}
+
+		return doc;
+	}
+
+	/**
+	 * Writes the passed in molecule document into the index. If a molecule with
+	 * the same primary key was already registered before, it will get removed.
+	 * If the primary key filter is enabled and rules out the key, the document
+	 * gets just added. Afterwards all index listeners get notified.
+	 * 
+	 * @param strPK
+	 *            Primary key of the molecule. Must not be null.
+	 * @param canonSmiles
+	 *            Canonical Smiles of the molecule. Used for notification only.
+	 * @param doc
+	 *            Index document created with {@link #createMoleculeDocument(String, PreparedMolecule, List, Map)}.
+	 *            Must not be null.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if the index writer is unavailable or writing failed.
+	 */
+	protected void writeMoleculeDocument(final String strPK, final String canonSmiles,
+			final Document doc) throws IOException {
+		final IndexWriter writer = prepareWriter();
+		if (writer != null) {
+			// Another write of the same key must not get between check and write
+			final boolean bUseFilter = m_bPrimaryKeyFilterEnabled;
+			final Lock lock = (bUseFilter ? m_lockPrimaryKeys.writeLock() : m_lockPrimaryKeys.readLock());
+			lock.lock();
+			try {
+				final PrimaryKeyFilter pkFilter = (bUseFilter ? preparePrimaryKeyFilter(writer) : null);
+
+				// OR:
+				// Delete existing index document with the same canonical smiles
+				// if (canonSmiles != null) {
+				// writer.deleteDocuments(new TermQuery(new Term(FIELD_CANON_SMILES,
+				// canonSmiles)));
+				// }
+
+				if (pkFilter != null && !pkFilter.addAndCheck(strPK)) {
+					// The key is new, hence there is nothing to be deleted
+					writer.addDocument(doc);
+				}
+				else {
+					// Replace existing index document with the same PK (primary key)
+					writer.updateDocument(new Term(FIELD_PK, strPK), doc);
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+			m_abChangesPending.set(true);
+
+			onMoleculeAdded(strPK, canonSmiles);
+		}
+		else {
+			throw new IOException("Index writer is unavailable.");
+		}
+	}
+
+	/**
+	 * Creates the index writer, if it is currently closed. The writer stays
+	 * open while searching, which works on near-real-time readers of it.
+	 * 
+	 * @return The writer, if one is available. Null otherwise.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index writer could not be opened.
+	 */
+	protected IndexWriter prepareWriter() throws IOException {
+		if (isShutdown()) {
+			return null;
+		}
+
+		synchronized (m_lockWriter) {
+			if (m_writer == null) {
+				m_writer = new IndexWriter(m_directory,
+						m_configFactory.createIndexWriterConfig(m_analyzerFactory.createAnalyzer()));
+			}
+
+			return m_writer;
+		}
+	}
+
+	/**
+	 * Returns the primary key filter, if it is enabled. It is created with
+	 * the keys that the passed in writer sees, if it does not exist yet.
+	 * The caller must hold the write lock of m_lockPrimaryKeys, so that
+	 * no document is in flight while the keys get read.
+	 * 
+	 * @param writer Open index writer. Must not be null.
+	 * 
+	 * @return Primary key filter or null, if disabled.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if the existing keys could not be read.
+	 */
+	private PrimaryKeyFilter preparePrimaryKeyFilter(final IndexWriter writer) throws IOException {
+		PrimaryKeyFilter pkFilter = m_pkFilter;
+
+		if (pkFilter == null && m_bPrimaryKeyFilterEnabled) {
+			synchronized (m_lockWriter) {
+				pkFilter = m_pkFilter;
+				if (pkFilter == null && m_bPrimaryKeyFilterEnabled) {
+					final IndexReader reader = IndexReader.open(writer, false);
+					try {
+						pkFilter = new PrimaryKeyFilter(reader);
+					}
+					finally {
+						reader.close();
+					}
+					m_pkFilter = pkFilter;
+					LOGGER.fine("Primary key filter created for " + reader.maxDoc() +
+							" documents with " + pkFilter.getMemoryUsage() + " bytes.");
+				}
+			}
+		}
+
+		return pkFilter;
+	}
+
+	/**
+	 * Acquires the current index searcher. It is opened, if necessary. Every
+	 * searcher acquired must be released again with {@link #releaseSearcher(IndexSearcher)}
+	 * when the search is done. The searcher and its reader stay valid until then,
+	 * even if the searcher gets refreshed or the index gets closed meanwhile.
+	 * 
+	 * @return The searcher, if one is available. Null otherwise.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index searcher could not be opened.
+	 */
+	protected IndexSearcher acquireSearcher() throws IOException {
+		if (isShutdown()) {
+			return null;
+		}
+
+		// Use the snapshot that is pinned to this thread, if any
+		final SearcherSnapshot snapshot = getPinnedSnapshot();
+		if (snapshot != null) {
+			final IndexSearcher searcher = snapshot.getSearcher();
+			searcher.getIndexReader().incRef();
+			return searcher;
+		}
+
+		// The manager or its writer may get replaced or closed concurrently, e.g. when a writer gets opened
+		for (;;) {
+			try {
+				return prepareSearcherManager().acquire();
+			}
+			catch (final AlreadyClosedException exc) {
+				if (isShutdown()) {
+					return null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Prepares the caches for a newly opened reader, before it gets used for
+	 * searches. Failures are logged only, as the caches are optional.
+	 * 
+	 * @param reader New top level index reader. Must not be null.
+	 */
+	protected void warmReader(final IndexReader reader) {
+		final KeyBloomFilterCache keyBloomFilterCache = m_keyBloomFilterCache;
+		if (keyBloomFilterCache != null) {
+			try {
+				keyBloomFilterCache.warm(reader);
+			}
+			catch (final IOException exc) {
+				LOGGER.log(Level.WARNING, "Building key Bloom filters failed.", exc);
+			}
+		}
+	}
+
+	/**
+	 * Unpins a snapshot from the current thread, if it is the one pinned last,
+	 * and releases its searcher. Called when a snapshot gets closed.
+	 * 
+	 * @param snapshot Closed snapshot. Must not be null.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if closing an outdated reader failed.
+	 */
+	void releaseSnapshot(final SearcherSnapshot snapshot) throws IOException {
+		// Restores the previous snapshot, if this one was pinned last
+		getPinnedSnapshot();
+
+		releaseSearcher(snapshot.getSearcher());
+	}
+
+	/**
+	 * Returns the snapshot that is pinned to the current thread. Snapshots that
+	 * have been closed, e.g. out of order, are skipped and unpinned.
+	 * 
+	 * @return Open snapshot or null, if none is pinned.
+	 */
+	private SearcherSnapshot getPinnedSnapshot() {
+		final SearcherSnapshot snapshotPinned = m_tlSnapshot.get();
+		SearcherSnapshot snapshot = snapshotPinned;
+
+		while (snapshot != null && snapshot.isClosed()) {
+			snapshot = snapshot.getPreviousSnapshot();
+		}
+		if (snapshot != snapshotPinned) {
+			if (snapshot == null) {
+				m_tlSnapshot.remove();
+			}
+			else {
+				m_tlSnapshot.set(snapshot);
+			}
+		}
+
+		return snapshot;
+	}
+
+	/**
+	 * Releases an index searcher that was acquired with {@link #acquireSearcher()}.
+	 * 
+	 * @param searcher Searcher to be released. Can be null.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if closing an outdated reader failed.
+	 */
+	protected void releaseSearcher(final IndexSearcher searcher) throws IOException {
+		if (searcher != null) {
+			// Same as SearcherManager.release(), but independent of the manager that was current
+			searcher.getIndexReader().decRef();
+		}
+	}
+
+	/**
+	 * Creates the searcher manager, if it is currently closed. If an index writer
+	 * is open, the manager works on near-real-time readers of it. Otherwise it
+	 * reads the index directory. It gets replaced when another writer gets opened.
+	 * 
+	 * @return The searcher manager. Never null.
+	 * 
+	 * @throws IOException
+	 *             Thrown, if index searcher could not be opened.
+	 */
+	protected SearcherManager prepareSearcherManager() throws IOException {
+		SearcherManager manager = m_searcherManager;
+		IndexWriter writer = m_writer;
+
+		if (manager == null || writer != m_writerSearched) {
+			synchronized (m_lockSearcher) {
+				manager = m_searcherManager;
+				writer = m_writer;
+				if (manager == null || writer != m_writerSearched) {
+					final SearcherManager managerOld = manager;
+					try {
+						manager = (writer != null ? new SearcherManager(writer, true, m_searcherFactory) :
+							new SearcherManager(m_directory, m_searcherFactory));
+					}
+					catch (final IndexNotFoundException exc) {
+						LOGGER.log(Level.WARNING, "The index does not exist yet.");
+						throw new IOException("The index does not exist yet.", exc);
+					}
+					m_searcherManager = manager;
+					m_writerSearched = writer;
+					m_abChangesPending.set(false);
+
+					// Running searches keep their references
+					if (managerOld != null) {
+						managerOld.close();
+					}
+
+					if (m_execRefresh == null) {
+						m_execRefresh = Executors.newSingleThreadScheduledExecutor(
+								SystemUtils.createDaemonThreadFactory("ChemicalIndex-Refresh"));
+						scheduleSearcherRefresh(m_execRefresh);
+					}
+				}
+			}
+		}
+
+		return manager;
+	}
+
+	//
+	// Private Methods
+	//
+
+	/**
+	 * Resolves the primary keys of search hits with the specified searcher.
+	 */
+	private String[] getPrimaryKeys(final IndexSearcher searcher, final TopDocsCollector<ScoreDoc> collector)
+			throws IOException {
+		String[] arrRet = EMPTY_RESULTS;
+
+		final TopDocs topDocs = collector.topDocs();
+		if (topDocs != null) {
+			final ScoreDoc[] arrScoreDoc = topDocs.scoreDocs;
+			if (arrScoreDoc != null) {
+				final int[] arrDocs = new int[arrScoreDoc.length];
+				for (int i = 0; i < arrScoreDoc.length; i++) {
+					arrDocs[i] = arrScoreDoc[i].doc;
+				}
+
+				final String[] arrPKs = new String[arrScoreDoc.length];
+				readHitFields(searcher.getIndexReader(), m_molColumnCache, arrDocs, 0, arrDocs.length,
+						null, arrPKs, null);
+
+				final List<String> listPKs = new ArrayList<String>(arrScoreDoc.length);
+				for (final String strPK : arrPKs) {
+					if (strPK != null) {
+						listPKs.add(strPK);
+					}
+				}
+				arrRet = listPKs.toArray(new String[listPKs.size()]);
+			}
+		}
+
+		return arrRet;
+	}
+
+	/**
+	 * Collects the documents of a segment that have the passed in canonical
+	 * SMILES. If all documents of the segment have a structure hash, the hash
+	 * is looked up and the SMILES of the found documents get compared to rule
+	 * out hash collisions. Otherwise the SMILES is looked up directly. Segments
+	 * are skipped, if their key Bloom filter rules out the structure.
+	 */
+	private void collectExactMatches(final IndexReader reader, final String canonSmiles,
+			final UnrankedDocCollector collector) throws IOException {
+		final boolean bHashed = isHashedSegment(reader);
+		final Term term = (bHashed ? new Term(FIELD_SMILES_HASH, ChemUtils.getStructureHash(canonSmiles)) :
+			new Term(FIELD_SMILES, canonSmiles));
+
+		// Skip the segment, if it does definitely not contain the structure
+		final KeyBloomFilterCache keyBloomFilterCache = m_keyBloomFilterCache;
+		if (keyBloomFilterCache != null && !keyBloomFilterCache.mightContain(reader, term)) {
+			return;
+		}
+
+		final TermDocs termDocs = reader.termDocs(term);
+
+		try {
+			final MoleculeColumnCache molColumnCache = m_molColumnCache;
+			final String[] arrSmiles = (bHashed && molColumnCache != null ? molColumnCache.getSmiles(reader) : null);
+			while (termDocs.next()) {
+				final int iDoc = termDocs.doc();
+				boolean bMatch = true;
+				if (bHashed) {
+					if (arrSmiles != null) {
+						bMatch = canonSmiles.equals(arrSmiles[iDoc]);
+					}
+					else {
+						final Document doc = reader.document(iDoc, FIELD_SELECTOR_SMILES);
+						bMatch = (doc != null && canonSmiles.equals(doc.get(FIELD_SMILES)));
+					}
+				}
+				if (bMatch) {
+					collector.collect(iDoc, 1.0f);
+				}
+			}
+		}
+		finally {
+			termDocs.close();
+		}
+	}
+
+	/**
+	 * Determines, if all documents of a segment have a structure hash. This is
+	 * the case, if the document frequencies of all hashes add up to the number
+	 * of documents. The result is determined once per segment core.
+	 */
+	private boolean isHashedSegment(final IndexReader reader) throws IOException {
+		final Object coreKey = reader.getCoreCacheKey();
+		Boolean bHashed = m_mapHashedSegments.get(coreKey);
+
+		if (bHashed == null) {
+			long lHashedDocs = 0;
+			if (reader.getFieldInfos().fieldInfo(FIELD_SMILES_HASH) != null) {
+				final TermEnum termEnum = reader.terms(new Term(FIELD_SMILES_HASH, ""));
+				try {
+					do {
+						final Term term = termEnum.term();
+						if (term == null || !FIELD_SMILES_HASH.equals(term.field())) {
+							break;
+						}
+						lHashedDocs += termEnum.docFreq();
+					}
+					while (termEnum.next());
+				}
+				finally {
+					termEnum.close();
+				}
+			}
+			bHashed = (lHashedDocs > 0 && lHashedDocs >= reader.maxDoc());
+			m_mapHashedSegments.put(coreKey, bHashed);
+		}
+
+		return bHashed;
+	}
+
+	/**
+	 * Schedules the next background refresh of the searcher, which runs only
+	 * if changes have been added since the last refresh.
+	 */
+	private void scheduleSearcherRefresh(final ScheduledExecutorService execRefresh) {
+		try {
+			execRefresh.schedule(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (m_abChangesPending.get()) {
+							refreshSearcher();
+						}
+					}
+					catch (final Exception exc) {
+						LOGGER.log(Level.WARNING, "Refreshing the index searcher failed.", exc);
+					}
+					scheduleSearcherRefresh(execRefresh);
+				}
+			}, m_lSearcherRefreshInterval, TimeUnit.MILLISECONDS);
+		}
+		catch (final RejectedExecutionException exc) {
+			// Executor has been shut down
+		}
+	}
+
+	/**
+	 * Passes the hits of a verified batch on to the collector. The collector
+	 * gets switched to the segment of the batch, if necessary.
+	 */
+	private int collectVerifiedBatch(final VerificationBatch batch, final List<IndexReader> listSubReaders,
+			final int[] arrDocBases, final int[] arrCollecting, final int iMaxHits,
+			final UnrankedDocCollector collector) throws IOException {
+		if (arrCollecting[0] != batch.m_iSegment) {
+			arrCollecting[0] = batch.m_iSegment;
+			collector.setNextReader(listSubReaders.get(batch.m_iSegment), arrDocBases[batch.m_iSegment]);
+		}
+
+		final int iHits = Math.min(batch.m_iHits, iMaxHits);
+		for (int i = 0; i < iHits; i++) {
+			final int index = batch.m_arrHitIndexes[i];
+			collector.collect(batch.m_arrDocs[index], batch.m_arrScores[index]);
+		}
+
+		return iHits;
+	}
+
+	/**
+	 * Determines the number of hits a collector needs to hold. Nobody can
+	 * return more hits than the query can match at all, hence large maximum
+	 * numbers of hits do not cause large allocations anymore.
+	 * 
+	 * @param iMaxHits Requested maximum number of hits. If <= 0, it is returned
+	 * 		unchanged to be rejected by the collector.
+	 * @param lUpperBound Upper bound of hits the query can match.
+	 * 
+	 * @return Size of the collector. At least 1, if iMaxHits > 0.
+	 */
+	private static int getCollectorSize(final int iMaxHits, final long lUpperBound) {
+		return (iMaxHits <= 0 ? iMaxHits : (int)Math.max(1, Math.min(iMaxHits, lUpperBound)));
+	}
+
+	/**
+	 * Cancels all verification tasks that did not start yet and waits for the
+	 * others to finish, as they read from the index reader of the search.
+	 * Results and failures of these tasks are ignored.
+	 * 
+	 * @param listPending Pending verification tasks. Must not be null.
+	 */
+	private static void awaitVerificationTasks(final List<Future<VerificationBatch>> listPending) {
+		boolean bInterrupted = false;
+
+		for (final Future<VerificationBatch> future : listPending) {
+			if (!future.cancel(false)) {
+				for (;;) {
+					try {
+						future.get();
+						break;
+					}
+					catch (final InterruptedException exc) {
+						bInterrupted = true;
+					}
+					catch (final ExecutionException exc) {
+						break;
+					}
+					catch (final CancellationException exc) {
+						break;
+					}
+				}
+			}
+		}
+
+		if (bInterrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private VerificationBatch getVerifiedBatch(final Future<VerificationBatch> future) throws IOException {
+		boolean bInterrupted = false;
+
+		try {
+			for (;;) {
+				try {
+					return future.get();
+				}
+				catch (final InterruptedException exc) {
+					bInterrupted = true;
+				}
+				catch (final ExecutionException exc) {
+					final Throwable cause = exc.getCause();
+					if (cause instanceof IOException) {
+						throw (IOException)cause;
+					}
+					if (cause instanceof RuntimeException) {
+						throw (RuntimeException)cause;
+					}
+					throw new IOException("Substructure verification failed.", cause);
+				}
+			}
+		}
+		finally {
+			if (bInterrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	//
+	// Static Package Methods
+	//
+
+	/**
+	 * Reads the primary keys and optionally the SMILES of search hits. Values
+	 * are taken from the molecule column cache, if available, and from the
+	 * stored fields otherwise. Documents are read in ascending id order to
+	 * access the stored fields sequentially.
+	 * 
+	 * @param reader Index reader the document ids belong to. Must not be null.
+	 * @param molColumnCache Molecule column cache. Can be null.
+	 * @param arrDocs Document ids of the hits. Must not be null.
+	 * @param iStart Index of the first hit to be read.
+	 * @param iEnd Index after the last hit to be read.
+	 * @param arrResolved Flags of hits that have been read already. They get
+	 * 		skipped, and the flags of read hits get set. Can be null to read all hits.
+	 * @param arrPKs Array to receive the primary keys at the indexes of the hits.
+	 * 		Must not be null.
+	 * @param arrSmiles Array to receive the SMILES at the indexes of the hits.
+	 * 		Can be null, if not needed.
+	 * 
+	 * @throws IOException Thrown, if the index could not be read.
+	 */
+	static void readHitFields(final IndexReader reader, final MoleculeColumnCache molColumnCache,
+			final int[] arrDocs, final int iStart, final int iEnd, final boolean[] arrResolved,
+			final String[] arrPKs, final String[] arrSmiles) throws IOException {
+		// Collect pending hits as (doc id << 32 | hit index) to sort them by doc id
+		final long[] arrPending = new long[iEnd - iStart];
+		int iPending = 0;
+		for (int i = iStart; i < iEnd; i++) {
+			if (arrResolved == null || !arrResolved[i]) {
+				arrPending[iPending++] = ((long)arrDocs[i] << 32) | i;
+			}
+		}
+		if (iPending == 0) {
+			return;
+		}
+		Arrays.sort(arrPending, 0, iPending);
+
+		// Columns are looked up per segment on first use
+		IndexReader[] arrSubReaders = null;
+		int[] arrDocStarts = null;
+		String[][] arrPKColumns = null;
+		String[][] arrSmilesColumns = null;
+		boolean[] arrColumnsLoaded = null;
+		if (molColumnCache != null) {
+			final List<IndexReader> listSubReaders = new ArrayList<IndexReader>();
+			ReaderUtil.gatherSubReaders(listSubReaders, reader);
+			arrSubReaders = listSubReaders.toArray(new IndexReader[listSubReaders.size()]);
+			arrDocStarts = new int[arrSubReaders.length];
+			for (int i = 0, iDocStart = 0; i < arrSubReaders.length; i++) {
+				arrDocStarts[i] = iDocStart;
+				iDocStart += arrSubReaders[i].maxDoc();
+			}
+			arrPKColumns = new String[arrSubReaders.length][];
+			arrSmilesColumns = new String[arrSubReaders.length][];
+			arrColumnsLoaded = new boolean[arrSubReaders.length];
+		}
+
+		final FieldSelector fieldSelector = (arrSmiles == null ? FIELD_SELECTOR_PK : FIELD_SELECTOR_HIT);
+		for (int i = 0; i < iPending; i++) {
+			final int index = (int)arrPending[i];
+			final int iDoc = arrDocs[index];
+			boolean bDone = false;
+
+			if (arrSubReaders != null && arrSubReaders.length > 0) {
+				final int iSub = ReaderUtil.subIndex(iDoc, arrDocStarts);
+				if (!arrColumnsLoaded[iSub]) {
+					arrColumnsLoaded[iSub] = true;
+					arrPKColumns[iSub] = molColumnCache.getPrimaryKeys(arrSubReaders[iSub]);
+					if (arrSmiles != null && arrPKColumns[iSub] != null) {
+						arrSmilesColumns[iSub] = molColumnCache.getSmiles(arrSubReaders[iSub]);
+					}
+				}
+				if (arrPKColumns[iSub] != null && (arrSmiles == null || arrSmilesColumns[iSub] != null)) {
+					arrPKs[index] = arrPKColumns[iSub][iDoc - arrDocStarts[iSub]];
+					if (arrSmiles != null) {
+						arrSmiles[index] = arrSmilesColumns[iSub][iDoc - arrDocStarts[iSub]];
+					}
+					bDone = true;
+				}
+			}
+
+			if (!bDone) {
+				final Document doc = reader.document(iDoc, fieldSelector);
+				if (doc != null) {
+					arrPKs[index] = doc.get(FIELD_PK);
+					if (arrSmiles != null) {
+						arrSmiles[index] = doc.get(FIELD_SMILES);
+					}
+				}
+			}
+
+			if (arrResolved != null) {
+				arrResolved[index] = true;
+			}
+		}
+	}
+
+	/**
+	 * Returns the SMILES column of a segment to be used for substructure
+	 * verification.
+	 * 
+	 * @param molColumnCache Molecule column cache. Can be null.
+	 * @param reader Segment reader. Must not be null.
+	 * 
+	 * @return SMILES per document id or null, if stored fields shall be read,
+	 * 		because there is no cache, the column is not available or the segment
+	 * 		stores molecule pickles.
+	 * 
+	 * @throws IOException Thrown, if the column could not be loaded.
+	 */
+	static String[] getSmilesColumn(final MoleculeColumnCache molColumnCache, final IndexReader reader)
+			throws IOException {
+		// Pickles are preferred, as molecules are created faster from them than from SMILES
+		return (molColumnCache == null || reader.getFieldInfos().fieldInfo(FIELD_MOL_PICKLE) != null ?
+				null : molColumnCache.getSmiles(reader));
+	}
+
+	/**
+	 * Checks, if the molecule of the specified document contains the query
+	 * molecule as substructure. The molecule is created from its SMILES column
+	 * value, if a column is passed in, from its binary form, if stored, or from
+	 * its stored SMILES otherwise, and freed again afterwards.
+	 * 
+	 * @param reader Index reader the document number belongs to. Must not be null.
+	 * @param iDoc Document number within the reader.
+	 * @param arrSmiles SMILES column of the reader. Can be null to read the
+	 * 		molecule from the stored fields of the document.
+	 * @param molQuery Query molecule. Must not be null.
+	 * 
+	 * @return True, if the molecule contains the query. False otherwise or if
+	 * 		the document does not contain a molecule.
+	 * 
+	 * @throws IOException Thrown, if the document could not be read.
+	 * @throws GenericRDKitException Thrown, if the molecule could not be processed.
+	 */
+	static boolean hasSubstructMatch(final IndexReader reader, final int iDoc, final String[] arrSmiles,
+			final ROMol molQuery) throws IOException, GenericRDKitException {
+		boolean bMatch = false;
+
+		byte[] arrPickle = null;
+		String smilesExisting = null;
+		if (arrSmiles != null) {
+			smilesExisting = arrSmiles[iDoc];
+		}
+		else {
+			final Document doc = reader.document(iDoc, FIELD_SELECTOR_VERIFICATION);
+			if (doc != null) {
+				arrPickle = doc.getBinaryValue(FIELD_MOL_PICKLE);
+				smilesExisting = (arrPickle == null ? doc.get(FIELD_SMILES) : null);
+			}
+		}
+
+		if (arrPickle != null || smilesExisting != null) {
+			final RDKitCleanupScope scope = RDKit.openCleanupScope();
+			try {
+				final ROMol mol = scope.markForCleanup(arrPickle != null ?
+						RDKit.toROMol(arrPickle) :
+							RWMol.MolFromSmiles(smilesExisting, 0, false));
+				mol.updatePropertyCache(false);
+				bMatch = mol.hasSubstructMatch(molQuery);
+			}
+			finally {
+				scope.close();
 			}
-			// m_searcher.setSimilarity(new ChemicalSimiliarity()); // TODO
 		}
 
-		return m_searcher;
+		return bMatch;
 	}
 
 	//
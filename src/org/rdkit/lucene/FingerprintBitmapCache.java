@@ -0,0 +1,476 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.util.OpenBitSet;
+
+/**
+ * A cache of the document bitmaps of single fingerprint bits per index segment.
+ * With this cache a fingerprint screen becomes an in-memory intersection of the
+ * bitmaps of the query bits instead of the traversal of one posting list per bit,
+ * which pays off as the same popular bits appear in most queries.
+ * 
+ * Bitmaps are kept per segment core, hence segments that did not change stay
+ * cached when the index gets reopened, and only bitmaps of new segments get
+ * loaded on demand. Bitmaps of closed segments get removed. When the memory
+ * budget is exceeded, the least recently used bitmaps get evicted. Documents
+ * deleted after a bitmap has been loaded are skipped when iterating.
+ * 
+ * @author Manuel Schwarze
+ */
+public class FingerprintBitmapCache {
+
+	//
+	// Inner Classes
+	//
+
+	/**
+	 * The key of a cached bitmap.
+	 */
+	private static class BitmapKey {
+
+		//
+		// Members
+		//
+
+		private final Object m_coreKey;
+		private final int m_iBit;
+
+		//
+		// Constructor
+		//
+
+		private BitmapKey(final Object coreKey, final int iBit) {
+			m_coreKey = coreKey;
+			m_iBit = iBit;
+		}
+
+		//
+		// Public Methods
+		//
+
+		@Override
+		public int hashCode() {
+			return 31 * m_coreKey.hashCode() + m_iBit;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof BitmapKey)) {
+				return false;
+			}
+			final BitmapKey other = (BitmapKey)obj;
+			return m_iBit == other.m_iBit && m_coreKey == other.m_coreKey;
+		}
+	}
+
+	/**
+	 * Iterator over the bits of an intersection, which skips deleted documents.
+	 */
+	private static class BitmapIterator extends DocIdSetIterator {
+
+		//
+		// Members
+		//
+
+		private final OpenBitSet m_bitmap;
+		private final IndexReader m_reader;
+		private final boolean m_bHasDeletions;
+		private int m_iDoc;
+
+		//
+		// Constructor
+		//
+
+		private BitmapIterator(final OpenBitSet bitmap, final IndexReader reader) {
+			m_bitmap = bitmap;
+			m_reader = reader;
+			m_bHasDeletions = reader.hasDeletions();
+			m_iDoc = -1;
+		}
+
+		//
+		// Public Methods
+		//
+
+		@Override
+		public int docID() {
+			return m_iDoc;
+		}
+
+		@Override
+		public int nextDoc() {
+			return advance(m_iDoc + 1);
+		}
+
+		@Override
+		public int advance(final int target) {
+			int iDoc = m_bitmap.nextSetBit(target);
+			while (iDoc >= 0 && m_bHasDeletions && m_reader.isDeleted(iDoc)) {
+				iDoc = m_bitmap.nextSetBit(iDoc + 1);
+			}
+			return m_iDoc = (iDoc < 0 ? NO_MORE_DOCS : iDoc);
+		}
+	}
+
+	//
+	// Members
+	//
+
+	/** The cached bitmaps in the order of their last use. */
+	private final LinkedHashMap<BitmapKey, OpenBitSet> m_mapBitmaps;
+
+	/** The maximum number of bytes all cached bitmaps shall occupy. */
+	private final long m_lMemoryBudget;
+
+	/** The number of bytes all cached bitmaps occupy. Guarded by m_mapBitmaps. */
+	private long m_lMemoryUsage;
+
+	/** The segment cores that are observed for getting closed. Guarded by m_mapBitmaps. */
+	private final Set<Object> m_setCores;
+
+	/** Statistics. */
+	private final AtomicLong m_lHits = new AtomicLong();
+	private final AtomicLong m_lMisses = new AtomicLong();
+	private final AtomicLong m_lEvictions = new AtomicLong();
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new fingerprint bitmap cache.
+	 * 
+	 * @param lMemoryBudget Maximum number of bytes the cached bitmaps shall
+	 * 		occupy. Must be > 0. A bitmap takes one bit per document of a segment.
+	 */
+	public FingerprintBitmapCache(final long lMemoryBudget) {
+		if (lMemoryBudget <= 0) {
+			throw new IllegalArgumentException("Memory budget must be a positive number > 0.");
+		}
+
+		m_mapBitmaps = new LinkedHashMap<BitmapKey, OpenBitSet>(256, 0.75f, true);
+		m_lMemoryBudget = lMemoryBudget;
+		m_lMemoryUsage = 0;
+		m_setCores = new HashSet<Object>();
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Creates an iterator over the documents of a single segment that have all
+	 * bits of the passed in plan set. The result is computed by intersecting
+	 * the bitmaps of the bits, starting with the rarest one. Deleted documents
+	 * are skipped. As with the inverted index, a plan without bits matches nothing.
+	 * 
+	 * @param reader Segment reader. Must not be null.
+	 * @param plan Fingerprint query plan. Must not be null.
+	 * 
+	 * @return Iterator or null, if the reader is not a segment reader and the inverted
+	 * 		index needs to be used instead.
+	 * 
+	 * @throws IOException Thrown, if a bitmap could not be loaded.
+	 */
+	public DocIdSetIterator iterator(final IndexReader reader, final FingerprintQueryPlan plan)
+			throws IOException {
+		DocIdSetIterator iterator = null;
+
+		if (reader instanceof SegmentReader) {
+			if (plan.getBitCount() == 0) {
+				iterator = DocIdSet.EMPTY_DOCIDSET.iterator();
+			}
+			else {
+				final SegmentReader segmentReader = (SegmentReader)reader;
+				final OpenBitSet result = (OpenBitSet)getBitmap(segmentReader, plan.getBit(0)).clone();
+				for (int i = 1; i < plan.getBitCount(); i++) {
+					result.intersect(getBitmap(segmentReader, plan.getBit(i)));
+				}
+				iterator = new BitmapIterator(result, reader);
+			}
+		}
+
+		return iterator;
+	}
+
+	/**
+	 * Creates a filter that screens documents based on the cached bitmaps.
+	 * 
+	 * @param plan Fingerprint query plan. Must not be null.
+	 * @param queryFallback Query to be used for readers that are no segment readers.
+	 * 		Must not be null.
+	 * 
+	 * @return Filter. Never null.
+	 */
+	public Filter createFilter(final FingerprintQueryPlan plan, final Query queryFallback) {
+		final Filter filterFallback = new QueryWrapperFilter(queryFallback);
+
+		return new Filter() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public DocIdSet getDocIdSet(final IndexReader reader) throws IOException {
+				if (!(reader instanceof SegmentReader)) {
+					return filterFallback.getDocIdSet(reader);
+				}
+				return new DocIdSet() {
+					@Override
+					public DocIdSetIterator iterator() throws IOException {
+						return FingerprintBitmapCache.this.iterator(reader, plan);
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Removes all cached bitmaps.
+	 */
+	public void clear() {
+		synchronized (m_mapBitmaps) {
+			m_mapBitmaps.clear();
+			m_lMemoryUsage = 0;
+		}
+	}
+
+	/**
+	 * Returns the number of cache hits so far.
+	 * 
+	 * @return Number of bitmaps found in the cache.
+	 */
+	public long getHitCount() {
+		return m_lHits.get();
+	}
+
+	/**
+	 * Returns the number of cache misses so far.
+	 * 
+	 * @return Number of bitmaps that had to be loaded from the index.
+	 */
+	public long getMissCount() {
+		return m_lMisses.get();
+	}
+
+	/**
+	 * Returns the number of evictions so far.
+	 * 
+	 * @return Number of bitmaps that have been removed to stay within the memory budget.
+	 */
+	public long getEvictionCount() {
+		return m_lEvictions.get();
+	}
+
+	/**
+	 * Returns the share of bitmap requests that were served from the cache.
+	 * 
+	 * @return Hit rate between 0 and 1. 0, if there were no requests yet.
+	 */
+	public double getHitRate() {
+		final long lHits = m_lHits.get();
+		final long lRequests = lHits + m_lMisses.get();
+		return (lRequests == 0 ? 0.0d : (double)lHits / lRequests);
+	}
+
+	/**
+	 * Returns the number of bytes the cached bitmaps occupy.
+	 * 
+	 * @return Memory usage in bytes.
+	 */
+	public long getMemoryUsage() {
+		synchronized (m_mapBitmaps) {
+			return m_lMemoryUsage;
+		}
+	}
+
+	/**
+	 * Returns the maximum number of bytes the cached bitmaps shall occupy.
+	 * 
+	 * @return Memory budget in bytes.
+	 */
+	public long getMemoryBudget() {
+		return m_lMemoryBudget;
+	}
+
+	/**
+	 * Returns the number of cached bitmaps.
+	 * 
+	 * @return Number of bitmaps.
+	 */
+	public int getBitmapCount() {
+		synchronized (m_mapBitmaps) {
+			return m_mapBitmaps.size();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("FingerprintBitmapCache { bitmaps=%d, memory=%d/%d bytes, hits=%d, misses=%d, hitRate=%.1f%%, evictions=%d }",
+				getBitmapCount(), getMemoryUsage(), m_lMemoryBudget, m_lHits.get(), m_lMisses.get(),
+				getHitRate() * 100.0d, m_lEvictions.get());
+	}
+
+	//
+	// Protected Methods
+	//
+
+	/**
+	 * Returns the bitmap of a fingerprint bit of a segment. It is loaded from
+	 * the postings of the segment, if it is not cached yet. The returned bitmap
+	 * must not be changed.
+	 * 
+	 * @param reader Segment reader. Must not be null.
+	 * @param iBit Fingerprint bit.
+	 * 
+	 * @return Bitmap with one bit per document of the segment. Never null.
+	 * 
+	 * @throws IOException Thrown, if the postings could not be read.
+	 */
+	protected OpenBitSet getBitmap(final SegmentReader reader, final int iBit) throws IOException {
+		final BitmapKey key = new BitmapKey(reader.getCoreCacheKey(), iBit);
+
+		synchronized (m_mapBitmaps) {
+			final OpenBitSet bitmap = m_mapBitmaps.get(key);
+			if (bitmap != null) {
+				m_lHits.incrementAndGet();
+				return bitmap;
+			}
+		}
+
+		// Load outside of the lock, so that other searches are not blocked
+		m_lMisses.incrementAndGet();
+		final OpenBitSet bitmap = loadBitmap(reader, iBit);
+		final long lBytes = bitmap.getNumWords() * 8L;
+
+		synchronized (m_mapBitmaps) {
+			if (lBytes <= m_lMemoryBudget && !m_mapBitmaps.containsKey(key)) {
+				if (m_setCores.add(key.m_coreKey)) {
+					reader.addCoreClosedListener(new SegmentReader.CoreClosedListener() {
+						@Override
+						public void onClose(final SegmentReader owner) {
+							removeCore(owner.getCoreCacheKey());
+						}
+					});
+				}
+
+				m_mapBitmaps.put(key, bitmap);
+				m_lMemoryUsage += lBytes;
+
+				// Evict least recently used bitmaps
+				final Iterator<Map.Entry<BitmapKey, OpenBitSet>> iterator = m_mapBitmaps.entrySet().iterator();
+				while (m_lMemoryUsage > m_lMemoryBudget && iterator.hasNext()) {
+					final Map.Entry<BitmapKey, OpenBitSet> entry = iterator.next();
+					if (entry.getKey() != key) {
+						m_lMemoryUsage -= entry.getValue().getNumWords() * 8L;
+						iterator.remove();
+						m_lEvictions.incrementAndGet();
+					}
+				}
+			}
+		}
+
+		return bitmap;
+	}
+
+	/**
+	 * Loads the bitmap of a fingerprint bit from the postings of a segment.
+	 * Deleted documents are included, as the bitmap is shared by all readers
+	 * of the segment, which may see different deletions. They get skipped
+	 * when iterating.
+	 * 
+	 * @param reader Segment reader. Must not be null.
+	 * @param iBit Fingerprint bit.
+	 * 
+	 * @return Bitmap with one bit per document of the segment. Never null.
+	 * 
+	 * @throws IOException Thrown, if the postings could not be read.
+	 */
+	protected OpenBitSet loadBitmap(final SegmentReader reader, final int iBit) throws IOException {
+		final OpenBitSet bitmap = new OpenBitSet(reader.maxDoc());
+		final TermDocs termDocs = reader.rawTermDocs(new Term(ChemicalIndex.FIELD_FP, Integer.toString(iBit)));
+
+		try {
+			final int[] arrDocs = new int[256];
+			final int[] arrFreqs = new int[256];
+			int iCount;
+			while ((iCount = termDocs.read(arrDocs, arrFreqs)) > 0) {
+				for (int i = 0; i < iCount; i++) {
+					bitmap.fastSet(arrDocs[i]);
+				}
+			}
+		}
+		finally {
+			termDocs.close();
+		}
+
+		return bitmap;
+	}
+
+	//
+	// Private Methods
+	//
+
+	private void removeCore(final Object coreKey) {
+		synchronized (m_mapBitmaps) {
+			m_setCores.remove(coreKey);
+			final Iterator<Map.Entry<BitmapKey, OpenBitSet>> iterator = m_mapBitmaps.entrySet().iterator();
+			while (iterator.hasNext()) {
+				final Map.Entry<BitmapKey, OpenBitSet> entry = iterator.next();
+				if (entry.getKey().m_coreKey == coreKey) {
+					m_lMemoryUsage -= entry.getValue().getNumWords() * 8L;
+					iterator.remove();
+				}
+			}
+		}
+	}
+}
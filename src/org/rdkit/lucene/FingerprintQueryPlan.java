@@ -0,0 +1,236 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene;
+
+import java.util.Arrays;
+
+/**
+ * The plan for screening molecules by a query fingerprint, as it gets determined
+ * by {@link ChemicalIndex} based on the document frequencies of the single
+ * fingerprint bits. It contains the bits to be used for the screen ordered by
+ * rarity, the bits that have been dropped as they would screen out almost nothing,
+ * the estimated number of candidates and the chosen screening strategy.
+ * Plans are immutable and are mainly exposed for diagnostics.
+ * 
+ * @author Manuel Schwarze
+ */
+public class FingerprintQueryPlan {
+
+	//
+	// Enumeration
+	//
+
+	/**
+	 * The strategies to screen molecules.
+	 */
+	public enum Strategy {
+
+		/** Intersects the postings of the fingerprint bits in the inverted index. */
+		INVERTED_INDEX,
+
+		/** Scans the packed fingerprints of the fingerprint sidecar. */
+		LINEAR_SCAN,
+
+		/** Does not screen at all, but verifies all molecules directly. */
+		DIRECT_VERIFICATION
+	}
+
+	//
+	// Members
+	//
+
+	/** The chosen strategy. */
+	private final Strategy m_strategy;
+
+	/** The bits to be used for the screen, ordered by ascending document frequency. */
+	private final int[] m_arrBits;
+
+	/** The document frequencies of the bits to be used for the screen. */
+	private final int[] m_arrDocFreqs;
+
+	/** The bits that are not used for the screen. */
+	private final int[] m_arrDroppedBits;
+
+	/** The number of documents the plan was determined for, including deleted ones. */
+	private final int m_iMaxDoc;
+
+	/** The estimated number of candidates that pass the screen. */
+	private final long m_lEstimatedCandidates;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new fingerprint query plan.
+	 * 
+	 * @param strategy Screening strategy. Must not be null.
+	 * @param arrBits Bits to be used for the screen, ordered by ascending document
+	 * 		frequency. Must not be null.
+	 * @param arrDocFreqs Document frequencies of the bits to be used for the screen.
+	 * 		Must not be null and must have the same length as arrBits.
+	 * @param arrDroppedBits Bits that are not used for the screen. Must not be null.
+	 * @param iMaxDoc Number of documents the plan was determined for, including
+	 * 		deleted ones.
+	 * @param lEstimatedCandidates Estimated number of candidates that pass the screen.
+	 */
+	public FingerprintQueryPlan(final Strategy strategy, final int[] arrBits, final int[] arrDocFreqs,
+			final int[] arrDroppedBits, final int iMaxDoc, final long lEstimatedCandidates) {
+		if (strategy == null) {
+			throw new IllegalArgumentException("Strategy must not be null.");
+		}
+		if (arrBits == null || arrDocFreqs == null || arrBits.length != arrDocFreqs.length) {
+			throw new IllegalArgumentException("Bits and document frequencies must not be null and must match.");
+		}
+		if (arrDroppedBits == null) {
+			throw new IllegalArgumentException("Dropped bits must not be null.");
+		}
+
+		m_strategy = strategy;
+		m_arrBits = arrBits;
+		m_arrDocFreqs = arrDocFreqs;
+		m_arrDroppedBits = arrDroppedBits;
+		m_iMaxDoc = iMaxDoc;
+		m_lEstimatedCandidates = lEstimatedCandidates;
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Returns the chosen screening strategy.
+	 * 
+	 * @return Strategy. Never null.
+	 */
+	public Strategy getStrategy() {
+		return m_strategy;
+	}
+
+	/**
+	 * Returns the bits to be used for the screen, ordered by ascending document
+	 * frequency, i.e. the most selective bit first.
+	 * 
+	 * @return Copy of the bits. Never null.
+	 */
+	public int[] getBits() {
+		return m_arrBits.clone();
+	}
+
+	/**
+	 * Returns the document frequencies of the bits to be used for the screen.
+	 * 
+	 * @return Copy of the document frequencies in the same order as {@link #getBits()}.
+	 * 		Never null.
+	 */
+	public int[] getDocFreqs() {
+		return m_arrDocFreqs.clone();
+	}
+
+	/**
+	 * Returns the number of bits to be used for the screen.
+	 * 
+	 * @return Number of bits.
+	 */
+	public int getBitCount() {
+		return m_arrBits.length;
+	}
+
+	/**
+	 * Returns the bit to be used for the screen at the specified position.
+	 * 
+	 * @param index Position in the order of ascending document frequency.
+	 * 
+	 * @return Bit index.
+	 */
+	public int getBit(final int index) {
+		return m_arrBits[index];
+	}
+
+	/**
+	 * Returns the bits of the query fingerprint that are not used for the
+	 * screen, because almost all molecules have them set.
+	 * 
+	 * @return Copy of the dropped bits. Never null.
+	 */
+	public int[] getDroppedBits() {
+		return m_arrDroppedBits.clone();
+	}
+
+	/**
+	 * Returns the number of documents the plan was determined for.
+	 * 
+	 * @return Number of documents including deleted ones.
+	 */
+	public int getMaxDoc() {
+		return m_iMaxDoc;
+	}
+
+	/**
+	 * Returns the estimated number of candidates that pass the screen. The
+	 * estimate assumes independent bits, but never exceeds the document
+	 * frequency of the rarest bit. If it is 0, no molecule can match.
+	 * 
+	 * @return Estimated number of candidates.
+	 */
+	public long getEstimatedCandidates() {
+		return m_lEstimatedCandidates;
+	}
+
+	/**
+	 * Returns the maximum number of candidates that can pass the screen. This
+	 * is the document frequency of the rarest bit or the number of documents,
+	 * if there are no bits to screen with.
+	 * 
+	 * @return Upper bound of the number of candidates including deleted ones.
+	 */
+	public int getMaxCandidates() {
+		return (m_arrDocFreqs.length == 0 ? m_iMaxDoc : m_arrDocFreqs[0]);
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder("FingerprintQueryPlan { strategy=").append(m_strategy)
+				.append(", estimatedCandidates=").append(m_lEstimatedCandidates)
+				.append(", maxDoc=").append(m_iMaxDoc)
+				.append(", bits=[");
+		for (int i = 0; i < m_arrBits.length; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(m_arrBits[i]).append(':').append(m_arrDocFreqs[i]);
+		}
+		return sb.append("], droppedBits=").append(Arrays.toString(m_arrDroppedBits))
+				.append(" }").toString();
+	}
+}
@@ -0,0 +1,1111 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.ReaderUtil;
+import org.rdkit.lucene.util.SystemUtils;
+
+/**
+ * A sidecar store that keeps the structure fingerprints of all documents of a
+ * chemical index in packed form - a fixed number of 64 bit words per document -
+ * in files next to the index, one file per index segment. The files are
+ * memory-mapped, hence the fingerprints live off-heap and get paged in by the
+ * operating system. With the sidecar the fingerprint screen becomes a sequential
+ * AND-mask scan over the mapped words, which is split into chunks that run in
+ * parallel, instead of intersecting one posting list per query bit.
+ * 
+ * As index segments never change, the sidecar file of a segment gets created
+ * once from the fingerprint postings when it is needed first. It stays valid
+ * as long as the segment exists, and is reused when the index is opened again.
+ * A checksum of the postings in the file header makes sure that a file is only
+ * reused for the same segment content, not for a segment with the same name of
+ * another or a re-created index.
+ * Deleted documents are skipped when scanning. Files of segments that are gone,
+ * e.g. after merges, get removed when a new sidecar file is created.
+ * 
+ * A single mapping is limited to 2 GB, which limits the number of documents
+ * per segment (e.g. about 8 million documents for 2048 bit fingerprints).
+ * 
+ * @author Manuel Schwarze
+ */
+public class FingerprintSidecar {
+
+	//
+	// Inner Classes
+	//
+
+	/**
+	 * The packed fingerprints of a single index segment.
+	 */
+	static class SegmentFingerprints {
+
+		//
+		// Members
+		//
+
+		private final String m_strSegmentName;
+		private final int m_iMaxDoc;
+		private final int m_iWordsPerDoc;
+		private final LongBuffer m_buffer;
+
+		//
+		// Constructor
+		//
+
+		private SegmentFingerprints(final String strSegmentName, final int iMaxDoc,
+				final int iWordsPerDoc, final LongBuffer buffer) {
+			m_strSegmentName = strSegmentName;
+			m_iMaxDoc = iMaxDoc;
+			m_iWordsPerDoc = iWordsPerDoc;
+			m_buffer = buffer;
+		}
+
+		//
+		// Public Methods
+		//
+
+		/**
+		 * Scans the specified document range for fingerprints, which contain
+		 * all query bits.
+		 * 
+		 * @param iFromDoc First document (inclusive).
+		 * @param iToDoc Last document (exclusive).
+		 * @param arrQueryWords Non-zero query words.
+		 * @param arrQueryWordIndexes Word indexes of the non-zero query words.
+		 * 
+		 * @return Matching (segment local) document ids in increasing order. Never null.
+		 */
+		public int[] scan(final int iFromDoc, final int iToDoc, final long[] arrQueryWords,
+				final int[] arrQueryWordIndexes) {
+			final int iQueryWords = arrQueryWords.length;
+			int[] arrHits = new int[64];
+			int iHits = 0;
+			int iOffset = iFromDoc * m_iWordsPerDoc;
+
+			for (int iDoc = iFromDoc; iDoc < iToDoc; iDoc++, iOffset += m_iWordsPerDoc) {
+				boolean bMatch = true;
+				for (int i = 0; i < iQueryWords && bMatch; i++) {
+					final long lQueryWord = arrQueryWords[i];
+					bMatch = ((m_buffer.get(iOffset + arrQueryWordIndexes[i]) & lQueryWord) == lQueryWord);
+				}
+				if (bMatch) {
+					if (iHits == arrHits.length) {
+						arrHits = ArrayUtil.grow(arrHits, iHits + 1);
+					}
+					arrHits[iHits++] = iDoc;
+				}
+			}
+
+			return Arrays.copyOf(arrHits, iHits);
+		}
+
+		@Override
+		public String toString() {
+			return "SegmentFingerprints { segment=" + m_strSegmentName + ", maxDoc=" + m_iMaxDoc + " }";
+		}
+	}
+
+	/**
+	 * The number and a checksum of the fingerprint postings of a segment, which
+	 * identify the content of the segment.
+	 */
+	static class SegmentSignature {
+
+		//
+		// Members
+		//
+
+		private long m_lPostings = 0;
+		private long m_lHash = 0xcbf29ce484222325L;
+
+		//
+		// Public Methods
+		//
+
+		/**
+		 * Returns the checksum of all postings added so far.
+		 * 
+		 * @return Checksum.
+		 */
+		public long getChecksum() {
+			// 64 bit finalizer of MurmurHash3
+			long lHash = m_lHash;
+			lHash ^= (lHash >>> 33);
+			lHash *= 0xff51afd7ed558ccdL;
+			lHash ^= (lHash >>> 33);
+			lHash *= 0xc4ceb9fe1a85ec53L;
+			lHash ^= (lHash >>> 33);
+			return lHash;
+		}
+
+		//
+		// Private Methods
+		//
+
+		private void addBit(final int iBit) {
+			add(-1 - iBit);
+		}
+
+		private void addDoc(final int iDoc) {
+			add(iDoc);
+			m_lPostings++;
+		}
+
+		private void add(final int iValue) {
+			// FNV-1a over the values
+			m_lHash ^= iValue;
+			m_lHash *= 0x100000001b3L;
+		}
+	}
+
+	/**
+	 * The sidecar of a segment that is loaded at most once. Its name protects
+	 * its file from being deleted as obsolete meanwhile.
+	 */
+	private static class PendingSegment extends FutureTask<SegmentFingerprints> {
+
+		//
+		// Members
+		//
+
+		private final String m_strSegmentName;
+
+		//
+		// Constructor
+		//
+
+		private PendingSegment(final String strSegmentName, final Callable<SegmentFingerprints> loader) {
+			super(loader);
+			m_strSegmentName = strSegmentName;
+		}
+	}
+
+	/**
+	 * The non-zero words of a query fingerprint, which are the only ones that
+	 * need to be checked.
+	 */
+	private static class QueryMask {
+
+		//
+		// Members
+		//
+
+		private final long[] m_arrWords;
+		private final int[] m_arrWordIndexes;
+
+		//
+		// Constructor
+		//
+
+		private QueryMask(final long[] arrWords, final int[] arrWordIndexes) {
+			m_arrWords = arrWords;
+			m_arrWordIndexes = arrWordIndexes;
+		}
+	}
+
+	/**
+	 * Iterator that scans the fingerprints of a segment lazily block by block.
+	 */
+	private static class ScanIterator extends DocIdSetIterator {
+
+		//
+		// Members
+		//
+
+		private final SegmentFingerprints m_fps;
+		private final QueryMask m_mask;
+		private final IndexReader m_reader;
+		private final boolean m_bHasDeletions;
+		private int[] m_arrHits;
+		private int m_iHitIndex;
+		private int m_iNextBlockStart;
+		private int m_iDoc;
+
+		//
+		// Constructor
+		//
+
+		private ScanIterator(final SegmentFingerprints fps, final QueryMask mask, final IndexReader reader) {
+			m_fps = fps;
+			m_mask = mask;
+			m_reader = reader;
+			m_bHasDeletions = reader.hasDeletions();
+			m_arrHits = new int[0];
+			m_iHitIndex = 0;
+			m_iNextBlockStart = 0;
+			m_iDoc = -1;
+		}
+
+		//
+		// Public Methods
+		//
+
+		@Override
+		public int docID() {
+			return m_iDoc;
+		}
+
+		@Override
+		public int nextDoc() {
+			for (;;) {
+				while (m_iHitIndex >= m_arrHits.length) {
+					if (m_iNextBlockStart >= m_fps.m_iMaxDoc) {
+						return m_iDoc = NO_MORE_DOCS;
+					}
+					final int iToDoc = Math.min(m_fps.m_iMaxDoc, m_iNextBlockStart + SCAN_BLOCK_DOCS);
+					m_arrHits = m_fps.scan(m_iNextBlockStart, iToDoc, m_mask.m_arrWords, m_mask.m_arrWordIndexes);
+					m_iHitIndex = 0;
+					m_iNextBlockStart = iToDoc;
+				}
+
+				final int iDoc = m_arrHits[m_iHitIndex++];
+				if (!m_bHasDeletions || !m_reader.isDeleted(iDoc)) {
+					return m_iDoc = iDoc;
+				}
+			}
+		}
+
+		@Override
+		public int advance(final int target) {
+			int iDoc;
+			while ((iDoc = nextDoc()) < target) {
+				// Skip
+			}
+			return iDoc;
+		}
+	}
+
+	/**
+	 * Scorer that delivers the same score for all documents found by the sidecar screen.
+	 * It iterates over the hits of a block of a single segment, skipping deleted documents.
+	 */
+	private static class ConstantScorer extends Scorer {
+
+		//
+		// Members
+		//
+
+		private final IndexReader m_reader;
+		private final boolean m_bHasDeletions;
+		private int[] m_arrHits;
+		private int m_iHitIndex;
+		private int m_iDoc;
+
+		//
+		// Constructor
+		//
+
+		private ConstantScorer(final IndexReader reader) {
+			super((Weight)null);
+			m_reader = reader;
+			m_bHasDeletions = reader.hasDeletions();
+			reset(new int[0]);
+		}
+
+		//
+		// Public Methods
+		//
+
+		@Override
+		public float score() {
+			return 1.0f;
+		}
+
+		@Override
+		public int docID() {
+			return m_iDoc;
+		}
+
+		@Override
+		public int nextDoc() {
+			while (m_iHitIndex < m_arrHits.length) {
+				final int iDoc = m_arrHits[m_iHitIndex++];
+				if (!m_bHasDeletions || !m_reader.isDeleted(iDoc)) {
+					return m_iDoc = iDoc;
+				}
+			}
+			return m_iDoc = NO_MORE_DOCS;
+		}
+
+		@Override
+		public int advance(final int target) {
+			int iDoc;
+			while ((iDoc = nextDoc()) < target) {
+				// Skip
+			}
+			return iDoc;
+		}
+
+		//
+		// Private Methods
+		//
+
+		/**
+		 * Continues with the next block of hits of the segment.
+		 * 
+		 * @param arrHits Ascending document ids. Must not be null.
+		 */
+		private void reset(final int[] arrHits) {
+			m_arrHits = arrHits;
+			m_iHitIndex = 0;
+			m_iDoc = -1;
+		}
+	}
+
+	//
+	// Constants
+	//
+
+	/** The logger instance. */
+	private static final Logger LOGGER = Logger.getLogger(FingerprintSidecar.class.getName());
+
+	/** File extension of sidecar files. */
+	public static final String FILE_EXTENSION = ".fps";
+
+	/** The minimal number of documents that get scanned by a single task. */
+	public static final int MIN_DOCS_PER_TASK = 16384;
+
+	/** The number of documents that get scanned at once by lazy iterators. */
+	private static final int SCAN_BLOCK_DOCS = 1024;
+
+	/** Magic number at the beginning of sidecar files ("RDKitFPS"). */
+	private static final long MAGIC = 0x52444B6974465053L;
+
+	/** Size of the file header: Magic, number of bits, maxDoc, number of postings, checksum. */
+	private static final int HEADER_BYTES = 32;
+
+	//
+	// Members
+	//
+
+	private final File m_directory;
+
+	private final int m_iNumBits;
+
+	private final int m_iWordsPerDoc;
+
+	private final int m_iThreads;
+
+	private final ExecutorService m_executor;
+
+	/** Sidecars of open segments by core cache key, also while loading. Access must be synchronized. */
+	private final Map<Object, PendingSegment> m_mapSegments;
+
+	private volatile boolean m_bClosed;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new fingerprint sidecar store.
+	 * 
+	 * @param directory Directory for the sidecar files. It will be created, if it
+	 * 		does not exist yet. It should not be the index directory itself. Must not be null.
+	 * @param iNumBits Number of bits of the structure fingerprints in the index. Must be > 0.
+	 * @param iThreads Number of threads to scan fingerprints in parallel. If 1, the
+	 * 		scan happens in the searching thread. Must be > 0.
+	 * 
+	 * @throws IOException Thrown, if the directory could not be created.
+	 */
+	public FingerprintSidecar(final File directory, final int iNumBits, final int iThreads) throws IOException {
+		// Pre-checks
+		if (directory == null) {
+			throw new IllegalArgumentException("Sidecar directory must not be null.");
+		}
+		if (iNumBits <= 0) {
+			throw new IllegalArgumentException("Number of bits must be a positive number > 0.");
+		}
+		if (iThreads <= 0) {
+			throw new IllegalArgumentException("Number of threads must be a positive number > 0.");
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Sidecar directory " + directory + " could not be created.");
+		}
+
+		m_directory = directory;
+		m_iNumBits = iNumBits;
+		m_iWordsPerDoc = (iNumBits + 63) >>> 6;
+		m_iThreads = iThreads;
+		m_executor = (iThreads > 1 ? Executors.newFixedThreadPool(iThreads,
+				SystemUtils.createDaemonThreadFactory("Fingerprint Sidecar Scan")) : null);
+		m_mapSegments = new HashMap<Object, PendingSegment>();
+		m_bClosed = false;
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Returns the directory of the sidecar files.
+	 * 
+	 * @return Sidecar directory.
+	 */
+	public File getDirectory() {
+		return m_directory;
+	}
+
+	/**
+	 * Returns the number of fingerprint bits this sidecar supports.
+	 * 
+	 * @return Number of bits.
+	 */
+	public int getNumBits() {
+		return m_iNumBits;
+	}
+
+	/**
+	 * Returns the number of threads used for scanning.
+	 * 
+	 * @return Number of threads.
+	 */
+	public int getThreadCount() {
+		return m_iThreads;
+	}
+
+	/**
+	 * Finds all documents of the passed in reader with fingerprints that contain
+	 * all bits of the query fingerprint and passes them on to the collector,
+	 * segment by segment in increasing document order. All documents get the
+	 * same score. As with the inverted index, an empty query fingerprint does not
+	 * match any document.
+	 * 
+	 * @param reader Top level index reader. Must not be null.
+	 * @param fpQuery Query fingerprint. Must not be null.
+	 * @param collector Collector for the results. Must not be null.
+	 * 
+	 * @return True, if the screen was done. False, if the reader does not consist of
+	 * 		segment readers and the inverted index needs to be used instead.
+	 * 
+	 * @throws IOException Thrown, if a sidecar file could not be created or read.
+	 */
+	public boolean screen(final IndexReader reader, final BitSet fpQuery, final Collector collector)
+			throws IOException {
+		// Pre-checks
+		if (reader == null) {
+			throw new IllegalArgumentException("Index reader must not be null.");
+		}
+		if (fpQuery == null) {
+			throw new IllegalArgumentException("Query fingerprint must not be null.");
+		}
+		if (collector == null) {
+			throw new IllegalArgumentException("Collector must not be null.");
+		}
+		if (fpQuery.length() > m_iNumBits) {
+			throw new IllegalArgumentException("Query fingerprint has more bits than the sidecar supports (" +
+					m_iNumBits + ").");
+		}
+		if (m_bClosed) {
+			throw new IOException("Fingerprint sidecar has been closed.");
+		}
+
+		final List<IndexReader> listSubReaders = new ArrayList<IndexReader>();
+		ReaderUtil.gatherSubReaders(listSubReaders, reader);
+		final Set<String> setSegmentNames = new HashSet<String>();
+		for (final IndexReader subReader : listSubReaders) {
+			if (!(subReader instanceof SegmentReader)) {
+				return false;
+			}
+			setSegmentNames.add(((SegmentReader)subReader).getSegmentName());
+		}
+
+		final QueryMask mask = createQueryMask(fpQuery);
+		if (mask == null) {
+			return true;
+		}
+
+		// Scan all segments in chunks
+		final int iSegments = listSubReaders.size();
+		final List<List<Future<int[]>>> listSegmentResults = new ArrayList<List<Future<int[]>>>(iSegments);
+		for (final IndexReader subReader : listSubReaders) {
+			final SegmentFingerprints fps = getSegmentFingerprints((SegmentReader)subReader, setSegmentNames);
+			final int iMaxDoc = fps.m_iMaxDoc;
+			final int iDocsPerTask = Math.max(MIN_DOCS_PER_TASK, (iMaxDoc + m_iThreads - 1) / m_iThreads);
+			final List<Future<int[]>> listResults = new ArrayList<Future<int[]>>();
+
+			for (int iFrom = 0; iFrom < iMaxDoc; iFrom += iDocsPerTask) {
+				final int iFromDoc = iFrom;
+				final int iToDoc = Math.min(iMaxDoc, iFrom + iDocsPerTask);
+				final Callable<int[]> task = new Callable<int[]>() {
+					@Override
+					public int[] call() {
+						return fps.scan(iFromDoc, iToDoc, mask.m_arrWords, mask.m_arrWordIndexes);
+					}
+				};
+
+				if (m_executor == null) {
+					final FutureTask<int[]> future = new FutureTask<int[]>(task);
+					future.run();
+					listResults.add(future);
+				}
+				else {
+					listResults.add(m_executor.submit(task));
+				}
+			}
+
+			listSegmentResults.add(listResults);
+		}
+
+		// Collect results in document order
+		int iDocBase = 0;
+		for (int iSegment = 0; iSegment < iSegments; iSegment++) {
+			final IndexReader subReader = listSubReaders.get(iSegment);
+			final ConstantScorer scorer = new ConstantScorer(subReader);
+			collector.setNextReader(subReader, iDocBase);
+			collector.setScorer(scorer);
+
+			for (final Future<int[]> future : listSegmentResults.get(iSegment)) {
+				scorer.reset(getResult(future));
+				int iDoc;
+				while ((iDoc = scorer.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+					collector.collect(iDoc);
+				}
+			}
+
+			iDocBase += subReader.maxDoc();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Creates an iterator over the documents of a single segment with fingerprints
+	 * that contain all bits of the query fingerprint. The scan happens lazily block
+	 * by block in the calling thread, so that a consumer that stops early does not
+	 * pay for scanning the rest of the segment. Deleted documents are skipped.
+	 * As with the inverted index, an empty query fingerprint does not match any document.
+	 * 
+	 * @param reader Segment reader. Must not be null.
+	 * @param fpQuery Query fingerprint. Must not be null.
+	 * 
+	 * @return Iterator or null, if the reader is not a segment reader and the inverted
+	 * 		index needs to be used instead.
+	 * 
+	 * @throws IOException Thrown, if the sidecar file could not be created or read.
+	 */
+	public DocIdSetIterator iterator(final IndexReader reader, final BitSet fpQuery) throws IOException {
+		// Pre-checks
+		if (reader == null) {
+			throw new IllegalArgumentException("Index reader must not be null.");
+		}
+		if (fpQuery == null) {
+			throw new IllegalArgumentException("Query fingerprint must not be null.");
+		}
+		if (fpQuery.length() > m_iNumBits) {
+			throw new IllegalArgumentException("Query fingerprint has more bits than the sidecar supports (" +
+					m_iNumBits + ").");
+		}
+		if (m_bClosed) {
+			throw new IOException("Fingerprint sidecar has been closed.");
+		}
+
+		DocIdSetIterator iterator = null;
+
+		if (reader instanceof SegmentReader) {
+			final QueryMask mask = createQueryMask(fpQuery);
+			if (mask == null) {
+				iterator = DocIdSet.EMPTY_DOCIDSET.iterator();
+			}
+			else {
+				iterator = new ScanIterator(getSegmentFingerprints((SegmentReader)reader, null), mask, reader);
+			}
+		}
+
+		return iterator;
+	}
+
+	/**
+	 * Stops the scanning threads. The sidecar files stay on disk and get reused
+	 * by a new sidecar store for the same index. After calling this method
+	 * this sidecar store cannot be used anymore.
+	 */
+	public void close() {
+		m_bClosed = true;
+		if (m_executor != null) {
+			m_executor.shutdownNow();
+		}
+		synchronized (m_mapSegments) {
+			m_mapSegments.clear();
+		}
+	}
+
+	//
+	// Protected Methods
+	//
+
+	/**
+	 * Returns the sidecar of the specified segment. It gets mapped or created, if
+	 * not done yet. This happens only once per segment, outside of the lock of
+	 * the segment map, so that screens of other segments are not blocked meanwhile.
+	 * Concurrent requests for the same segment wait for the first one.
+	 * 
+	 * @param reader Segment reader. Must not be null.
+	 * @param setActiveSegmentNames Names of all segments that are currently in use.
+	 * 		Used to remove obsolete sidecar files. Can be null to keep all files.
+	 * 
+	 * @return Sidecar of the segment. Never null.
+	 * 
+	 * @throws IOException Thrown, if the sidecar file could not be created or mapped.
+	 */
+	protected SegmentFingerprints getSegmentFingerprints(final SegmentReader reader,
+			final Set<String> setActiveSegmentNames) throws IOException {
+		final Object key = reader.getCoreCacheKey();
+		PendingSegment future;
+		boolean bLoad = false;
+
+		synchronized (m_mapSegments) {
+			future = m_mapSegments.get(key);
+			if (future == null) {
+				future = new PendingSegment(reader.getSegmentName(), new Callable<SegmentFingerprints>() {
+					@Override
+					public SegmentFingerprints call() throws IOException {
+						return loadSegmentFingerprints(reader, setActiveSegmentNames);
+					}
+				});
+				m_mapSegments.put(key, future);
+				bLoad = true;
+			}
+		}
+
+		if (bLoad) {
+			reader.addCoreClosedListener(new SegmentReader.CoreClosedListener() {
+				@Override
+				public void onClose(final SegmentReader owner) {
+					synchronized (m_mapSegments) {
+						m_mapSegments.remove(owner.getCoreCacheKey());
+					}
+				}
+			});
+			future.run();
+		}
+
+		try {
+			return getResult(future);
+		}
+		catch (final IOException exc) {
+			// Let the next request try again
+			synchronized (m_mapSegments) {
+				if (m_mapSegments.get(key) == future) {
+					m_mapSegments.remove(key);
+				}
+			}
+			throw exc;
+		}
+	}
+
+	/**
+	 * Maps the sidecar file of the specified segment, if it exists and belongs to
+	 * the segment. Otherwise the file gets created.
+	 * 
+	 * @param reader Segment reader. Must not be null.
+	 * @param setActiveSegmentNames Names of all segments that are currently in use.
+	 * 		Used to remove obsolete sidecar files. Can be null to keep all files.
+	 * 
+	 * @return Sidecar of the segment. Never null.
+	 * 
+	 * @throws IOException Thrown, if the sidecar file could not be created or mapped.
+	 */
+	protected SegmentFingerprints loadSegmentFingerprints(final SegmentReader reader,
+			final Set<String> setActiveSegmentNames) throws IOException {
+		final String strSegmentName = reader.getSegmentName();
+		final File file = new File(m_directory, strSegmentName + FILE_EXTENSION);
+		SegmentFingerprints fps = null;
+
+		if (file.isFile()) {
+			fps = mapSidecarFile(file, strSegmentName, reader.maxDoc(), computeSignature(reader));
+		}
+
+		if (fps == null) {
+			final SegmentSignature signature = createSidecarFile(file, reader);
+			fps = mapSidecarFile(file, strSegmentName, reader.maxDoc(), signature);
+			if (fps == null) {
+				throw new IOException("Created sidecar file " + file + " is invalid.");
+			}
+			if (setActiveSegmentNames != null) {
+				deleteObsoleteSidecarFiles(setActiveSegmentNames);
+			}
+		}
+
+		return fps;
+	}
+
+	/**
+	 * Computes the signature of the fingerprint postings of the specified segment,
+	 * including the ones of deleted documents. It identifies the content of the
+	 * segment, so that sidecar files of another or an older index with the same
+	 * segment name get detected.
+	 * 
+	 * @param reader Segment reader. Must not be null.
+	 * 
+	 * @return Signature of the segment. Never null.
+	 * 
+	 * @throws IOException Thrown, if the index could not be read or if it contains
+	 * 		fingerprint bits that are not supported by this sidecar.
+	 */
+	protected SegmentSignature computeSignature(final SegmentReader reader) throws IOException {
+		final SegmentSignature signature = new SegmentSignature();
+		final int[] arrDocs = new int[256];
+		final int[] arrFreqs = new int[256];
+		final TermEnum termEnum = reader.terms(new Term(ChemicalIndex.FIELD_FP, ""));
+		TermDocs termDocs = null;
+
+		try {
+			do {
+				final Term term = termEnum.term();
+				if (term == null || !ChemicalIndex.FIELD_FP.equals(term.field())) {
+					break;
+				}
+				signature.addBit(getBit(term));
+
+				// Raw postings include documents deleted for this reader
+				if (termDocs == null) {
+					termDocs = reader.rawTermDocs(term);
+				}
+				else {
+					termDocs.seek(termEnum);
+				}
+				int iCount;
+				while ((iCount = termDocs.read(arrDocs, arrFreqs)) > 0) {
+					for (int i = 0; i < iCount; i++) {
+						signature.addDoc(arrDocs[i]);
+					}
+				}
+			}
+			while (termEnum.next());
+		}
+		finally {
+			if (termDocs != null) {
+				termDocs.close();
+			}
+			termEnum.close();
+		}
+
+		return signature;
+	}
+
+	/**
+	 * Creates the sidecar file for the specified segment based on its fingerprint
+	 * postings. The file gets written under a temporary name first. It contains
+	 * the fingerprints of deleted documents as well, as it is shared by all readers
+	 * of the segment, which may see different deletions. Deleted documents are
+	 * skipped when scanning.
+	 * 
+	 * @param file Sidecar file. Must not be null.
+	 * @param reader Segment reader. Must not be null.
+	 * 
+	 * @return Signature of the segment, which is recorded in the header. Never null.
+	 * 
+	 * @throws IOException Thrown, if the file could not be written.
+	 */
+	protected SegmentSignature createSidecarFile(final File file, final SegmentReader reader)
+			throws IOException {
+		final long lStart = System.currentTimeMillis();
+		final int iMaxDoc = reader.maxDoc();
+		final long lBytes = getFileSize(iMaxDoc);
+		final SegmentSignature signature = new SegmentSignature();
+		final File fileTemp = File.createTempFile(file.getName(), ".tmp", m_directory);
+
+		try {
+			final RandomAccessFile raf = new RandomAccessFile(fileTemp, "rw");
+			try {
+				raf.setLength(lBytes);
+				final MappedByteBuffer buffer = raf.getChannel().map(MapMode.READ_WRITE, 0, lBytes);
+				buffer.order(ByteOrder.nativeOrder());
+				buffer.position(HEADER_BYTES);
+				final LongBuffer words = buffer.slice().order(ByteOrder.nativeOrder()).asLongBuffer();
+
+				final TermEnum termEnum = reader.terms(new Term(ChemicalIndex.FIELD_FP, ""));
+				TermDocs termDocs = null;
+				try {
+					do {
+						final Term term = termEnum.term();
+						if (term == null || !ChemicalIndex.FIELD_FP.equals(term.field())) {
+							break;
+						}
+						final int iBit = getBit(term);
+						final int iWord = iBit >>> 6;
+						final long lMask = (1L << iBit);
+						signature.addBit(iBit);
+
+						// Raw postings include documents deleted for this reader
+						if (termDocs == null) {
+							termDocs = reader.rawTermDocs(term);
+						}
+						else {
+							termDocs.seek(termEnum);
+						}
+						while (termDocs.next()) {
+							final int iDoc = termDocs.doc();
+							final int index = iDoc * m_iWordsPerDoc + iWord;
+							words.put(index, words.get(index) | lMask);
+							signature.addDoc(iDoc);
+						}
+					}
+					while (termEnum.next());
+				}
+				finally {
+					if (termDocs != null) {
+						termDocs.close();
+					}
+					termEnum.close();
+				}
+
+				// The header is written last, so that an incomplete file never matches
+				buffer.putLong(0, MAGIC);
+				buffer.putInt(8, m_iNumBits);
+				buffer.putInt(12, iMaxDoc);
+				buffer.putLong(16, signature.m_lPostings);
+				buffer.putLong(24, signature.getChecksum());
+				buffer.force();
+			}
+			finally {
+				raf.close();
+			}
+
+			if (file.exists() && !file.delete()) {
+				throw new IOException("Outdated sidecar file " + file + " could not be deleted.");
+			}
+			if (!fileTemp.renameTo(file)) {
+				throw new IOException("Sidecar file " + file + " could not be created.");
+			}
+		}
+		finally {
+			if (fileTemp.exists() && !fileTemp.delete()) {
+				fileTemp.deleteOnExit();
+			}
+		}
+
+		LOGGER.log(Level.INFO, "Created fingerprint sidecar " + file.getName() + " for " + iMaxDoc +
+				" documents in " + (System.currentTimeMillis() - lStart) + " ms.");
+
+		return signature;
+	}
+
+	/**
+	 * Maps the specified sidecar file read-only, if it exists and matches the segment.
+	 * 
+	 * @param file Sidecar file. Must not be null.
+	 * @param strSegmentName Segment name.
+	 * @param iMaxDoc Expected maxDoc of the segment.
+	 * @param signature Expected signature of the segment. Must not be null.
+	 * 
+	 * @return Mapped sidecar or null, if the file does not exist or does not match.
+	 * 
+	 * @throws IOException Thrown, if the file could not be mapped.
+	 */
+	protected SegmentFingerprints mapSidecarFile(final File file, final String strSegmentName,
+			final int iMaxDoc, final SegmentSignature signature) throws IOException {
+		SegmentFingerprints fps = null;
+		final long lBytes = getFileSize(iMaxDoc);
+
+		if (file.isFile() && file.length() == lBytes) {
+			final RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				final MappedByteBuffer buffer = raf.getChannel().map(MapMode.READ_ONLY, 0, lBytes);
+				buffer.order(ByteOrder.nativeOrder());
+				if (buffer.getLong(0) == MAGIC && buffer.getInt(8) == m_iNumBits &&
+						buffer.getInt(12) == iMaxDoc && buffer.getLong(16) == signature.m_lPostings &&
+						buffer.getLong(24) == signature.getChecksum()) {
+					buffer.position(HEADER_BYTES);
+					fps = new SegmentFingerprints(strSegmentName, iMaxDoc, m_iWordsPerDoc,
+							buffer.slice().order(ByteOrder.nativeOrder()).asLongBuffer());
+				}
+				else {
+					LOGGER.log(Level.INFO, "Fingerprint sidecar " + file.getName() + " is outdated.");
+				}
+			}
+			finally {
+				// The mapping stays valid after closing the file
+				raf.close();
+			}
+		}
+
+		return fps;
+	}
+
+	/**
+	 * Deletes sidecar files of segments that are not in use anymore.
+	 * Failures are ignored, e.g. if a file is still mapped on Windows.
+	 * 
+	 * @param setActiveSegmentNames Names of all segments that are currently in use.
+	 */
+	protected void deleteObsoleteSidecarFiles(final Set<String> setActiveSegmentNames) {
+		// Keep the files of segments of other readers, which are mapped or get created right now
+		final Set<String> setKeep = new HashSet<String>(setActiveSegmentNames);
+		synchronized (m_mapSegments) {
+			for (final PendingSegment future : m_mapSegments.values()) {
+				setKeep.add(future.m_strSegmentName);
+			}
+		}
+
+		final File[] arrFiles = m_directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(final File file) {
+				final String strName = file.getName();
+				return strName.endsWith(FILE_EXTENSION) && !setKeep.contains(
+						strName.substring(0, strName.length() - FILE_EXTENSION.length()));
+			}
+		});
+
+		if (arrFiles != null) {
+			for (final File file : arrFiles) {
+				if (!file.delete()) {
+					LOGGER.log(Level.FINE, "Obsolete fingerprint sidecar " + file.getName() + " could not be deleted.");
+				}
+			}
+		}
+	}
+
+	//
+	// Private Methods
+	//
+
+	private QueryMask createQueryMask(final BitSet fpQuery) {
+		final long[] arrWords = new long[m_iWordsPerDoc];
+		for (int i = fpQuery.nextSetBit(0); i >= 0; i = fpQuery.nextSetBit(i + 1)) {
+			arrWords[i >>> 6] |= (1L << i);
+		}
+
+		int iQueryWords = 0;
+		for (final long lWord : arrWords) {
+			if (lWord != 0) {
+				iQueryWords++;
+			}
+		}
+
+		QueryMask mask = null;
+		if (iQueryWords > 0) {
+			final long[] arrQueryWords = new long[iQueryWords];
+			final int[] arrQueryWordIndexes = new int[iQueryWords];
+			for (int i = 0, j = 0; i < arrWords.length; i++) {
+				if (arrWords[i] != 0) {
+					arrQueryWords[j] = arrWords[i];
+					arrQueryWordIndexes[j++] = i;
+				}
+			}
+			mask = new QueryMask(arrQueryWords, arrQueryWordIndexes);
+		}
+
+		return mask;
+	}
+
+	private long getFileSize(final int iMaxDoc) throws IOException {
+		final long lBytes = HEADER_BYTES + (long)iMaxDoc * m_iWordsPerDoc * 8;
+		if (lBytes > Integer.MAX_VALUE) {
+			throw new IOException("Segment with " + iMaxDoc + " documents is too large for a fingerprint sidecar.");
+		}
+		return lBytes;
+	}
+
+	private int getBit(final Term term) throws IOException {
+		int iBit;
+
+		try {
+			iBit = Integer.parseInt(term.text());
+		}
+		catch (final NumberFormatException exc) {
+			throw new IOException("Invalid fingerprint term '" + term.text() + "'.", exc);
+		}
+
+		if (iBit < 0 || iBit >= m_iNumBits) {
+			throw new IOException("Fingerprint bit " + iBit + " is not supported by a sidecar with " +
+					m_iNumBits + " bits.");
+		}
+
+		return iBit;
+	}
+
+	private static <T> T getResult(final Future<T> future) throws IOException {
+		boolean bInterrupted = false;
+
+		try {
+			for (;;) {
+				try {
+					return future.get();
+				}
+				catch (final InterruptedException exc) {
+					bInterrupted = true;
+				}
+				catch (final ExecutionException exc) {
+					final Throwable cause = exc.getCause();
+					if (cause instanceof IOException) {
+						throw (IOException)cause;
+					}
+					throw new IOException("Fingerprint sidecar scan failed.", cause);
+				}
+			}
+		}
+		finally {
+			if (bInterrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
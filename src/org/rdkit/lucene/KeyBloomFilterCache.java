@@ -0,0 +1,456 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.util.ReaderUtil;
+
+/**
+ * A cache of Bloom filters over the terms of key fields per index segment,
+ * i.e. the primary keys and the structure hashes. A Bloom filter answers
+ * membership queries in memory. It never misses a term that exists, but may
+ * report terms that do not exist with the configured false positive rate.
+ * Lookups of keys that are not in the index, e.g. registration checks for new
+ * compounds, can be answered without seeking the terms dictionary of a segment.
+ * 
+ * Filters are kept per segment core and get built when a reader gets opened
+ * or on first use. Segments that did not change keep their filters when the
+ * index gets reopened, and filters of closed segments get removed. Deleted
+ * documents only cause false positives. When the memory budget is exceeded,
+ * the least recently used filters get evicted.
+ * 
+ * @author Manuel Schwarze
+ */
+public class KeyBloomFilterCache {
+
+	//
+	// Inner Classes
+	//
+
+	/**
+	 * The key of a cached filter.
+	 */
+	private static class FilterKey {
+
+		//
+		// Members
+		//
+
+		private final Object m_coreKey;
+		private final String m_strField;
+
+		//
+		// Constructor
+		//
+
+		private FilterKey(final Object coreKey, final String strField) {
+			m_coreKey = coreKey;
+			m_strField = strField;
+		}
+
+		//
+		// Public Methods
+		//
+
+		@Override
+		public int hashCode() {
+			return 31 * m_coreKey.hashCode() + m_strField.hashCode();
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof FilterKey)) {
+				return false;
+			}
+			final FilterKey other = (FilterKey)obj;
+			return m_coreKey == other.m_coreKey && m_strField.equals(other.m_strField);
+		}
+	}
+
+	//
+	// Constants
+	//
+
+	/** The default false positive rate of the filters. */
+	public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01d;
+
+	/** The key fields filters get built for when a reader gets opened. */
+	private static final String[] KEY_FIELDS = new String[] {
+		ChemicalIndex.FIELD_PK, ChemicalIndex.FIELD_SMILES_HASH
+	};
+
+	//
+	// Members
+	//
+
+	/** The cached filters in the order of their last use. */
+	private final LinkedHashMap<FilterKey, BloomFilter> m_mapFilters;
+
+	/** The false positive rate the filters get built for. */
+	private final double m_dFalsePositiveRate;
+
+	/** The maximum number of bytes all cached filters shall occupy. */
+	private final long m_lMemoryBudget;
+
+	/** The number of bytes all cached filters occupy. Guarded by m_mapFilters. */
+	private long m_lMemoryUsage;
+
+	/** The filters that exceed the memory budget on their own. Guarded by m_mapFilters. */
+	private final Set<FilterKey> m_setRejected;
+
+	/** The segment cores that are observed for getting closed. Guarded by m_mapFilters. */
+	private final Set<Object> m_setCores;
+
+	/** Statistics. */
+	private final AtomicLong m_lLookups = new AtomicLong();
+	private final AtomicLong m_lNegatives = new AtomicLong();
+	private final AtomicLong m_lEvictions = new AtomicLong();
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new Bloom filter cache with the default false positive rate.
+	 * 
+	 * @param lMemoryBudget Maximum number of bytes the cached filters shall
+	 * 		occupy. Must be > 0. At a false positive rate of 1% a filter takes
+	 * 		about 1.2 bytes per document of a segment.
+	 */
+	public KeyBloomFilterCache(final long lMemoryBudget) {
+		this(DEFAULT_FALSE_POSITIVE_RATE, lMemoryBudget);
+	}
+
+	/**
+	 * Creates a new Bloom filter cache.
+	 * 
+	 * @param dFalsePositiveRate Rate of lookups of non-existing keys that
+	 * 		cannot be answered by a filter. Must be > 0 and < 1. Lower rates
+	 * 		need more memory.
+	 * @param lMemoryBudget Maximum number of bytes the cached filters shall
+	 * 		occupy. Must be > 0.
+	 */
+	public KeyBloomFilterCache(final double dFalsePositiveRate, final long lMemoryBudget) {
+		if (!(dFalsePositiveRate > 0.0d && dFalsePositiveRate < 1.0d)) {
+			throw new IllegalArgumentException("False positive rate must be > 0 and < 1.");
+		}
+		if (lMemoryBudget <= 0) {
+			throw new IllegalArgumentException("Memory budget must be a positive number > 0.");
+		}
+
+		m_mapFilters = new LinkedHashMap<FilterKey, BloomFilter>(16, 0.75f, true);
+		m_dFalsePositiveRate = dFalsePositiveRate;
+		m_lMemoryBudget = lMemoryBudget;
+		m_lMemoryUsage = 0;
+		m_setRejected = new HashSet<FilterKey>();
+		m_setCores = new HashSet<Object>();
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Builds the filters of the key fields for all segments of the passed in
+	 * reader that do not have them yet. This is called when a new reader gets
+	 * opened, so that lookups do not need to wait for it.
+	 * 
+	 * @param reader Top level index reader. Must not be null.
+	 * 
+	 * @throws IOException Thrown, if the terms could not be read.
+	 */
+	public void warm(final IndexReader reader) throws IOException {
+		final List<IndexReader> listSubReaders = new ArrayList<IndexReader>();
+		ReaderUtil.gatherSubReaders(listSubReaders, reader);
+		for (final IndexReader subReader : listSubReaders) {
+			for (final String strField : KEY_FIELDS) {
+				if (subReader.getFieldInfos().fieldInfo(strField) != null) {
+					getFilter(subReader, strField);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Determines, if a term may exist in a segment. If false is returned, the
+	 * term does definitely not exist.
+	 * 
+	 * @param reader Segment reader. Must not be null.
+	 * @param term Term of a key field. Must not be null.
+	 * 
+	 * @return False, if the term does not exist. True, if it may exist or
+	 * 		there is no filter, because the reader is not a segment reader or
+	 * 		the filter exceeds the memory budget.
+	 * 
+	 * @throws IOException Thrown, if the filter could not be built.
+	 */
+	public boolean mightContain(final IndexReader reader, final Term term) throws IOException {
+		final BloomFilter filter = getFilter(reader, term.field());
+		final boolean bMightContain = (filter == null || filter.mightContain(term.text()));
+
+		m_lLookups.incrementAndGet();
+		if (!bMightContain) {
+			m_lNegatives.incrementAndGet();
+		}
+
+		return bMightContain;
+	}
+
+	/**
+	 * Determines, if a term may exist in any segment of a reader. If false is
+	 * returned, the term does definitely not exist.
+	 * 
+	 * @param reader Top level index reader. Must not be null.
+	 * @param term Term of a key field. Must not be null.
+	 * 
+	 * @return False, if the term does not exist. True, if it may exist.
+	 * 
+	 * @throws IOException Thrown, if a filter could not be built.
+	 */
+	public boolean mightContainAny(final IndexReader reader, final Term term) throws IOException {
+		final List<IndexReader> listSubReaders = new ArrayList<IndexReader>();
+		ReaderUtil.gatherSubReaders(listSubReaders, reader);
+		for (final IndexReader subReader : listSubReaders) {
+			if (mightContain(subReader, term)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Removes all cached filters.
+	 */
+	public void clear() {
+		synchronized (m_mapFilters) {
+			m_mapFilters.clear();
+			m_setRejected.clear();
+			m_lMemoryUsage = 0;
+		}
+	}
+
+	/**
+	 * Returns the false positive rate the filters get built for.
+	 * 
+	 * @return False positive rate.
+	 */
+	public double getFalsePositiveRate() {
+		return m_dFalsePositiveRate;
+	}
+
+	/**
+	 * Returns the number of segment lookups so far.
+	 * 
+	 * @return Number of lookups.
+	 */
+	public long getLookupCount() {
+		return m_lLookups.get();
+	}
+
+	/**
+	 * Returns the number of segment lookups so far that have been answered
+	 * negatively, i.e. without accessing the index.
+	 * 
+	 * @return Number of definite misses.
+	 */
+	public long getNegativeCount() {
+		return m_lNegatives.get();
+	}
+
+	/**
+	 * Returns the number of evictions so far.
+	 * 
+	 * @return Number of filters that have been removed to stay within the memory budget.
+	 */
+	public long getEvictionCount() {
+		return m_lEvictions.get();
+	}
+
+	/**
+	 * Returns the number of bytes the cached filters occupy.
+	 * 
+	 * @return Memory usage in bytes.
+	 */
+	public long getMemoryUsage() {
+		synchronized (m_mapFilters) {
+			return m_lMemoryUsage;
+		}
+	}
+
+	/**
+	 * Returns the maximum number of bytes the cached filters shall occupy.
+	 * 
+	 * @return Memory budget in bytes.
+	 */
+	public long getMemoryBudget() {
+		return m_lMemoryBudget;
+	}
+
+	/**
+	 * Returns the number of cached filters.
+	 * 
+	 * @return Number of filters.
+	 */
+	public int getFilterCount() {
+		synchronized (m_mapFilters) {
+			return m_mapFilters.size();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("KeyBloomFilterCache { filters=%d, memory=%d/%d bytes, falsePositiveRate=%s, lookups=%d, negatives=%d, evictions=%d }",
+				getFilterCount(), getMemoryUsage(), m_lMemoryBudget, m_dFalsePositiveRate,
+				m_lLookups.get(), m_lNegatives.get(), m_lEvictions.get());
+	}
+
+	//
+	// Private Methods
+	//
+
+	/**
+	 * Returns the filter of a field of a segment. It is built from the terms
+	 * of the segment, if it is not cached yet.
+	 * 
+	 * @return Filter or null, if the reader is not a segment reader or the
+	 * 		filter exceeds the memory budget.
+	 */
+	private BloomFilter getFilter(final IndexReader reader, final String strField) throws IOException {
+		if (!(reader instanceof SegmentReader)) {
+			return null;
+		}
+
+		final SegmentReader segmentReader = (SegmentReader)reader;
+		final FilterKey key = new FilterKey(segmentReader.getCoreCacheKey(), strField);
+
+		synchronized (m_mapFilters) {
+			final BloomFilter filter = m_mapFilters.get(key);
+			if (filter != null || m_setRejected.contains(key)) {
+				return filter;
+			}
+		}
+
+		// Build outside of the lock, so that other lookups are not blocked
+		final BloomFilter filter = new BloomFilter(reader.maxDoc(), m_dFalsePositiveRate);
+		final boolean bFits = (filter.getMemoryUsage() <= m_lMemoryBudget);
+		if (bFits) {
+			final TermEnum termEnum = reader.terms(new Term(strField, ""));
+			try {
+				do {
+					final Term term = termEnum.term();
+					if (term == null || !strField.equals(term.field())) {
+						break;
+					}
+					filter.add(term.text());
+				}
+				while (termEnum.next());
+			}
+			finally {
+				termEnum.close();
+			}
+		}
+
+		synchronized (m_mapFilters) {
+			if (m_setCores.add(key.m_coreKey)) {
+				segmentReader.addCoreClosedListener(new SegmentReader.CoreClosedListener() {
+					@Override
+					public void onClose(final SegmentReader owner) {
+						removeCore(owner.getCoreCacheKey());
+					}
+				});
+			}
+
+			if (!bFits) {
+				m_setRejected.add(key);
+				return null;
+			}
+
+			final BloomFilter filterExisting = m_mapFilters.get(key);
+			if (filterExisting != null) {
+				return filterExisting;
+			}
+
+			m_mapFilters.put(key, filter);
+			m_lMemoryUsage += filter.getMemoryUsage();
+
+			// Evict least recently used filters
+			final Iterator<Map.Entry<FilterKey, BloomFilter>> iterator = m_mapFilters.entrySet().iterator();
+			while (m_lMemoryUsage > m_lMemoryBudget && iterator.hasNext()) {
+				final Map.Entry<FilterKey, BloomFilter> entry = iterator.next();
+				if (entry.getKey() != key) {
+					m_lMemoryUsage -= entry.getValue().getMemoryUsage();
+					iterator.remove();
+					m_lEvictions.incrementAndGet();
+				}
+			}
+		}
+
+		return filter;
+	}
+
+	private void removeCore(final Object coreKey) {
+		synchronized (m_mapFilters) {
+			m_setCores.remove(coreKey);
+			final Iterator<Map.Entry<FilterKey, BloomFilter>> iterator = m_mapFilters.entrySet().iterator();
+			while (iterator.hasNext()) {
+				final Map.Entry<FilterKey, BloomFilter> entry = iterator.next();
+				if (entry.getKey().m_coreKey == coreKey) {
+					m_lMemoryUsage -= entry.getValue().getMemoryUsage();
+					iterator.remove();
+				}
+			}
+			final Iterator<FilterKey> iteratorRejected = m_setRejected.iterator();
+			while (iteratorRejected.hasNext()) {
+				if (iteratorRejected.next().m_coreKey == coreKey) {
+					iteratorRejected.remove();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,475 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * A cache of single-valued string fields of molecules, i.e. the SMILES and
+ * primary keys, as columns per index segment. A column is an array with the
+ * field value of every document of a segment, hence a value can be looked up
+ * by document id without reading and materializing a stored document. The
+ * columns are built from the indexed terms, so equal values share the same
+ * string instance.
+ * 
+ * Columns are kept per segment core, hence segments that did not change stay
+ * cached when the index gets reopened. Columns of closed segments get removed.
+ * When the memory budget is exceeded, the least recently used columns get
+ * evicted. A column that alone exceeds the budget is not loaded at all, and
+ * callers fall back to stored fields.
+ * 
+ * @author Manuel Schwarze
+ */
+public class MoleculeColumnCache {
+
+	//
+	// Inner Classes
+	//
+
+	/**
+	 * The key of a cached column.
+	 */
+	private static class ColumnKey {
+
+		//
+		// Members
+		//
+
+		private final Object m_coreKey;
+		private final String m_strField;
+
+		//
+		// Constructor
+		//
+
+		private ColumnKey(final Object coreKey, final String strField) {
+			m_coreKey = coreKey;
+			m_strField = strField;
+		}
+
+		//
+		// Public Methods
+		//
+
+		@Override
+		public int hashCode() {
+			return 31 * m_coreKey.hashCode() + m_strField.hashCode();
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof ColumnKey)) {
+				return false;
+			}
+			final ColumnKey other = (ColumnKey)obj;
+			return m_coreKey == other.m_coreKey && m_strField.equals(other.m_strField);
+		}
+	}
+
+	/**
+	 * A loaded column with its estimated memory usage.
+	 */
+	private static class Column {
+
+		//
+		// Members
+		//
+
+		private final String[] m_arrValues;
+		private final long m_lBytes;
+
+		//
+		// Constructor
+		//
+
+		private Column(final String[] arrValues, final long lBytes) {
+			m_arrValues = arrValues;
+			m_lBytes = lBytes;
+		}
+	}
+
+	//
+	// Constants
+	//
+
+	/** Estimated memory usage of a string instance without its characters. */
+	private static final long STRING_BYTES = RamUsageEstimator.alignObjectSize(
+			RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + RamUsageEstimator.NUM_BYTES_OBJECT_REF +
+			3 * RamUsageEstimator.NUM_BYTES_INT);
+
+	//
+	// Members
+	//
+
+	/** The cached columns in the order of their last use. */
+	private final LinkedHashMap<ColumnKey, Column> m_mapColumns;
+
+	/** The maximum number of bytes all cached columns shall occupy. */
+	private final long m_lMemoryBudget;
+
+	/** The number of bytes all cached columns occupy. Guarded by m_mapColumns. */
+	private long m_lMemoryUsage;
+
+	/** The columns that exceed the memory budget on their own. Guarded by m_mapColumns. */
+	private final Set<ColumnKey> m_setRejected;
+
+	/** The segment cores that are observed for getting closed. Guarded by m_mapColumns. */
+	private final Set<Object> m_setCores;
+
+	/** Statistics. */
+	private final AtomicLong m_lHits = new AtomicLong();
+	private final AtomicLong m_lMisses = new AtomicLong();
+	private final AtomicLong m_lEvictions = new AtomicLong();
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new molecule column cache.
+	 * 
+	 * @param lMemoryBudget Maximum number of bytes the cached columns shall
+	 * 		occupy. Must be > 0. A column takes one reference per document of a
+	 * 		segment plus the distinct values.
+	 */
+	public MoleculeColumnCache(final long lMemoryBudget) {
+		if (lMemoryBudget <= 0) {
+			throw new IllegalArgumentException("Memory budget must be a positive number > 0.");
+		}
+
+		m_mapColumns = new LinkedHashMap<ColumnKey, Column>(16, 0.75f, true);
+		m_lMemoryBudget = lMemoryBudget;
+		m_lMemoryUsage = 0;
+		m_setRejected = new HashSet<ColumnKey>();
+		m_setCores = new HashSet<Object>();
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Returns the SMILES column of a segment.
+	 * 
+	 * @param reader Segment reader. Must not be null.
+	 * 
+	 * @return SMILES per document id of the segment or null, if the reader is
+	 * 		not a segment reader or the column exceeds the memory budget. The
+	 * 		returned array must not be changed.
+	 * 
+	 * @throws IOException Thrown, if the column could not be loaded.
+	 */
+	public String[] getSmiles(final IndexReader reader) throws IOException {
+		return getColumn(reader, ChemicalIndex.FIELD_SMILES);
+	}
+
+	/**
+	 * Returns the primary key column of a segment.
+	 * 
+	 * @param reader Segment reader. Must not be null.
+	 * 
+	 * @return Primary key per document id of the segment or null, if the reader
+	 * 		is not a segment reader or the column exceeds the memory budget. The
+	 * 		returned array must not be changed.
+	 * 
+	 * @throws IOException Thrown, if the column could not be loaded.
+	 */
+	public String[] getPrimaryKeys(final IndexReader reader) throws IOException {
+		return getColumn(reader, ChemicalIndex.FIELD_PK);
+	}
+
+	/**
+	 * Removes all cached columns.
+	 */
+	public void clear() {
+		synchronized (m_mapColumns) {
+			m_mapColumns.clear();
+			m_setRejected.clear();
+			m_lMemoryUsage = 0;
+		}
+	}
+
+	/**
+	 * Returns the number of cache hits so far.
+	 * 
+	 * @return Number of columns found in the cache.
+	 */
+	public long getHitCount() {
+		return m_lHits.get();
+	}
+
+	/**
+	 * Returns the number of cache misses so far.
+	 * 
+	 * @return Number of columns that had to be loaded from the index.
+	 */
+	public long getMissCount() {
+		return m_lMisses.get();
+	}
+
+	/**
+	 * Returns the number of evictions so far.
+	 * 
+	 * @return Number of columns that have been removed to stay within the memory budget.
+	 */
+	public long getEvictionCount() {
+		return m_lEvictions.get();
+	}
+
+	/**
+	 * Returns the share of column requests that were served from the cache.
+	 * 
+	 * @return Hit rate between 0 and 1. 0, if there were no requests yet.
+	 */
+	public double getHitRate() {
+		final long lHits = m_lHits.get();
+		final long lRequests = lHits + m_lMisses.get();
+		return (lRequests == 0 ? 0.0d : (double)lHits / lRequests);
+	}
+
+	/**
+	 * Returns the estimated number of bytes the cached columns occupy.
+	 * 
+	 * @return Memory usage in bytes.
+	 */
+	public long getMemoryUsage() {
+		synchronized (m_mapColumns) {
+			return m_lMemoryUsage;
+		}
+	}
+
+	/**
+	 * Returns the maximum number of bytes the cached columns shall occupy.
+	 * 
+	 * @return Memory budget in bytes.
+	 */
+	public long getMemoryBudget() {
+		return m_lMemoryBudget;
+	}
+
+	/**
+	 * Returns the number of cached columns.
+	 * 
+	 * @return Number of columns.
+	 */
+	public int getColumnCount() {
+		synchronized (m_mapColumns) {
+			return m_mapColumns.size();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("MoleculeColumnCache { columns=%d, memory=%d/%d bytes, hits=%d, misses=%d, hitRate=%.1f%%, evictions=%d }",
+				getColumnCount(), getMemoryUsage(), m_lMemoryBudget, m_lHits.get(), m_lMisses.get(),
+				getHitRate() * 100.0d, m_lEvictions.get());
+	}
+
+	//
+	// Protected Methods
+	//
+
+	/**
+	 * Returns the column of a field of a segment. It is loaded from the terms
+	 * of the segment, if it is not cached yet.
+	 * 
+	 * @param reader Segment reader. Must not be null.
+	 * @param strField Single-valued, not analyzed field. Must not be null.
+	 * 
+	 * @return Value per document id of the segment or null, if the reader is
+	 * 		not a segment reader or the column exceeds the memory budget.
+	 * 
+	 * @throws IOException Thrown, if the terms could not be read.
+	 */
+	protected String[] getColumn(final IndexReader reader, final String strField) throws IOException {
+		if (!(reader instanceof SegmentReader)) {
+			return null;
+		}
+
+		final SegmentReader segmentReader = (SegmentReader)reader;
+		final ColumnKey key = new ColumnKey(segmentReader.getCoreCacheKey(), strField);
+
+		synchronized (m_mapColumns) {
+			final Column column = m_mapColumns.get(key);
+			if (column != null) {
+				m_lHits.incrementAndGet();
+				return column.m_arrValues;
+			}
+			if (m_setRejected.contains(key)) {
+				return null;
+			}
+		}
+
+		// Load outside of the lock, so that other searches are not blocked
+		m_lMisses.incrementAndGet();
+		final Column column = (getArrayBytes(reader.maxDoc()) > m_lMemoryBudget ? null :
+			loadColumn(segmentReader, strField));
+
+		synchronized (m_mapColumns) {
+			if (m_setCores.add(key.m_coreKey)) {
+				segmentReader.addCoreClosedListener(new SegmentReader.CoreClosedListener() {
+					@Override
+					public void onClose(final SegmentReader owner) {
+						removeCore(owner.getCoreCacheKey());
+					}
+				});
+			}
+
+			if (column == null || column.m_lBytes > m_lMemoryBudget) {
+				m_setRejected.add(key);
+				return null;
+			}
+
+			if (!m_mapColumns.containsKey(key)) {
+				m_mapColumns.put(key, column);
+				m_lMemoryUsage += column.m_lBytes;
+
+				// Evict least recently used columns
+				final Iterator<Map.Entry<ColumnKey, Column>> iterator = m_mapColumns.entrySet().iterator();
+				while (m_lMemoryUsage > m_lMemoryBudget && iterator.hasNext()) {
+					final Map.Entry<ColumnKey, Column> entry = iterator.next();
+					if (entry.getKey() != key) {
+						m_lMemoryUsage -= entry.getValue().m_lBytes;
+						iterator.remove();
+						m_lEvictions.incrementAndGet();
+					}
+				}
+			}
+		}
+
+		return column.m_arrValues;
+	}
+
+	//
+	// Private Methods
+	//
+
+	/**
+	 * Loads the column of a field from the terms of a segment. Loading stops
+	 * as soon as the column exceeds the memory budget. Deleted documents are
+	 * included, as the column is shared by all readers of the segment, which
+	 * may see different deletions.
+	 * 
+	 * @return Column or null, if it exceeds the memory budget.
+	 */
+	private Column loadColumn(final SegmentReader reader, final String strField) throws IOException {
+		final String[] arrValues = new String[reader.maxDoc()];
+		long lBytes = getArrayBytes(arrValues.length);
+
+		final TermEnum termEnum = reader.terms(new Term(strField, ""));
+		TermDocs termDocs = null;
+
+		try {
+			final int[] arrDocs = new int[256];
+			final int[] arrFreqs = new int[256];
+			do {
+				final Term term = termEnum.term();
+				if (term == null || !strField.equals(term.field())) {
+					break;
+				}
+
+				final String strValue = term.text();
+				lBytes += STRING_BYTES + RamUsageEstimator.alignObjectSize(
+						RamUsageEstimator.NUM_BYTES_ARRAY_HEADER +
+						(long)RamUsageEstimator.NUM_BYTES_CHAR * strValue.length());
+				if (lBytes > m_lMemoryBudget) {
+					return null;
+				}
+
+				// Raw postings include documents deleted for this reader
+				if (termDocs == null) {
+					termDocs = reader.rawTermDocs(term);
+				}
+				else {
+					termDocs.seek(termEnum);
+				}
+				int iCount;
+				while ((iCount = termDocs.read(arrDocs, arrFreqs)) > 0) {
+					for (int i = 0; i < iCount; i++) {
+						arrValues[arrDocs[i]] = strValue;
+					}
+				}
+			}
+			while (termEnum.next());
+		}
+		finally {
+			if (termDocs != null) {
+				termDocs.close();
+			}
+			termEnum.close();
+		}
+
+		return new Column(arrValues, lBytes);
+	}
+
+	private static long getArrayBytes(final int iLength) {
+		return RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER +
+				(long)RamUsageEstimator.NUM_BYTES_OBJECT_REF * iLength);
+	}
+
+	private void removeCore(final Object coreKey) {
+		synchronized (m_mapColumns) {
+			m_setCores.remove(coreKey);
+			final Iterator<Map.Entry<ColumnKey, Column>> iterator = m_mapColumns.entrySet().iterator();
+			while (iterator.hasNext()) {
+				final Map.Entry<ColumnKey, Column> entry = iterator.next();
+				if (entry.getKey().m_coreKey == coreKey) {
+					m_lMemoryUsage -= entry.getValue().m_lBytes;
+					iterator.remove();
+				}
+			}
+			final Iterator<ColumnKey> iteratorRejected = m_setRejected.iterator();
+			while (iteratorRejected.hasNext()) {
+				if (iteratorRejected.next().m_coreKey == coreKey) {
+					iteratorRejected.remove();
+				}
+			}
+		}
+	}
+}
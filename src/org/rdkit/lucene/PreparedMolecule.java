@@ -0,0 +1,133 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene;
+
+import java.util.BitSet;
+
+/**
+ * A molecule that has been prepared for indexing. All values that get indexed
+ * for a structure are derived from a single canonicalization. All RDKit objects
+ * involved are freed again before this object is handed out. Hence, this object
+ * does not hold any native resources and can be passed between threads.
+ * 
+ * @author Manuel Schwarze
+ */
+public class PreparedMolecule {
+
+	//
+	// Members
+	//
+
+	/** The canonical SMILES of the molecule. */
+	private final String m_strCanonSmiles;
+
+	/** The structure fingerprint of the molecule. */
+	private final BitSet m_fingerprint;
+
+	/** The binary RDKit molecule or null, if not requested. */
+	private final byte[] m_arrPickle;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new prepared molecule.
+	 * 
+	 * @param strCanonSmiles Canonical SMILES. Must not be null or empty.
+	 * @param fingerprint Structure fingerprint. Must not be null.
+	 */
+	public PreparedMolecule(final String strCanonSmiles, final BitSet fingerprint) {
+		this(strCanonSmiles, fingerprint, null);
+	}
+
+	/**
+	 * Creates a new prepared molecule.
+	 * 
+	 * @param strCanonSmiles Canonical SMILES. Must not be null or empty.
+	 * @param fingerprint Structure fingerprint. Must not be null.
+	 * @param arrPickle Binary RDKit molecule. Can be null.
+	 */
+	public PreparedMolecule(final String strCanonSmiles, final BitSet fingerprint, final byte[] arrPickle) {
+		if (strCanonSmiles == null || strCanonSmiles.trim().isEmpty()) {
+			throw new IllegalArgumentException(
+					"Canonical SMILES must not be null or empty.");
+		}
+		if (fingerprint == null) {
+			throw new IllegalArgumentException("Structure fingerprint must not be null.");
+		}
+
+		m_strCanonSmiles = strCanonSmiles;
+		m_fingerprint = fingerprint;
+		m_arrPickle = arrPickle;
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Returns the canonical SMILES of the molecule.
+	 * 
+	 * @return Canonical SMILES. Never null.
+	 */
+	public String getCanonSmiles() {
+		return m_strCanonSmiles;
+	}
+
+	/**
+	 * Returns the structure fingerprint of the molecule.
+	 * 
+	 * @return Structure fingerprint. Never null.
+	 */
+	public BitSet getFingerprint() {
+		return m_fingerprint;
+	}
+
+	/**
+	 * Returns the binary RDKit molecule, if it was requested when preparing it.
+	 * 
+	 * @return Binary RDKit molecule or null.
+	 * 
+	 * @see org.rdkit.lucene.bin.RDKit#toROMol(byte[])
+	 */
+	public byte[] getPickle() {
+		return m_arrPickle;
+	}
+
+	@Override
+	public String toString() {
+		return "PreparedMolecule { smiles=" + m_strCanonSmiles + ", fpBits=" + m_fingerprint.cardinality() +
+				", pickleBytes=" + (m_arrPickle == null ? 0 : m_arrPickle.length) + " }";
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+
+/**
+ * A compact membership set of the primary keys of an index, which is used
+ * while molecules are added. It is initialized with the keys of the existing
+ * index and learns every key that gets added. Keys that it does definitely not
+ * know are new, hence their molecules can be added without deleting an older
+ * version first. It consists of a growing chain of Bloom filters, each with
+ * twice the capacity and half the false positive rate of the previous one, so
+ * that the overall false positive rate stays bounded by twice the rate of
+ * the first filter, no matter how many keys get added. This class is thread-safe.
+ * 
+ * @author Manuel Schwarze
+ */
+class PrimaryKeyFilter {
+
+	//
+	// Constants
+	//
+
+	/** The false positive rate of the first filter. */
+	static final double FALSE_POSITIVE_RATE = 0.01d;
+
+	/** The minimal capacity of a filter. */
+	private static final long MIN_CAPACITY = 1024;
+
+	//
+	// Members
+	//
+
+	/** The filters of the chain. The last one receives new keys. */
+	private final List<BloomFilter> m_listFilters;
+
+	/** The number of keys the last filter is made for. */
+	private long m_lCapacity;
+
+	/** The false positive rate of the last filter. */
+	private double m_dFalsePositiveRate;
+
+	/** The number of keys added to the last filter. */
+	private long m_lCount;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new primary key filter that knows the keys of the passed in
+	 * index reader.
+	 * 
+	 * @param reader Index reader with the existing keys. Can be null for an empty index.
+	 * 
+	 * @throws IOException Thrown, if the keys could not be read.
+	 */
+	PrimaryKeyFilter(final IndexReader reader) throws IOException {
+		m_listFilters = new ArrayList<BloomFilter>();
+		m_lCapacity = Math.max(MIN_CAPACITY, reader == null ? 0 : 2L * reader.maxDoc());
+		m_dFalsePositiveRate = FALSE_POSITIVE_RATE;
+		m_lCount = 0;
+		m_listFilters.add(new BloomFilter(m_lCapacity, m_dFalsePositiveRate));
+
+		if (reader != null && reader.maxDoc() > 0) {
+			final TermEnum termEnum = reader.terms(new Term(ChemicalIndex.FIELD_PK, ""));
+			try {
+				do {
+					final Term term = termEnum.term();
+					if (term == null || !ChemicalIndex.FIELD_PK.equals(term.field())) {
+						break;
+					}
+					add(term.text());
+				}
+				while (termEnum.next());
+			}
+			finally {
+				termEnum.close();
+			}
+		}
+	}
+
+	//
+	// Package Methods
+	//
+
+	/**
+	 * Registers a key and determines, if it may have been known before.
+	 * 
+	 * @param strPK Primary key. Must not be null.
+	 * 
+	 * @return False, if the key is definitely new. True, if it may exist already.
+	 */
+	synchronized boolean addAndCheck(final String strPK) {
+		final boolean bKnown = mightContain(strPK);
+		if (!bKnown) {
+			add(strPK);
+		}
+		return bKnown;
+	}
+
+	/**
+	 * Returns the number of bytes the filters occupy.
+	 * 
+	 * @return Memory usage in bytes.
+	 */
+	synchronized long getMemoryUsage() {
+		long lBytes = 0;
+		for (final BloomFilter filter : m_listFilters) {
+			lBytes += filter.getMemoryUsage();
+		}
+		return lBytes;
+	}
+
+	//
+	// Private Methods
+	//
+
+	private boolean mightContain(final String strPK) {
+		for (final BloomFilter filter : m_listFilters) {
+			if (filter.mightContain(strPK)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void add(final String strPK) {
+		if (m_lCount >= m_lCapacity) {
+			m_lCapacity *= 2;
+			m_dFalsePositiveRate /= 2;
+			m_lCount = 0;
+			m_listFilters.add(new BloomFilter(m_lCapacity, m_dFalsePositiveRate));
+		}
+		m_listFilters.get(m_listFilters.size() - 1).add(strPK);
+		m_lCount++;
+	}
+}
@@ -0,0 +1,723 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.lucene.document.Document;
+import org.rdkit.lucene.sdf.SDFParser;
+import org.rdkit.lucene.sdf.SDFRecord;
+import org.rdkit.lucene.util.SystemUtils;
+
+/**
+ * A pipeline that adds the molecules of an SDF file to a chemical index using
+ * three stages: The calling thread parses the SDF records and feeds them into a
+ * bounded queue. A pool of worker threads canonicalizes and fingerprints the
+ * molecules in parallel and creates the index documents. A single writer thread
+ * hands the documents over to the index writer. The writer stage processes the
+ * records in the order of the SDF file, so that primary key handling and the
+ * counting of errors in a row behave exactly as in the single threaded
+ * {@link ChemicalIndex#addSDFFileToIndex(File, String, String, Set)} method.
+ * 
+ * For every stage the number of records and the time spent working (not waiting)
+ * is measured. The stage with the lowest capacity in records per second is the
+ * bottleneck of the pipeline.
+ * 
+ * @author Manuel Schwarze
+ */
+public class SDFIngestPipeline {
+
+	//
+	// Inner Classes
+	//
+
+	/**
+	 * Statistics of a single pipeline stage.
+	 */
+	public static class StageStatistics {
+
+		//
+		// Members
+		//
+
+		private final String m_strName;
+		private final int m_iThreads;
+		private final AtomicLong m_lRecords = new AtomicLong();
+		private final AtomicLong m_lBusyNanos = new AtomicLong();
+		private volatile long m_lStartNanos;
+		private volatile long m_lEndNanos;
+
+		//
+		// Constructor
+		//
+
+		private StageStatistics(final String strName, final int iThreads) {
+			m_strName = strName;
+			m_iThreads = iThreads;
+		}
+
+		//
+		// Public Methods
+		//
+
+		/**
+		 * Returns the name of the stage.
+		 * 
+		 * @return Stage name.
+		 */
+		public String getName() {
+			return m_strName;
+		}
+
+		/**
+		 * Returns the number of threads that run this stage.
+		 * 
+		 * @return Thread count.
+		 */
+		public int getThreadCount() {
+			return m_iThreads;
+		}
+
+		/**
+		 * Returns the number of records that were processed by this stage so far.
+		 * 
+		 * @return Record count.
+		 */
+		public long getRecordCount() {
+			return m_lRecords.get();
+		}
+
+		/**
+		 * Returns the time all threads of this stage spent processing records,
+		 * not including the time waiting for other stages.
+		 * 
+		 * @return Busy time in milliseconds.
+		 */
+		public long getBusyTimeInMs() {
+			return m_lBusyNanos.get() / 1000000L;
+		}
+
+		/**
+		 * Returns the number of records per second this stage delivered, measured
+		 * on the wall clock from the start of the pipeline.
+		 * 
+		 * @return Throughput in records per second.
+		 */
+		public double getRecordsPerSecond() {
+			final long lEnd = (m_lEndNanos == 0 ? System.nanoTime() : m_lEndNanos);
+			final long lElapsed = lEnd - m_lStartNanos;
+			return (lElapsed <= 0 ? 0.0d : m_lRecords.get() * 1000000000.0d / lElapsed);
+		}
+
+		/**
+		 * Returns the number of records per second this stage could deliver,
+		 * if it would never have to wait for another stage. The stage with the
+		 * lowest capacity is the bottleneck of the pipeline.
+		 * 
+		 * @return Capacity in records per second.
+		 */
+		public double getCapacityPerSecond() {
+			final long lBusy = m_lBusyNanos.get();
+			return (lBusy <= 0 ? 0.0d : m_lRecords.get() * m_iThreads * 1000000000.0d / lBusy);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s (%d thread(s)): %d records, %.1f records/s, capacity %.1f records/s",
+					m_strName, m_iThreads, getRecordCount(), getRecordsPerSecond(), getCapacityPerSecond());
+		}
+
+		//
+		// Private Methods
+		//
+
+		private void record(final long lStartNanos) {
+			m_lBusyNanos.addAndGet(System.nanoTime() - lStartNanos);
+			m_lRecords.incrementAndGet();
+		}
+	}
+
+	/**
+	 * A single SDF record travelling through the pipeline.
+	 */
+	private static class Job {
+
+		private final long m_lSequence;
+		private final String m_strPK;
+		private final SDFRecord m_record;
+		private String m_strCanonSmiles;
+		private Document m_doc;
+		private Throwable m_exc;
+
+		private Job(final long lSequence, final String strPK, final SDFRecord record) {
+			m_lSequence = lSequence;
+			m_strPK = strPK;
+			m_record = record;
+		}
+	}
+
+	//
+	// Constants
+	//
+
+	/** The logger instance. */
+	private static final Logger LOGGER = Logger.getLogger(SDFIngestPipeline.class.getName());
+
+	/** Default number of records that may be in the pipeline at the same time per worker thread. */
+	public static final int DEFAULT_QUEUE_CAPACITY_PER_WORKER = 64;
+
+	/** Job that signals the end of the input. */
+	private static final Job END_OF_INPUT = new Job(-1, null, null);
+
+	/** Time in milliseconds a blocked stage waits before it checks again, if processing was aborted. */
+	private static final long ABORT_CHECK_INTERVAL = 100;
+
+	//
+	// Members
+	//
+
+	private final ChemicalIndex m_index;
+
+	private final int m_iWorkerThreads;
+
+	private final int m_iQueueCapacity;
+
+	private final StageStatistics m_statsParser;
+
+	private final StageStatistics m_statsWorkers;
+
+	private final StageStatistics m_statsWriter;
+
+	/** Set to true by any stage, if processing shall be given up. All stages stop then. */
+	private volatile boolean m_bAborted;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new pipeline for the specified index.
+	 * 
+	 * @param index Chemical index to add molecules to. Must not be null.
+	 * @param iWorkerThreads Number of threads to canonicalize and fingerprint molecules. Must be > 0.
+	 */
+	public SDFIngestPipeline(final ChemicalIndex index, final int iWorkerThreads) {
+		this(index, iWorkerThreads, iWorkerThreads * DEFAULT_QUEUE_CAPACITY_PER_WORKER);
+	}
+
+	/**
+	 * Creates a new pipeline for the specified index.
+	 * 
+	 * @param index Chemical index to add molecules to. Must not be null.
+	 * @param iWorkerThreads Number of threads to canonicalize and fingerprint molecules. Must be > 0.
+	 * @param iQueueCapacity Maximum number of records that are in the pipeline at the same time. Must be > 0.
+	 */
+	public SDFIngestPipeline(final ChemicalIndex index, final int iWorkerThreads, final int iQueueCapacity) {
+		if (index == null) {
+			throw new IllegalArgumentException("Chemical index must not be null.");
+		}
+		if (iWorkerThreads <= 0) {
+			throw new IllegalArgumentException("Number of worker threads must be > 0.");
+		}
+		if (iQueueCapacity <= 0) {
+			throw new IllegalArgumentException("Queue capacity must be > 0.");
+		}
+
+		m_index = index;
+		m_iWorkerThreads = iWorkerThreads;
+		m_iQueueCapacity = iQueueCapacity;
+		m_statsParser = new StageStatistics("Parser", 1);
+		m_statsWorkers = new StageStatistics("Canonicalizer/Fingerprinter", iWorkerThreads);
+		m_statsWriter = new StageStatistics("Writer", 1);
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Returns the statistics of the parser stage.
+	 * 
+	 * @return Parser statistics.
+	 */
+	public StageStatistics getParserStatistics() {
+		return m_statsParser;
+	}
+
+	/**
+	 * Returns the statistics of the worker stage, which canonicalizes and
+	 * fingerprints the molecules.
+	 * 
+	 * @return Worker statistics.
+	 */
+	public StageStatistics getWorkerStatistics() {
+		return m_statsWorkers;
+	}
+
+	/**
+	 * Returns the statistics of the writer stage.
+	 * 
+	 * @return Writer statistics.
+	 */
+	public StageStatistics getWriterStatistics() {
+		return m_statsWriter;
+	}
+
+	/**
+	 * Adds the specified SDF file to the index. This method returns when all
+	 * records have been written or when adding has been given up.
+	 * 
+	 * @param sdfFile SDF File. Must not be null.
+	 * @param strFieldPrimaryKey The field name that holds the primary key. Must not be null.
+	 * @param strIgnoreUpToPK Start indexing on that primery key. Ignore the ones before. Can be null.
+	 * @param setIgnorePKs Set of primary keys with structures that shall not be indexed. Can be null.
+	 * 
+	 * @throws IOException Thrown, if the file could not be read, the index could not be written
+	 * 		or if there were too many errors in a row.
+	 */
+	public void run(final File sdfFile, final String strFieldPrimaryKey,
+			final String strIgnoreUpToPK, final Set<String> setIgnorePKs) throws IOException {
+		// Pre-checks
+		if (sdfFile == null) {
+			throw new IllegalArgumentException("The SDF File must not be null.");
+		}
+		if (strFieldPrimaryKey == null) {
+			throw new IllegalArgumentException("The primary key field of the SDF File must not be null.");
+		}
+
+		// Open the writer before any other thread may try it
+		if (m_index.prepareWriter() == null) {
+			throw new IOException("Index writer is unavailable.");
+		}
+
+		final BlockingQueue<Job> queueParsed = new ArrayBlockingQueue<Job>(m_iQueueCapacity + m_iWorkerThreads);
+		final BlockingQueue<Job> queuePrepared = new ArrayBlockingQueue<Job>(m_iQueueCapacity + m_iWorkerThreads);
+		final Semaphore semInFlight = new Semaphore(m_iQueueCapacity);
+
+		final ExecutorService execWorkers = Executors.newFixedThreadPool(m_iWorkerThreads,
+				SystemUtils.createDaemonThreadFactory("SDF Ingest Worker"));
+		final ExecutorService execWriter = Executors.newSingleThreadExecutor(
+				SystemUtils.createDaemonThreadFactory("SDF Ingest Writer"));
+
+		m_bAborted = false;
+		final long lStart = System.nanoTime();
+		m_statsParser.m_lStartNanos = m_statsWorkers.m_lStartNanos = m_statsWriter.m_lStartNanos = lStart;
+
+		Future<Void> futureWriter = null;
+		IOException excParser = null;
+		Throwable excWriter = null;
+
+		try {
+			for (int i = 0; i < m_iWorkerThreads; i++) {
+				execWorkers.execute(new Runnable() {
+					@Override
+					public void run() {
+						prepare(queueParsed, queuePrepared);
+					}
+				});
+			}
+
+			futureWriter = execWriter.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					write(queuePrepared, semInFlight);
+					return null;
+				}
+			});
+
+			boolean bParsed = false;
+			try {
+				parse(sdfFile, strFieldPrimaryKey, strIgnoreUpToPK, setIgnorePKs, queueParsed, semInFlight);
+				bParsed = true;
+			}
+			catch (final IOException exc) {
+				excParser = exc;
+			}
+			finally {
+				m_statsParser.m_lEndNanos = System.nanoTime();
+				if (!bParsed) {
+					m_bAborted = true;
+				}
+				for (int i = 0; i < m_iWorkerThreads; i++) {
+					put(queueParsed, END_OF_INPUT);
+				}
+			}
+		}
+		finally {
+			// Wait for the writer in any case, so that nothing gets written after returning
+			if (futureWriter != null) {
+				excWriter = awaitWriter(futureWriter);
+			}
+			else {
+				m_bAborted = true;
+			}
+			execWorkers.shutdownNow();
+			execWriter.shutdownNow();
+			// If the writer gave up early, the workers are done latest now
+			m_statsWriter.m_lEndNanos = System.nanoTime();
+			if (m_statsWorkers.m_lEndNanos == 0) {
+				m_statsWorkers.m_lEndNanos = m_statsWriter.m_lEndNanos;
+			}
+			LOGGER.log(Level.INFO, "SDF ingest pipeline statistics for " + sdfFile.getName() + ":\n" +
+					m_statsParser + "\n" + m_statsWorkers + "\n" + m_statsWriter);
+		}
+
+		// A failing parser aborts the writer, hence its exception is the original cause
+		if (excParser != null) {
+			throw excParser;
+		}
+
+		if (excWriter instanceof IOException) {
+			throw (IOException)excWriter;
+		}
+		else if (excWriter != null) {
+			throw new IOException("Writing molecules failed.", excWriter);
+		}
+	}
+
+	//
+	// Private Methods
+	//
+
+	/**
+	 * Parser stage: Reads all SDF records, applies the primary key filters and
+	 * feeds the records into the queue for the worker stage.
+	 */
+	private void parse(final File sdfFile, final String strFieldPrimaryKey,
+			final String strIgnoreUpToPK, final Set<String> setIgnorePKs,
+			final BlockingQueue<Job> queueParsed, final Semaphore semInFlight) throws IOException {
+		long lSequence = 0;
+		InputStream in = new FileInputStream(sdfFile);
+		try {
+			final String strFileName = sdfFile.getName();
+			if (strFileName.endsWith(".gz")
+					|| strFileName.endsWith(".zip")) {
+				in = new GZIPInputStream(in);
+			}
+			final SDFParser parser = new SDFParser(sdfFile.getName(), in, 1, 0);
+			boolean bStartAdding = (strIgnoreUpToPK == null);
+
+			while (!m_bAborted) {
+				final long lStart = System.nanoTime();
+				final SDFRecord molSdf = parser.readSdfRecord();
+				if (molSdf == null) {
+					break;
+				}
+
+				Job job = null;
+				final Object objPK = molSdf.get(strFieldPrimaryKey);
+				if (objPK != null) {
+					final String strPK = objPK.toString();
+
+					if (bStartAdding && (setIgnorePKs == null || !setIgnorePKs.contains(strPK))) {
+						if (molSdf.getStructure() != null) {
+							job = new Job(lSequence++, strPK, molSdf);
+						}
+						else {
+							LOGGER.log(Level.WARNING, "No structure found for primary key '" +
+									strPK + "' not found. Ignoring.");
+						}
+					}
+					else if (strPK.equals(strIgnoreUpToPK)) {
+						bStartAdding = true;
+					}
+				}
+				else {
+					// Let the writer count the error in the right order
+					job = new Job(lSequence++, " at line " + molSdf.get(SDFRecord.PROPERTY_LINE_NUMBER), null);
+					job.m_exc = new IllegalArgumentException("Primary key field '" +
+							strFieldPrimaryKey + "' not found.");
+				}
+				m_statsParser.record(lStart);
+
+				if (job != null && (!acquire(semInFlight) || !put(queueParsed, job))) {
+					break;
+				}
+			}
+		}
+		finally {
+			if (in != null) {
+				try {
+					in.close();
+				}
+				catch (final IOException exc) {
+					// Ignored
+				}
+			}
+		}
+	}
+
+	/**
+	 * Worker stage: Canonicalizes and fingerprints molecules and creates the
+	 * index documents until the end of the input is reached.
+	 */
+	private void prepare(final BlockingQueue<Job> queueParsed, final BlockingQueue<Job> queuePrepared) {
+		try {
+			Job job;
+			while ((job = take(queueParsed)) != null && job != END_OF_INPUT) {
+				final long lStart = System.nanoTime();
+				if (job.m_exc == null && !m_bAborted) {
+					try {
+						final String strStructure = job.m_record.getStructure();
+						final PreparedMolecule molPrepared = m_index.prepareMoleculeFromMolBlock(strStructure);
+
+						if (molPrepared != null) {
+							job.m_strCanonSmiles = molPrepared.getCanonSmiles();
+							job.m_doc = m_index.createMoleculeDocument(job.m_strPK, molPrepared, null, job.m_record);
+						}
+						else {
+							LOGGER.log(Level.WARNING, "Canonical SMILES could not be created for\n" + strStructure);
+						}
+					}
+					catch (final Throwable exc) {
+						// Also errors get forwarded, the writer decides whether to give up
+						job.m_exc = exc;
+					}
+				}
+				m_statsWorkers.record(lStart);
+
+				if (!put(queuePrepared, job)) {
+					break;
+				}
+			}
+		}
+		catch (final Throwable exc) {
+			LOGGER.log(Level.SEVERE, "SDF ingest worker failed. Giving up.", exc);
+			m_bAborted = true;
+		}
+		finally {
+			put(queuePrepared, END_OF_INPUT);
+		}
+	}
+
+	/**
+	 * Writer stage: Writes the prepared documents in the order of the SDF file
+	 * and keeps track of errors.
+	 * 
+	 * @throws IOException Thrown, if writing failed or if there were too many errors in a row.
+	 */
+	private void write(final BlockingQueue<Job> queuePrepared, final Semaphore semInFlight) throws IOException {
+		final Map<Long, Job> mapPending = new HashMap<Long, Job>();
+		long lNextSequence = 0;
+		int iFinishedWorkers = 0;
+		int iTotalErrors = 0;
+		int iSubsequentialErrors = 0;
+		IOException excFatal = null;
+
+		try {
+			while (iFinishedWorkers < m_iWorkerThreads && excFatal == null) {
+				final Job jobReceived = take(queuePrepared);
+				if (jobReceived == null) {
+					// Another stage gave up
+					if (excFatal == null) {
+						excFatal = new IOException("Adding SDF file was aborted.");
+					}
+					break;
+				}
+				if (jobReceived == END_OF_INPUT) {
+					if (++iFinishedWorkers == m_iWorkerThreads) {
+						m_statsWorkers.m_lEndNanos = System.nanoTime();
+					}
+					continue;
+				}
+				mapPending.put(jobReceived.m_lSequence, jobReceived);
+
+				// Process all jobs that are next in order
+				Job job;
+				while (excFatal == null && (job = mapPending.remove(lNextSequence)) != null) {
+					lNextSequence++;
+					semInFlight.release();
+
+					final long lStart = System.nanoTime();
+					try {
+						if (job.m_exc != null) {
+							throw job.m_exc;
+						}
+						if (job.m_doc != null) {
+							m_index.writeMoleculeDocument(job.m_strPK, job.m_strCanonSmiles, job.m_doc);
+						}
+						iSubsequentialErrors = 0;
+					}
+					catch (final Throwable exc) {
+						iSubsequentialErrors++;
+						iTotalErrors++;
+						LOGGER.log(Level.SEVERE, "Molecule " + job.m_strPK + " could not be added to index.", exc);
+
+						if (iSubsequentialErrors > ChemicalIndex.MAX_SUBSEQUENTIAL_ERRORS) {
+							excFatal = new IOException("Too many errors in a row. Giving up.", exc);
+						}
+						else if (exc instanceof IOException) {
+							excFatal = (IOException)exc;
+						}
+						else if (exc instanceof Error) {
+							excFatal = new IOException("Fatal error while adding molecules. Giving up.", exc);
+						}
+					}
+					m_statsWriter.record(lStart);
+				}
+			}
+		}
+		finally {
+			// Let the other stages stop, if the writer does not finish regularly
+			if (excFatal != null || iFinishedWorkers < m_iWorkerThreads) {
+				m_bAborted = true;
+			}
+		}
+
+		if (iTotalErrors > 0) {
+			LOGGER.log(Level.SEVERE, iTotalErrors + " molecules could not be added due to errors.");
+		}
+
+		if (excFatal != null) {
+			throw excFatal;
+		}
+	}
+
+	/**
+	 * Puts a job into a queue. Waits for space, unless processing gets aborted.
+	 * 
+	 * @return True, if the job was put into the queue. False, if aborted.
+	 */
+	private boolean put(final BlockingQueue<Job> queue, final Job job) {
+		try {
+			while (!m_bAborted) {
+				if (queue.offer(job, ABORT_CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+					return true;
+				}
+			}
+		}
+		catch (final InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			m_bAborted = true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Takes a job from a queue. Waits for a job, unless processing gets aborted.
+	 * 
+	 * @return Job or null, if aborted.
+	 */
+	private Job take(final BlockingQueue<Job> queue) {
+		try {
+			while (!m_bAborted) {
+				final Job job = queue.poll(ABORT_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+				if (job != null) {
+					return job;
+				}
+			}
+		}
+		catch (final InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			m_bAborted = true;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Acquires a permit of the semaphore. Waits for it, unless processing gets aborted.
+	 * 
+	 * @return True, if acquired. False, if aborted.
+	 */
+	private boolean acquire(final Semaphore sem) {
+		try {
+			while (!m_bAborted) {
+				if (sem.tryAcquire(ABORT_CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+					return true;
+				}
+			}
+		}
+		catch (final InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			m_bAborted = true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Waits until the writer has finished. If the calling thread gets
+	 * interrupted, processing gets aborted, but it still waits for the writer.
+	 * 
+	 * @return The exception the writer failed with or null, if it succeeded.
+	 */
+	private Throwable awaitWriter(final Future<Void> futureWriter) {
+		Throwable excWriter = null;
+		boolean bInterrupted = false;
+
+		for (;;) {
+			try {
+				futureWriter.get();
+				break;
+			}
+			catch (final InterruptedException exc) {
+				bInterrupted = true;
+				m_bAborted = true;
+				excWriter = new IOException("Adding SDF file was interrupted.", exc);
+			}
+			catch (final ExecutionException exc) {
+				if (excWriter == null) {
+					excWriter = exc.getCause();
+				}
+				break;
+			}
+		}
+
+		if (bInterrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		return excWriter;
+	}
+}
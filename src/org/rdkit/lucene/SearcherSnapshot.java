@@ -0,0 +1,163 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+
+/**
+ * A pinned, immutable state of a chemical index. As long as a snapshot is
+ * open, all searches of the thread that acquired it run against the same
+ * index reader, hence document ids found by one search can safely be
+ * resolved later on, e.g. with {@link ChemicalIndex#getPrimaryKeysForSearchHits(SearcherSnapshot,
+ * org.apache.lucene.search.TopDocsCollector)}, even while molecules are added
+ * concurrently. Every snapshot must be closed when done by the thread that
+ * acquired it. Snapshots can be nested; closing a snapshot restores the one
+ * that was open before.
+ * 
+ * @author Manuel Schwarze
+ * 
+ * @see ChemicalIndex#acquireSnapshot()
+ */
+public class SearcherSnapshot implements Closeable {
+
+	//
+	// Members
+	//
+
+	/** The index this snapshot belongs to. */
+	private final ChemicalIndex m_index;
+
+	/** The pinned searcher. */
+	private final IndexSearcher m_searcher;
+
+	/** The snapshot that was pinned to the thread before. Can be null. */
+	private final SearcherSnapshot m_snapshotPrevious;
+
+	/** The thread the snapshot is pinned to. */
+	private final Thread m_threadOwner;
+
+	/** Set when the snapshot was closed. */
+	private volatile boolean m_bClosed;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new snapshot.
+	 * 
+	 * @param index The index this snapshot belongs to. Must not be null.
+	 * @param searcher The acquired searcher. Must not be null.
+	 * @param snapshotPrevious The snapshot that was pinned to the thread before. Can be null.
+	 */
+	SearcherSnapshot(final ChemicalIndex index, final IndexSearcher searcher,
+			final SearcherSnapshot snapshotPrevious) {
+		m_index = index;
+		m_searcher = searcher;
+		m_snapshotPrevious = snapshotPrevious;
+		m_threadOwner = Thread.currentThread();
+		m_bClosed = false;
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Returns the pinned searcher.
+	 * 
+	 * @return Searcher. Never null.
+	 */
+	public IndexSearcher getSearcher() {
+		return m_searcher;
+	}
+
+	/**
+	 * Returns the pinned index reader.
+	 * 
+	 * @return Index reader. Never null.
+	 */
+	public IndexReader getIndexReader() {
+		return m_searcher.getIndexReader();
+	}
+
+	/**
+	 * Returns true, if this snapshot has been closed.
+	 * 
+	 * @return True, if closed. False otherwise.
+	 */
+	public boolean isClosed() {
+		return m_bClosed;
+	}
+
+	/**
+	 * Releases the pinned searcher. Calling this method multiple times has no effect.
+	 * 
+	 * @throws IOException Thrown, if closing an outdated reader failed.
+	 * @throws IllegalStateException Thrown, if called by another thread than
+	 * 		the one that acquired the snapshot.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!m_bClosed) {
+			if (Thread.currentThread() != m_threadOwner) {
+				throw new IllegalStateException("A searcher snapshot must be closed by the thread that acquired it.");
+			}
+			m_bClosed = true;
+			m_index.releaseSnapshot(this);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "SearcherSnapshot { reader=" + m_searcher.getIndexReader() +
+				(m_bClosed ? ", closed" : "") + " }";
+	}
+
+	//
+	// Package Methods
+	//
+
+	/**
+	 * Returns the snapshot that was pinned to the thread before this one.
+	 * 
+	 * @return Previous snapshot or null.
+	 */
+	SearcherSnapshot getPreviousSnapshot() {
+		return m_snapshotPrevious;
+	}
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.RDKit.GenericRDKitException;
+import org.RDKit.RWMol;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FilteredDocIdSet;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.rdkit.lucene.bin.RDKit;
+
+/**
+ * A filter that accepts only documents with molecules that contain a query
+ * molecule as substructure. Candidates come from the fingerprint screen of a
+ * single index segment - either the fingerprint sidecar or the fingerprint
+ * query - and get verified inline, while the searcher iterates them, based
+ * on the stored values of the segment. Hence, no intermediate result gets
+ * materialized and the filter can be combined with any other query via
+ * {@link IndexSearcher#search(Query, Filter, org.apache.lucene.search.Collector)}.
+ * Wrapped into a {@link ConstantScoreQuery} it can also be used as query clause.
+ * <p>
+ * Query molecules are created per segment and live until the filter gets
+ * closed. A filter must be closed when the search is done.
+ * 
+ * @author Manuel Schwarze
+ */
+public class SubstructureFilter extends Filter implements Closeable {
+
+	//
+	// Constants
+	//
+
+	/** Serial number. */
+	private static final long serialVersionUID = 1L;
+
+	//
+	// Members
+	//
+
+	/** The SMILES of the query molecule. */
+	private final String m_strSmiles;
+
+	/** The query fingerprint. */
+	private final BitSet m_fpQuery;
+
+	/** The filter for the fingerprint screen, if no sidecar is used. */
+	private final Filter m_filterScreen;
+
+	/** The fingerprint sidecar to be used for the screen. Can be null. */
+	private transient final FingerprintSidecar m_fpSidecar;
+
+	/** The cache of SMILES columns to be used for verification. Can be null. */
+	private transient final MoleculeColumnCache m_molColumnCache;
+
+	/** The cleanup wave of all query molecules created by this filter. */
+	private transient final int m_iWaveId;
+
+	/** Counts molecules that could not be verified. */
+	private final AtomicInteger m_aiErrors;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new substructure filter.
+	 * 
+	 * @param strSmiles SMILES of the query molecule. Must not be null.
+	 * @param fpQuery Query fingerprint of the query molecule. Must not be null.
+	 * @param queryFingerprint Query that matches all documents containing all
+	 * 		bits of the query fingerprint. Must not be null.
+	 * @param fpSidecar Fingerprint sidecar to be used for the screen, if possible.
+	 * 		Can be null to use the fingerprint query always.
+	 */
+	public SubstructureFilter(final String strSmiles, final BitSet fpQuery,
+			final Query queryFingerprint, final FingerprintSidecar fpSidecar) {
+		this(strSmiles, fpQuery, queryFingerprint == null ? null :
+			new QueryWrapperFilter(queryFingerprint), fpSidecar);
+	}
+
+	/**
+	 * Creates a new substructure filter.
+	 * 
+	 * @param strSmiles SMILES of the query molecule. Must not be null.
+	 * @param fpQuery Query fingerprint of the query molecule. Must not be null.
+	 * @param filterScreen Filter that accepts all documents containing all
+	 * 		bits of the query fingerprint. Must not be null.
+	 * @param fpSidecar Fingerprint sidecar to be used for the screen, if possible.
+	 * 		Can be null to use the screen filter always.
+	 */
+	public SubstructureFilter(final String strSmiles, final BitSet fpQuery,
+			final Filter filterScreen, final FingerprintSidecar fpSidecar) {
+		this(strSmiles, fpQuery, filterScreen, fpSidecar, null);
+	}
+
+	/**
+	 * Creates a new substructure filter.
+	 * 
+	 * @param strSmiles SMILES of the query molecule. Must not be null.
+	 * @param fpQuery Query fingerprint of the query molecule. Must not be null.
+	 * @param filterScreen Filter that accepts all documents containing all
+	 * 		bits of the query fingerprint. Must not be null.
+	 * @param fpSidecar Fingerprint sidecar to be used for the screen, if possible.
+	 * 		Can be null to use the screen filter always.
+	 * @param molColumnCache Cache of SMILES columns to be used for verification,
+	 * 		if possible. Can be null to read stored fields always.
+	 */
+	public SubstructureFilter(final String strSmiles, final BitSet fpQuery,
+			final Filter filterScreen, final FingerprintSidecar fpSidecar,
+			final MoleculeColumnCache molColumnCache) {
+		if (strSmiles == null) {
+			throw new IllegalArgumentException("SMILES must not be null.");
+		}
+		if (fpQuery == null) {
+			throw new IllegalArgumentException("Query fingerprint must not be null.");
+		}
+		if (filterScreen == null) {
+			throw new IllegalArgumentException("Screen filter must not be null.");
+		}
+
+		m_strSmiles = strSmiles;
+		m_fpQuery = fpQuery;
+		m_filterScreen = filterScreen;
+		m_fpSidecar = fpSidecar;
+		m_molColumnCache = molColumnCache;
+		m_iWaveId = RDKit.createUniqueCleanupWaveId();
+		m_aiErrors = new AtomicInteger();
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Returns the SMILES of the query molecule.
+	 * 
+	 * @return Query SMILES.
+	 */
+	public String getSmiles() {
+		return m_strSmiles;
+	}
+
+	/**
+	 * Returns the number of molecules that failed verification so far. These
+	 * molecules are not accepted by the filter.
+	 * 
+	 * @return Number of errors.
+	 */
+	public int getErrorCount() {
+		return m_aiErrors.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * The returned set verifies candidates lazily while it gets iterated.
+	 * It must not be used anymore after the filter has been closed.
+	 */
+	@Override
+	public DocIdSet getDocIdSet(final IndexReader reader) throws IOException {
+		final DocIdSet candidates = new DocIdSet() {
+			@Override
+			public DocIdSetIterator iterator() throws IOException {
+				// Screen with packed fingerprints, if a sidecar is available for the segment
+				DocIdSetIterator iterator = (m_fpSidecar == null ? null :
+					m_fpSidecar.iterator(reader, m_fpQuery));
+				if (iterator == null) {
+					iterator = m_filterScreen.getDocIdSet(reader).iterator();
+				}
+				return iterator;
+			}
+		};
+
+		// Every segment gets its own query molecule, as segments may be searched concurrently
+		final RWMol molQuery = RDKit.markForCleanup(RWMol.MolFromSmiles(m_strSmiles, 0, false), m_iWaveId);
+		if (molQuery == null) {
+			return DocIdSet.EMPTY_DOCIDSET;
+		}
+
+		final String[] arrSmiles = ChemicalIndex.getSmilesColumn(m_molColumnCache, reader);
+
+		return new FilteredDocIdSet(candidates) {
+			@Override
+			protected boolean match(final int iDoc) throws IOException {
+				boolean bMatch = false;
+
+				try {
+					bMatch = ChemicalIndex.hasSubstructMatch(reader, iDoc, arrSmiles, molQuery);
+				}
+				catch (final GenericRDKitException exc) {
+					m_aiErrors.incrementAndGet();
+				}
+
+				return bMatch;
+			}
+
+			@Override
+			public boolean isCacheable() {
+				// Verification results must not be cached, as the query molecule gets freed
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Frees the query molecules that have been created by this filter.
+	 */
+	@Override
+	public void close() {
+		RDKit.cleanupMarkedObjects(m_iWaveId);
+	}
+
+	@Override
+	public String toString() {
+		return "SubstructureFilter(" + m_strSmiles + ")";
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopDocsCollector;
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * A {@link Collector} for chemistry results that do not have a meaningful
+ * rank, e.g. exact, fingerprint or substructure matches. Hits are kept in the
+ * order they are collected, which is index order, up to a maximum number of
+ * hits. Further hits are only counted. In contrast to a priority queue based
+ * collector nothing gets preallocated for the maximum number of hits. The
+ * buffers grow with the hits instead, hence a search with a few hits stays
+ * cheap even if a huge maximum is requested. The resulting documents are the
+ * same as of a score based collector, as long as all hits have the same score.
+ * 
+ * @author Manuel Schwarze
+ */
+public class UnrankedDocCollector extends TopDocsCollector<ScoreDoc> {
+
+	//
+	// Constants
+	//
+
+	/** Initial capacity of the hit buffers. */
+	private static final int INITIAL_CAPACITY = 16;
+
+	//
+	// Members
+	//
+
+	/** Maximum number of hits to be kept. */
+	private final int m_iMaxHits;
+
+	/** Document ids of the kept hits. */
+	private int[] m_arrDocs;
+
+	/** Scores of the kept hits. */
+	private float[] m_arrScores;
+
+	/** Number of kept hits. */
+	private int m_iCount;
+
+	/** Document base of the current reader. */
+	private int m_iDocBase;
+
+	/** Scorer of the current reader. Can be null. */
+	private Scorer m_scorer;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new collector.
+	 * 
+	 * @param iMaxHits Maximum number of hits to be kept. Must be > 0.
+	 */
+	public UnrankedDocCollector(final int iMaxHits) {
+		super(null);
+
+		if (iMaxHits <= 0) {
+			throw new IllegalArgumentException("Maximum number of hits must be > 0.");
+		}
+
+		m_iMaxHits = iMaxHits;
+		m_arrDocs = new int[Math.min(iMaxHits, INITIAL_CAPACITY)];
+		m_arrScores = new float[m_arrDocs.length];
+		m_iCount = 0;
+		m_iDocBase = 0;
+		m_scorer = null;
+	}
+
+	//
+	// Public Methods
+	//
+
+	@Override
+	public void setScorer(final Scorer scorer) throws IOException {
+		m_scorer = scorer;
+	}
+
+	@Override
+	public void setNextReader(final IndexReader reader, final int iDocBase) throws IOException {
+		m_iDocBase = iDocBase;
+	}
+
+	@Override
+	public boolean acceptsDocsOutOfOrder() {
+		return false;
+	}
+
+	@Override
+	public void collect(final int doc) throws IOException {
+		if (m_iCount < m_iMaxHits) {
+			collect(doc, m_scorer == null ? 1.0f : m_scorer.score());
+		}
+		else {
+			totalHits++;
+		}
+	}
+
+	/**
+	 * Collect method, which allows passing in a score.
+	 * 
+	 * @param doc Document ID to collect, relative to the current reader.
+	 * @param score Score to be used.
+	 */
+	public void collect(final int doc, final float score) {
+		totalHits++;
+
+		if (m_iCount < m_iMaxHits) {
+			if (m_iCount == m_arrDocs.length) {
+				final int iCapacity = Math.min(m_iMaxHits, ArrayUtil.oversize(m_iCount + 1, 4));
+				final int[] arrDocs = new int[iCapacity];
+				final float[] arrScores = new float[iCapacity];
+				System.arraycopy(m_arrDocs, 0, arrDocs, 0, m_iCount);
+				System.arraycopy(m_arrScores, 0, arrScores, 0, m_iCount);
+				m_arrDocs = arrDocs;
+				m_arrScores = arrScores;
+			}
+			m_arrDocs[m_iCount] = m_iDocBase + doc;
+			m_arrScores[m_iCount] = score;
+			m_iCount++;
+		}
+	}
+
+	/**
+	 * Returns true, if the maximum number of hits has been kept already.
+	 * 
+	 * @return True, if further hits would only be counted.
+	 */
+	public boolean isFull() {
+		return m_iCount >= m_iMaxHits;
+	}
+
+	@Override
+	protected int topDocsSize() {
+		return m_iCount;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * In contrast to other collectors, this method can be called multiple times.
+	 */
+	@Override
+	public TopDocs topDocs() {
+		return topDocs(0, m_iCount);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * In contrast to other collectors, this method can be called multiple times.
+	 */
+	@Override
+	public TopDocs topDocs(final int start) {
+		return topDocs(start, m_iCount);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * Hits are returned in index order. In contrast to other collectors,
+	 * this method can be called multiple times.
+	 */
+	@Override
+	public TopDocs topDocs(final int start, final int howMany) {
+		if (start < 0 || start >= m_iCount || howMany <= 0) {
+			return newTopDocs(null, start);
+		}
+
+		final int iEnd = (int)Math.min((long)start + howMany, m_iCount);
+		final ScoreDoc[] results = new ScoreDoc[iEnd - start];
+		for (int i = start; i < iEnd; i++) {
+			results[i - start] = new ScoreDoc(m_arrDocs[i], m_arrScores[i]);
+		}
+
+		return newTopDocs(results, start);
+	}
+
+	//
+	// Protected Methods
+	//
+
+	@Override
+	protected TopDocs newTopDocs(final ScoreDoc[] results, final int start) {
+		if (results == null) {
+			return new TopDocs(totalHits, new ScoreDoc[0], Float.NaN);
+		}
+
+		float fMaxScore = Float.NEGATIVE_INFINITY;
+		for (int i = 0; i < m_iCount; i++) {
+			fMaxScore = Math.max(fMaxScore, m_arrScores[i]);
+		}
+
+		return new TopDocs(totalHits, results, fMaxScore);
+	}
+}
@@ -32,10 +32,34 @@
  */
 package org.rdkit.lucene.bin;
 
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import org.rdkit.lucene.util.SystemUtils;
 
-class Cleaner implements RDKitObjectCleaner {
+
+class Cleaner implements RDKitObjectCleaner, RDKitCleanupMXBean {
+
+	//
+	// Constants
+	//
+
+	/** The logger instance. */
+	private static final Logger LOGGER = Logger.getLogger(Cleaner.class.getName());
+
+	/** Minimal time in milliseconds between two checks of the watchdog. */
+	private static final long MIN_WATCHDOG_INTERVAL = 1000;
+
+	/** Time in seconds the cleanup thread stays alive when there is nothing left to do. */
+	private static final long IDLE_THREAD_KEEP_ALIVE = 10;
 
 	//
 	// Statics
@@ -57,6 +81,43 @@ class Cleaner implements RDKitObjectCleaner {
 	 */
 	private final RDKitCleanupTracker m_rdkitCleanupTracker = new RDKitCleanupTracker();
 
+	/** The single daemon thread executor for delayed cleanup and the watchdog. */
+	private final ScheduledThreadPoolExecutor m_execCleanup;
+
+	/** The quarantine for objects, which must not be cleaned up immediately. */
+	private final RDKitQuarantine m_quarantine;
+
+	/** The maximal age in milliseconds of a wave before it is considered stale. 0 to disable the watchdog. */
+	private volatile long m_lWatchdogMaxWaveAge = 0;
+
+	/** The scheduled watchdog. Null, if disabled. Access is synchronized on this object. */
+	private ScheduledFuture<?> m_futureWatchdog;
+
+	/** Stale waves that have been logged already. Only accessed by the watchdog. */
+	private final Set<Integer> m_setReportedWaves = new HashSet<Integer>();
+
+	/** Number of stale waves found by the watchdog. */
+	private final AtomicLong m_lStaleWaves = new AtomicLong();
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new cleaner.
+	 */
+	Cleaner() {
+		m_execCleanup = new ScheduledThreadPoolExecutor(1,
+				SystemUtils.createDaemonThreadFactory("RDKit Object Cleanup"));
+		m_execCleanup.setKeepAliveTime(IDLE_THREAD_KEEP_ALIVE, TimeUnit.SECONDS);
+		m_execCleanup.allowCoreThreadTimeOut(true);
+		m_quarantine = new RDKitQuarantine(RDKit.RDKIT_OBJECT_CLEANUP_DELAY_FOR_QUARANTINE, m_execCleanup);
+	}
+
+	//
+	// Public Methods
+	//
+
 	/**
 	 * Creates a new wave id. This id must be unique in the context of the
 	 * overall runtime of the Java VM, at least in the context of the same
@@ -234,6 +295,148 @@ class Cleaner implements RDKitObjectCleaner {
 	 * interest into quarantine.
 	 */
 	public void quarantineAndCleanupMarkedObjects() {
-		m_rdkitCleanupTracker.quarantineAndCleanupMarkedObjects();
+		m_rdkitCleanupTracker.quarantineAndCleanupMarkedObjects(m_quarantine);
+	}
+
+	@Override
+	public int getObjectCount() {
+		return m_rdkitCleanupTracker.getObjectCount();
+	}
+
+	@Override
+	public int getWaveCount() {
+		return m_rdkitCleanupTracker.getWaveCount();
+	}
+
+	@Override
+	public long getOldestWaveAge() {
+		return m_rdkitCleanupTracker.getOldestWaveAge();
+	}
+
+	@Override
+	public Map<String, Integer> getObjectCountsByClass() {
+		return m_rdkitCleanupTracker.getObjectCountsByClass();
+	}
+
+	@Override
+	public Map<Integer, Integer> getObjectCountsByWave() {
+		return m_rdkitCleanupTracker.getObjectCountsByWave();
+	}
+
+	@Override
+	public long getEstimatedNativeBytes() {
+		return m_rdkitCleanupTracker.estimateNativeBytes();
+	}
+
+	@Override
+	public long getStaleWaveCount() {
+		return m_lStaleWaves.get();
+	}
+
+	@Override
+	public long getWatchdogMaxWaveAge() {
+		return m_lWatchdogMaxWaveAge;
+	}
+
+	/**
+	 * Sets the maximal age of a wave before the watchdog considers it stale.
+	 * The watchdog checks the waves periodically, at half the maximal age,
+	 * but not more often than once per second.
+	 * 
+	 * @param lMaxWaveAge Maximal age in milliseconds. Set to 0 to disable the watchdog.
+	 */
+	@Override
+	public synchronized void setWatchdogMaxWaveAge(final long lMaxWaveAge) {
+		if (lMaxWaveAge < 0) {
+			throw new IllegalArgumentException("Maximal wave age must not be negative.");
+		}
+
+		if (m_futureWatchdog != null) {
+			m_futureWatchdog.cancel(false);
+			m_futureWatchdog = null;
+		}
+
+		m_lWatchdogMaxWaveAge = lMaxWaveAge;
+
+		if (lMaxWaveAge > 0) {
+			final long lInterval = Math.max(MIN_WATCHDOG_INTERVAL, lMaxWaveAge / 2);
+			m_futureWatchdog = m_execCleanup.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					checkWaves();
+				}
+			}, lInterval, lInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@Override
+	public long getQuarantinedObjectCount() {
+		return m_quarantine.getPendingObjectCount();
+	}
+
+	@Override
+	public long getQuarantinedNativeBytes() {
+		return m_quarantine.getPendingNativeBytes();
+	}
+
+	/**
+	 * Returns the number of quarantine batches waiting for deletion.
+	 * 
+	 * @return Number of quarantine batches.
+	 */
+	public int getQuarantineBatchCount() {
+		return m_quarantine.getPendingBatchCount();
+	}
+
+	/**
+	 * Returns the number of objects deleted after their quarantine so far.
+	 * 
+	 * @return Number of deleted objects.
+	 */
+	public long getQuarantineDeletedObjectCount() {
+		return m_quarantine.getDeletedObjectCount();
+	}
+
+	//
+	// Private Methods
+	//
+
+	/**
+	 * Looks for waves that are older than the configured maximal age. Newly found
+	 * stale waves get logged only, as a long running wave may still be in use.
+	 */
+	private void checkWaves() {
+		try {
+			final long lMaxWaveAge = m_lWatchdogMaxWaveAge;
+			if (lMaxWaveAge > 0) {
+				final Map<Integer, Long> mapStale = m_rdkitCleanupTracker.getWavesOlderThan(lMaxWaveAge);
+				m_setReportedWaves.retainAll(mapStale.keySet());
+
+				if (!mapStale.isEmpty()) {
+					final Map<Integer, Integer> mapCounts = m_rdkitCleanupTracker.getObjectCountsByWave();
+					final StringBuilder sbWaves = new StringBuilder();
+					int iNewStaleWaves = 0;
+
+					for (final Map.Entry<Integer, Long> entry : mapStale.entrySet()) {
+						if (m_setReportedWaves.add(entry.getKey())) {
+							iNewStaleWaves++;
+							sbWaves.append(sbWaves.length() == 0 ? "" : ", ").append(entry.getKey())
+							.append(" (").append(entry.getValue()).append(" ms, ")
+							.append(mapCounts.get(entry.getKey())).append(" objects)");
+						}
+					}
+
+					if (iNewStaleWaves > 0) {
+						m_lStaleWaves.addAndGet(iNewStaleWaves);
+						LOGGER.warning(iNewStaleWaves + " RDKit cleanup wave(s) are older than " + lMaxWaveAge +
+								" ms and were probably never cleaned up: " + sbWaves +
+								". Registered objects per class: " + m_rdkitCleanupTracker.getObjectCountsByClass());
+					}
+				}
+			}
+		}
+		catch (final RuntimeException exc) {
+			LOGGER.log(Level.SEVERE, "Checking RDKit cleanup waves failed.", exc);
+		}
 	}
 }
\ No newline at end of file
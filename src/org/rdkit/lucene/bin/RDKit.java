@@ -33,11 +33,15 @@
 package org.rdkit.lucene.bin;
 
 import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
 import org.RDKit.GenericRDKitException;
 import org.RDKit.Int_Vect;
 import org.RDKit.ROMol;
@@ -58,6 +62,9 @@ public class RDKit {
 	 */
 	public static final long RDKIT_OBJECT_CLEANUP_DELAY_FOR_QUARANTINE = 60000; // 60 seconds
 
+	/** The JMX object name the cleanup MBean gets registered with. */
+	public static final String CLEANUP_MBEAN_NAME = "org.rdkit.lucene:type=RDKitCleanup";
+
 	private static final String OS_WIN32 = "win32";
 
 	private static final String OS_LINUX = "linux";
@@ -83,6 +90,9 @@ public class RDKit {
 	/** The one and only cleaner instance. */
 	private static final Cleaner CLEANER = new Cleaner();
 
+	/** Flag to determine, if the cleanup MBean was registered. */
+	private static boolean g_bMBeanRegistered = false;
+
 	/** Flag to determine, if an activation was successful. */
 	private static boolean g_bActivated = false;
 
@@ -199,12 +209,19 @@ public class RDKit {
 	 */
 	public static byte[] toByteArray(final ROMol mol)
 			throws GenericRDKitException {
+		// Note: The Java wrappers offer no bulk access to the vector content
 		final Int_Vect iv = mol.ToBinary();
-		final byte[] bytes = new byte[(int)iv.size()];
-		for (int i = 0; i < bytes.length; i++) {
-			bytes[i] = (byte)iv.get(i);
+		try {
+			final int iLength = (int)iv.size();
+			final byte[] bytes = new byte[iLength];
+			for (int i = 0; i < iLength; i++) {
+				bytes[i] = (byte)iv.get(i);
+			}
+			return bytes;
+		}
+		finally {
+			iv.delete();
 		}
-		return bytes;
 	}
 
 	/**
@@ -218,11 +235,31 @@ public class RDKit {
 	 */
 	public static ROMol toROMol(final byte[] bytes)
 			throws GenericRDKitException {
-		final Int_Vect iv = new Int_Vect(bytes.length);
-		for (int i = 0; i < bytes.length; i++) {
-			iv.set(i, bytes[i]);
+		final int iLength = bytes.length;
+		// The vector is only a scratch buffer, so it gets reused by the thread
+		final Int_Vect iv = RDKitObjectPool.acquireIntVector(iLength);
+		try {
+			for (int i = 0; i < iLength; i++) {
+				iv.add(bytes[i]);
+			}
+			return ROMol.MolFromBinary(iv);
+		}
+		finally {
+			RDKitObjectPool.releaseIntVector(iv);
 		}
-		return ROMol.MolFromBinary(iv);
+	}
+
+	/**
+	 * Opens a new cleanup scope for the calling thread. In contrast to the
+	 * wave based methods of this class a scope does not share any state with
+	 * other threads, hence it should be preferred for short-lived objects in
+	 * code that runs concurrently.
+	 *
+	 * @return New cleanup scope owned by the calling thread. Must be closed
+	 * 		by the same thread.
+	 */
+	public static RDKitCleanupScope openCleanupScope() {
+		return new RDKitCleanupScope();
 	}
 
 	/**
@@ -385,9 +422,100 @@ public class RDKit {
 	 * Removes all resources for all objects that have been registered prior to
 	 * this last call using the method {@link #cleanupMarkedObjects()}, but
 	 * delayes the cleanup process. It basically moves the objects of interest
-	 * into quarantine.
+	 * into quarantine. The delayed cleanup is performed by a single shared
+	 * daemon thread.
 	 */
 	public static void quarantineAndCleanupMarkedObjects() {
 		CLEANER.quarantineAndCleanupMarkedObjects();
 	}
+
+	/**
+	 * Returns the number of objects in quarantine, which are waiting for
+	 * their delayed cleanup.
+	 * 
+	 * @return Number of quarantined objects.
+	 */
+	public static long getQuarantinedObjectCount() {
+		return CLEANER.getQuarantinedObjectCount();
+	}
+
+	/**
+	 * Returns the estimated native memory in bytes of all objects in
+	 * quarantine. The estimate is based on the size of the objects (e.g.
+	 * number of atoms and bonds) and is only meant to detect leaks or
+	 * unusual load.
+	 * 
+	 * @return Estimated native memory of quarantined objects.
+	 */
+	public static long getQuarantinedNativeBytes() {
+		return CLEANER.getQuarantinedNativeBytes();
+	}
+
+	/**
+	 * Returns the number of quarantine batches waiting for deletion. Objects
+	 * quarantined within a short time window share one batch.
+	 * 
+	 * @return Number of quarantine batches.
+	 */
+	public static int getQuarantineBatchCount() {
+		return CLEANER.getQuarantineBatchCount();
+	}
+
+	/**
+	 * Returns the number of objects, which have been cleaned up after their
+	 * quarantine so far.
+	 * 
+	 * @return Number of cleaned up objects.
+	 */
+	public static long getQuarantineDeletedObjectCount() {
+		return CLEANER.getQuarantineDeletedObjectCount();
+	}
+
+	/**
+	 * Returns live counters of the objects registered for cleanup. These are
+	 * the same counters that are available via JMX after calling
+	 * {@link #registerCleanupMBean()}.
+	 * 
+	 * @return Cleanup statistics and watchdog settings. Never null.
+	 */
+	public static RDKitCleanupMXBean getCleanupStatistics() {
+		return CLEANER;
+	}
+
+	/**
+	 * Configures the watchdog, which looks for cleanup waves that exist
+	 * longer than expected. This happens, if a wave id was forgotten to be
+	 * cleaned up, which leaks native memory. Stale waves get logged as
+	 * warning only. They are not cleaned up, as a wave may legitimately
+	 * live long, e.g. the one of a substructure filter.
+	 * Objects registered without wave are never considered stale.
+	 * 
+	 * @param lMaxWaveAge Maximal age in milliseconds of a wave. Set to 0
+	 * 		to disable the watchdog, which is the default.
+	 */
+	public static void setCleanupWatchdog(final long lMaxWaveAge) {
+		CLEANER.setWatchdogMaxWaveAge(lMaxWaveAge);
+	}
+
+	/**
+	 * Registers the cleanup statistics and watchdog settings as MBean with the
+	 * platform MBean server under the name {@link #CLEANUP_MBEAN_NAME}.
+	 * Subsequent calls have no effect.
+	 * 
+	 * @return True, if the MBean is registered. False, if the registration failed.
+	 */
+	public static synchronized boolean registerCleanupMBean() {
+		if (!g_bMBeanRegistered) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(
+						CLEANER, new ObjectName(CLEANUP_MBEAN_NAME));
+				g_bMBeanRegistered = true;
+			}
+			catch (final JMException exc) {
+				LOGGER.log(Level.WARNING, "Unable to register RDKit cleanup MBean.", exc);
+			}
+		}
+
+		return g_bMBeanRegistered;
+	}
 }
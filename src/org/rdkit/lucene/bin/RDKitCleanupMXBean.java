@@ -0,0 +1,126 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene.bin;
+
+import java.util.Map;
+
+/**
+ * Management interface to monitor RDKit objects, which are registered for
+ * cleanup, and to configure the watchdog that reports waves that are never
+ * cleaned up.
+ * It gets registered via {@link RDKit#registerCleanupMBean()} under the name
+ * {@link RDKit#CLEANUP_MBEAN_NAME}.
+ * 
+ * @author Manuel Schwarze
+ */
+public interface RDKitCleanupMXBean {
+
+	/**
+	 * Returns the number of objects waiting for cleanup.
+	 * 
+	 * @return Number of registered objects.
+	 */
+	int getObjectCount();
+
+	/**
+	 * Returns the number of waves, which have objects waiting for cleanup.
+	 * 
+	 * @return Number of waves.
+	 */
+	int getWaveCount();
+
+	/**
+	 * Returns the age of the oldest wave. Objects registered without wave
+	 * are not considered.
+	 * 
+	 * @return Age in milliseconds or 0, if there are no waves.
+	 */
+	long getOldestWaveAge();
+
+	/**
+	 * Returns the number of objects waiting for cleanup per class.
+	 * 
+	 * @return Number of registered objects per class name.
+	 */
+	Map<String, Integer> getObjectCountsByClass();
+
+	/**
+	 * Returns the number of objects waiting for cleanup per wave.
+	 * 
+	 * @return Number of registered objects per wave.
+	 */
+	Map<Integer, Integer> getObjectCountsByWave();
+
+	/**
+	 * Returns the native memory of all objects waiting for cleanup, as it
+	 * was estimated when they got registered.
+	 * 
+	 * @return Estimated native memory in bytes.
+	 */
+	long getEstimatedNativeBytes();
+
+	/**
+	 * Returns the number of objects in quarantine, which are waiting for deletion.
+	 * 
+	 * @return Number of quarantined objects.
+	 */
+	long getQuarantinedObjectCount();
+
+	/**
+	 * Returns the estimated native memory in bytes of all objects in quarantine.
+	 * 
+	 * @return Estimated native memory of quarantined objects.
+	 */
+	long getQuarantinedNativeBytes();
+
+	/**
+	 * Returns the number of stale waves the watchdog has found so far.
+	 * 
+	 * @return Number of stale waves.
+	 */
+	long getStaleWaveCount();
+
+	/**
+	 * Returns the maximal age of a wave before the watchdog considers it stale.
+	 * 
+	 * @return Maximal age in milliseconds. 0, if the watchdog is disabled.
+	 */
+	long getWatchdogMaxWaveAge();
+
+	/**
+	 * Sets the maximal age of a wave before the watchdog considers it stale.
+	 * 
+	 * @param lMaxWaveAge Maximal age in milliseconds. Set to 0 to disable the watchdog.
+	 */
+	void setWatchdogMaxWaveAge(long lMaxWaveAge);
+}
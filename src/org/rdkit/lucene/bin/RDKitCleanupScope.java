@@ -0,0 +1,186 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene.bin;
+
+import java.util.Arrays;
+
+/**
+ * A cleanup scope collects RDKit objects that are only needed within a
+ * certain block of code and frees their native resources when the scope
+ * gets closed. In contrast to the wave based cleanup of {@link RDKit} a
+ * scope is confined to the thread that opened it, hence it does not need
+ * any locking. Objects get deleted in the reverse order of registration.
+ * Typical usage:
+ * 
+ * <pre>
+ * final RDKitCleanupScope scope = RDKit.openCleanupScope();
+ * try {
+ *     final ROMol mol = scope.markForCleanup(RWMol.MolFromSmiles(strSmiles));
+ *     ...
+ * }
+ * finally {
+ *     scope.close();
+ * }
+ * </pre>
+ * 
+ * @author Manuel Schwarze
+ */
+public final class RDKitCleanupScope implements AutoCloseable {
+
+	//
+	// Constants
+	//
+
+	/** The initial number of objects a scope can hold without growing. */
+	private static final int INITIAL_CAPACITY = 8;
+
+	//
+	// Members
+	//
+
+	/** The thread that opened the scope and is the only one allowed to use it. */
+	private final Thread m_threadOwner;
+
+	/** The registered objects. */
+	private Object[] m_arrObjects;
+
+	/** The number of registered objects. */
+	private int m_iCount;
+
+	/** Flag to determine, if the scope was closed already. */
+	private boolean m_bClosed;
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new cleanup scope, which is owned by the calling thread.
+	 */
+	public RDKitCleanupScope() {
+		m_threadOwner = Thread.currentThread();
+		m_arrObjects = new Object[INITIAL_CAPACITY];
+	}
+
+	//
+	// Public Methods
+	//
+
+	/**
+	 * Registers an RDKit based object, which must have a delete() method
+	 * implemented for freeing up resources when the scope gets closed.
+	 * An object must be registered only once.
+	 * 
+	 * @param <T> Any class that implements a delete() method to be called to free up resources.
+	 * @param rdkitObject An RDKit related object that should free resources when not
+	 * 		used anymore. Can be null.
+	 * 
+	 * @return The same object that was passed in. Null, if null was passed in.
+	 * 
+	 * @throws IllegalStateException Thrown, if the scope is used by another thread
+	 * 		than the one that opened it or if it was closed already.
+	 */
+	public <T extends Object> T markForCleanup(final T rdkitObject) {
+		checkAccess();
+
+		if (rdkitObject != null) {
+			if (m_iCount == m_arrObjects.length) {
+				m_arrObjects = Arrays.copyOf(m_arrObjects, m_iCount << 1);
+			}
+			m_arrObjects[m_iCount++] = rdkitObject;
+		}
+
+		return rdkitObject;
+	}
+
+	/**
+	 * Returns the number of objects that are registered for cleanup.
+	 * 
+	 * @return Number of registered objects.
+	 */
+	public int size() {
+		return m_iCount;
+	}
+
+	/**
+	 * Determines, if this scope was closed already.
+	 * 
+	 * @return True, if closed. False otherwise.
+	 */
+	public boolean isClosed() {
+		return m_bClosed;
+	}
+
+	/**
+	 * Frees the resources of all registered objects in reverse order of their
+	 * registration. Failures of single objects are logged and do not stop
+	 * the cleanup of the others. Closing a scope a second time has no effect.
+	 * 
+	 * @throws IllegalStateException Thrown, if the scope is closed by another thread
+	 * 		than the one that opened it.
+	 */
+	@Override
+	public void close() {
+		if (!m_bClosed) {
+			if (Thread.currentThread() != m_threadOwner) {
+				throw new IllegalStateException("A cleanup scope must be closed by the thread that opened it.");
+			}
+
+			m_bClosed = true;
+			for (int i = m_iCount - 1; i >= 0; i--) {
+				final Object objForCleanup = m_arrObjects[i];
+				m_arrObjects[i] = null;
+				RDKitDeleteDispatcher.delete(objForCleanup);
+			}
+			m_iCount = 0;
+		}
+	}
+
+	//
+	// Private Methods
+	//
+
+	/**
+	 * Ensures that the scope is still open and used by its owning thread.
+	 * 
+	 * @throws IllegalStateException Thrown, if the scope cannot be used.
+	 */
+	private void checkAccess() {
+		if (Thread.currentThread() != m_threadOwner) {
+			throw new IllegalStateException("A cleanup scope must only be used by the thread that opened it.");
+		}
+		if (m_bClosed) {
+			throw new IllegalStateException("The cleanup scope was closed already.");
+		}
+	}
+}
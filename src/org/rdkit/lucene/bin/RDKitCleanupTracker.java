@@ -32,14 +32,13 @@
  */
 package org.rdkit.lucene.bin;
 
-import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.logging.Level;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -60,6 +59,28 @@ class RDKitCleanupTracker extends HashMap<Integer, List<Object>> {
 	/** The logger instance. */
 	protected static final Logger LOGGER = Logger.getLogger(RDKitCleanupTracker.class.getName());
 
+	/** The wave that is used, if objects are registered without wave. It is never considered stale. */
+	public static final int NO_WAVE = 0;
+
+	//
+	// Members
+	//
+
+	/** Time (System.nanoTime()) when a wave got its first object. */
+	private final Map<Integer, Long> m_mapWaveCreationTimes = new HashMap<Integer, Long>();
+
+	/** Number of registered objects per class. */
+	private final Map<Class<?>, int[]> m_mapObjectCountsByClass = new HashMap<Class<?>, int[]>();
+
+	/** Number of all registered objects. */
+	private int m_iObjectCount = 0;
+
+	/** Native memory per wave, estimated when the objects got registered. */
+	private final Map<Integer, long[]> m_mapWaveNativeBytes = new HashMap<Integer, long[]>();
+
+	/** Native memory of all registered objects, estimated when they got registered. */
+	private long m_lNativeBytes = 0;
+
 	//
 	// Constructors
 	//
@@ -91,16 +112,6 @@ class RDKitCleanupTracker extends HashMap<Integer, List<Object>> {
 		super(initialCapacity);
 	}
 
-	/**
-	 * Creates a copy of an existing RDKitCleanupTracker object.
-	 * 
-	 * @param existing
-	 *            The existing object. Must not be null.
-	 */
-	private RDKitCleanupTracker(final RDKitCleanupTracker existing) {
-		super(existing);
-	}
-
 	//
 	// Public Methods
 	//
@@ -137,39 +148,52 @@ class RDKitCleanupTracker extends HashMap<Integer, List<Object>> {
 	 * @return The same object that was passed in. Null, if null was passed
 	 *         in.
 	 */
-	public synchronized <T extends Object> T markForCleanup(
+	public <T extends Object> T markForCleanup(
 			final T rdkitObject, final int wave,
 			final boolean bRemoveFromOtherWave) {
 		if (rdkitObject != null) {
 
-			// Remove object from any other list, if desired (cost
-			// performance!)
-			if (bRemoveFromOtherWave) {
-
-				// Loop through all waves to find the rdkitObject - we
-				// create a copy here, because
-				// we may remove empty wave lists which may blow up out
-				// iterator
-				for (final int waveExisting : new HashSet<Integer>(keySet())) {
-					final List<Object> list = get(waveExisting);
-					if (list.remove(rdkitObject) && list.isEmpty()) {
-						remove(waveExisting);
+			// The size is estimated only once and outside of the lock, as it calls
+			// into the native object, which may be in use by other threads later on
+			final long lBytes = RDKitQuarantine.estimateNativeBytes(rdkitObject);
+
+			synchronized (this) {
+				// Remove object from any other list, if desired (cost
+				// performance!)
+				if (bRemoveFromOtherWave) {
+
+					// Loop through all waves to find the rdkitObject - we
+					// create a copy here, because
+					// we may remove empty wave lists which may blow up out
+					// iterator
+					for (final int waveExisting : new HashSet<Integer>(keySet())) {
+						final List<Object> list = get(waveExisting);
+						if (list.remove(rdkitObject)) {
+							countObject(rdkitObject, -1);
+							addNativeBytes(waveExisting, -lBytes);
+							if (list.isEmpty()) {
+								removeWave(waveExisting);
+							}
+						}
 					}
 				}
-			}
 
-			// Get the list of the target wave
-			List<Object> list = get(wave);
+				// Get the list of the target wave
+				List<Object> list = get(wave);
 
-			// Create a wave list, if not found yet
-			if (list == null) {
-				list = new ArrayList<Object>();
-				put(wave, list);
-			}
+				// Create a wave list, if not found yet
+				if (list == null) {
+					list = new ArrayList<Object>();
+					put(wave, list);
+					m_mapWaveCreationTimes.put(wave, System.nanoTime());
+				}
 
-			// Add the object only once
-			if (!list.contains(rdkitObject)) {
-				list.add(rdkitObject);
+				// Add the object only once
+				if (!list.contains(rdkitObject)) {
+					list.add(rdkitObject);
+					countObject(rdkitObject, +1);
+					addNativeBytes(wave, lBytes);
+				}
 			}
 		}
 
@@ -205,43 +229,12 @@ class RDKitCleanupTracker extends HashMap<Integer, List<Object>> {
 		// If wave list was found, free all objects in it
 		if (list != null) {
 			for (final Object objForCleanup : list) {
-				Class<?> clazz = null;
-
-				try {
-					clazz = objForCleanup.getClass();
-					final Method method = clazz.getMethod("delete");
-					method.invoke(objForCleanup);
-				}
-				catch (final NoSuchMethodException excNoSuchMethod) {
-					LOGGER.log(Level.SEVERE,
-							"An object had been registered for cleanup (delete() call), "
-									+ "which does not provide a delete() method."
-									+ (clazz == null ? ""
-											: " It's of class "
-											+ clazz.getName() + "."),
-											excNoSuchMethod.getCause());
-				}
-				catch (final SecurityException excSecurity) {
-					LOGGER.log(Level.SEVERE,
-							"An object had been registered for cleanup (delete() call), "
-									+ "which is not accessible for security reasons."
-									+ (clazz == null ? ""
-											: " It's of class "
-											+ clazz.getName() + "."),
-											excSecurity.getCause());
-				}
-				catch (final Exception exc) {
-					LOGGER.log(Level.SEVERE,
-							"Cleaning up a registered object (via delete() call) failed."
-									+ (clazz == null ? ""
-											: " It's of class "
-											+ clazz.getName() + "."),
-											exc.getCause());
-				}
+				RDKitDeleteDispatcher.delete(objForCleanup);
+				countObject(objForCleanup, -1);
 			}
 
 			list.clear();
-			remove(wave);
+			removeWave(wave);
 		}
 	}
 
@@ -250,31 +243,182 @@ class RDKitCleanupTracker extends HashMap<Integer, List<Object>> {
 	 * to this last call using the method {@link #cleanupMarkedObjects()},
 	 * but delays the cleanup process. It basically moves the objects of
 	 * interest into quarantine.
+	 * 
+	 * @param quarantine The quarantine that deletes the objects later.
+	 * 		Must not be null.
 	 */
-	public synchronized void quarantineAndCleanupMarkedObjects() {
-		final RDKitCleanupTracker quarantineRDKitObjects = new RDKitCleanupTracker(
-				this);
-		clear();
-
-		if (!quarantineRDKitObjects.isEmpty()) {
-			// Create the future cleanup task
-			final TimerTask futureCleanupTask = new TimerTask() {
-
-				/**
-				 * Cleans up all marked objects, which are put into
-				 * quarantine for now.
-				 */
-				@Override
-				public void run() {
-					quarantineRDKitObjects.cleanupMarkedObjects();
-				}
-			};
+	public void quarantineAndCleanupMarkedObjects(final RDKitQuarantine quarantine) {
+		final List<Object> listQuarantine = new ArrayList<Object>();
+		final long lNativeBytes;
+
+		synchronized (this) {
+			for (final List<Object> list : values()) {
+				listQuarantine.addAll(list);
+			}
+			lNativeBytes = m_lNativeBytes;
+			clear();
+			m_mapWaveCreationTimes.clear();
+			m_mapObjectCountsByClass.clear();
+			m_iObjectCount = 0;
+			m_mapWaveNativeBytes.clear();
+			m_lNativeBytes = 0;
+		}
+
+		// The sizes were estimated when the objects got registered
+		quarantine.quarantine(listQuarantine, lNativeBytes);
+	}
+
+	/**
+	 * Determines all waves, which exist longer than the specified time.
+	 * Objects registered without wave are not considered.
+	 * 
+	 * @param lMaxAge Maximal age in milliseconds.
+	 * 
+	 * @return Ages in milliseconds of waves older than the specified time, sorted by wave id.
+	 */
+	public synchronized Map<Integer, Long> getWavesOlderThan(final long lMaxAge) {
+		final Map<Integer, Long> mapStale = new TreeMap<Integer, Long>();
+		final long lNow = System.nanoTime();
+
+		for (final Map.Entry<Integer, Long> entry : m_mapWaveCreationTimes.entrySet()) {
+			final long lAge = TimeUnit.NANOSECONDS.toMillis(lNow - entry.getValue());
+			if (entry.getKey() != NO_WAVE && lAge > lMaxAge) {
+				mapStale.put(entry.getKey(), lAge);
+			}
+		}
+
+		return mapStale;
+	}
+
+	/**
+	 * Returns the age of the oldest wave. Objects registered without wave
+	 * are not considered.
+	 * 
+	 * @return Age in milliseconds or 0, if there are no waves.
+	 */
+	public synchronized long getOldestWaveAge() {
+		final long lNow = System.nanoTime();
+		long lMaxAge = 0;
+
+		for (final Map.Entry<Integer, Long> entry : m_mapWaveCreationTimes.entrySet()) {
+			if (entry.getKey() != NO_WAVE) {
+				lMaxAge = Math.max(lMaxAge, TimeUnit.NANOSECONDS.toMillis(lNow - entry.getValue()));
+			}
+		}
+
+		return lMaxAge;
+	}
+
+	/**
+	 * Returns the number of objects waiting for cleanup.
+	 * 
+	 * @return Number of registered objects.
+	 */
+	public synchronized int getObjectCount() {
+		return m_iObjectCount;
+	}
+
+	/**
+	 * Returns the number of waves, which have objects waiting for cleanup.
+	 * 
+	 * @return Number of waves.
+	 */
+	public synchronized int getWaveCount() {
+		return size();
+	}
+
+	/**
+	 * Returns the number of objects waiting for cleanup per class.
+	 * 
+	 * @return Number of registered objects per class name, sorted by class name.
+	 */
+	public synchronized Map<String, Integer> getObjectCountsByClass() {
+		final Map<String, Integer> mapCounts = new TreeMap<String, Integer>();
+		for (final Map.Entry<Class<?>, int[]> entry : m_mapObjectCountsByClass.entrySet()) {
+			mapCounts.put(entry.getKey().getName(), entry.getValue()[0]);
+		}
+
+		return mapCounts;
+	}
+
+	/**
+	 * Returns the number of objects waiting for cleanup per wave.
+	 * 
+	 * @return Number of registered objects per wave, sorted by wave id.
+	 */
+	public synchronized Map<Integer, Integer> getObjectCountsByWave() {
+		final Map<Integer, Integer> mapCounts = new TreeMap<Integer, Integer>();
+		for (final Map.Entry<Integer, List<Object>> entry : entrySet()) {
+			mapCounts.put(entry.getKey(), entry.getValue().size());
+		}
+
+		return mapCounts;
+	}
 
-			// Schedule the cleanup task for later
-			final Timer timer = new Timer("Quarantine RDKit Object Cleanup",
-					false);
-			timer.schedule(futureCleanupTask,
-					RDKit.RDKIT_OBJECT_CLEANUP_DELAY_FOR_QUARANTINE);
+	/**
+	 * Returns the estimated native memory of all objects waiting for cleanup.
+	 * The size of each object is estimated when it gets registered, as the
+	 * objects may be in use by other threads afterwards.
+	 * 
+	 * @return Estimated native memory in bytes.
+	 * 
+	 * @see RDKitQuarantine#estimateNativeBytes(Object)
+	 */
+	public synchronized long estimateNativeBytes() {
+		return m_lNativeBytes;
+	}
+
+	//
+	// Private Methods
+	//
+
+	/**
+	 * Updates the object counters.
+	 * 
+	 * @param rdkitObject Registered object. Must not be null.
+	 * @param iDelta +1, if the object got registered, -1, if it got unregistered.
+	 */
+	private void countObject(final Object rdkitObject, final int iDelta) {
+		final Class<?> clazz = rdkitObject.getClass();
+		int[] arrCount = m_mapObjectCountsByClass.get(clazz);
+		if (arrCount == null) {
+			arrCount = new int[1];
+			m_mapObjectCountsByClass.put(clazz, arrCount);
+		}
+		arrCount[0] += iDelta;
+		if (arrCount[0] <= 0) {
+			m_mapObjectCountsByClass.remove(clazz);
+		}
+		m_iObjectCount += iDelta;
+	}
+
+	/**
+	 * Updates the estimated native memory of a wave.
+	 * 
+	 * @param wave A number that identifies objects registered for a certain "wave".
+	 * @param lDelta Bytes to be added, or to be removed, if negative.
+	 */
+	private void addNativeBytes(final int wave, final long lDelta) {
+		long[] arrBytes = m_mapWaveNativeBytes.get(wave);
+		if (arrBytes == null) {
+			arrBytes = new long[1];
+			m_mapWaveNativeBytes.put(wave, arrBytes);
+		}
+		arrBytes[0] += lDelta;
+		m_lNativeBytes += lDelta;
+	}
+
+	/**
+	 * Removes a wave, its creation time and its estimated native memory.
+	 * 
+	 * @param wave A number that identifies objects registered for a certain "wave".
+	 */
+	private void removeWave(final int wave) {
+		remove(wave);
+		m_mapWaveCreationTimes.remove(wave);
+		final long[] arrBytes = m_mapWaveNativeBytes.remove(wave);
+		if (arrBytes != null) {
+			m_lNativeBytes -= arrBytes[0];
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene.bin;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Calls the delete() method of RDKit objects to free up their native
+ * resources. The method is looked up only once per class and gets cached as
+ * method handle in a {@link ClassValue}, which can be read concurrently
+ * without any locking.
+ * 
+ * @author Manuel Schwarze
+ */
+final class RDKitDeleteDispatcher {
+
+	//
+	// Constants
+	//
+
+	/** The logger instance. */
+	private static final Logger LOGGER = Logger.getLogger(RDKitDeleteDispatcher.class.getName());
+
+	/** The type all cached delete handles get adapted to. */
+	private static final MethodType DELETE_TYPE = MethodType.methodType(void.class, Object.class);
+
+	/**
+	 * Delete handles per class. Null is cached for classes without an
+	 * accessible delete() method, the reason gets logged once.
+	 */
+	private static final ClassValue<MethodHandle> DELETE_HANDLES = new ClassValue<MethodHandle>() {
+		@Override
+		protected MethodHandle computeValue(final Class<?> clazz) {
+			MethodHandle handle = null;
+
+			try {
+				final Method method = clazz.getMethod("delete");
+				// Generated wrapper classes are public, but anonymous or nested subclasses may not be
+				if (!Modifier.isPublic(method.getDeclaringClass().getModifiers())) {
+					method.setAccessible(true);
+				}
+				handle = MethodHandles.publicLookup().unreflect(method).asType(DELETE_TYPE);
+			}
+			catch (final NoSuchMethodException excNoSuchMethod) {
+				LOGGER.log(Level.SEVERE, "An object had been registered for cleanup (delete() call), " +
+						"which does not provide a delete() method. It's of class " + clazz.getName() + ".");
+			}
+			catch (final Exception exc) {
+				LOGGER.log(Level.SEVERE, "An object had been registered for cleanup (delete() call), " +
+						"which is not accessible. It's of class " + clazz.getName() + ".", exc);
+			}
+
+			return handle;
+		}
+	};
+
+	//
+	// Constructor
+	//
+
+	private RDKitDeleteDispatcher() {
+		// Only here to avoid instantiation of this utility class
+	}
+
+	//
+	// Static Package Methods
+	//
+
+	/**
+	 * Calls the delete() method of the specified object. Failures are logged,
+	 * but never thrown, so that the cleanup of other objects can continue.
+	 * 
+	 * @param rdkitObject An RDKit related object to be deleted. Can be null.
+	 */
+	static void delete(final Object rdkitObject) {
+		if (rdkitObject != null) {
+			final MethodHandle handle = DELETE_HANDLES.get(rdkitObject.getClass());
+
+			if (handle != null) {
+				try {
+					handle.invokeExact(rdkitObject);
+				}
+				catch (final Throwable exc) {
+					if (exc instanceof Error && !(exc instanceof LinkageError)) {
+						throw (Error)exc;
+					}
+					LOGGER.log(Level.SEVERE, "Cleaning up a registered object (via delete() call) failed. " +
+							"It's of class " + rdkitObject.getClass().getName() + ".", exc);
+				}
+			}
+		}
+	}
+}
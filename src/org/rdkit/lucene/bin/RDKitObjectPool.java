@@ -0,0 +1,218 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene.bin;
+
+import org.RDKit.ExplicitBitVect;
+import org.RDKit.Int_Vect;
+
+/**
+ * Thread-local pools of native RDKit containers, which are needed only
+ * temporarily in hot loops like fingerprint calculation or substructure
+ * verification. Reusing them saves a JNI roundtrip for creation and deletion
+ * and reduces the churn of the native memory allocator.
+ * <p>
+ * Ownership rules: Every object acquired from the pool must be released
+ * again by the same thread, usually in a finally block, and must not be used
+ * anymore afterwards. Acquired objects must never be deleted, registered for
+ * cleanup or passed to another thread. Each thread pools one object per type.
+ * If it is still in use (e.g. in a nested call), a new object gets created and
+ * deleted on release. Pooled objects of a thread get freed when
+ * {@link #releaseThreadResources()} is called or when the thread has died.
+ * 
+ * @author Manuel Schwarze
+ */
+public final class RDKitObjectPool {
+
+	//
+	// Constants
+	//
+
+	/** Integer vectors with a larger capacity are not kept in the pool. */
+	public static final long MAX_POOLED_INT_VECTOR_CAPACITY = 1 << 20;
+
+	/** The pooled objects of every thread. */
+	private static final ThreadLocal<PooledObjects> POOLS = new ThreadLocal<PooledObjects>() {
+		@Override
+		protected PooledObjects initialValue() {
+			return new PooledObjects();
+		}
+	};
+
+	//
+	// Inner Classes
+	//
+
+	/**
+	 * The idle objects of a single thread.
+	 */
+	private static class PooledObjects {
+
+		/** The idle bit vector. Null, if none is pooled or it is in use. */
+		private ExplicitBitVect m_bitVector;
+
+		/** Number of bits of the idle bit vector. */
+		private int m_iBitVectorBits;
+
+		/** The idle integer vector. Null, if none is pooled or it is in use. */
+		private Int_Vect m_intVector;
+	}
+
+	//
+	// Constructor
+	//
+
+	private RDKitObjectPool() {
+		// Only here to avoid instantiation of this utility class
+	}
+
+	//
+	// Static Public Methods
+	//
+
+	/**
+	 * Acquires a bit vector with all bits cleared.
+	 * 
+	 * @param iNumBits Number of bits of the vector. Must be > 0.
+	 * 
+	 * @return Bit vector, which must be passed to {@link #releaseBitVector(ExplicitBitVect)}
+	 * 		by the calling thread when it is not used anymore.
+	 */
+	public static ExplicitBitVect acquireBitVector(final int iNumBits) {
+		if (iNumBits <= 0) {
+			throw new IllegalArgumentException("Number of bits must be a positive number > 0.");
+		}
+
+		final PooledObjects pool = POOLS.get();
+		ExplicitBitVect bitVector = pool.m_bitVector;
+
+		if (bitVector != null && pool.m_iBitVectorBits == iNumBits) {
+			pool.m_bitVector = null;
+			bitVector.clearBits();
+		}
+		else {
+			bitVector = new ExplicitBitVect(iNumBits);
+		}
+
+		return bitVector;
+	}
+
+	/**
+	 * Releases a bit vector that was acquired before by the calling thread.
+	 * It either goes back into the pool or gets deleted.
+	 * 
+	 * @param bitVector Bit vector acquired via {@link #acquireBitVector(int)}.
+	 * 		Can be null.
+	 */
+	public static void releaseBitVector(final ExplicitBitVect bitVector) {
+		if (bitVector != null) {
+			final PooledObjects pool = POOLS.get();
+
+			if (pool.m_bitVector == null) {
+				pool.m_bitVector = bitVector;
+				pool.m_iBitVectorBits = (int)bitVector.getNumBits();
+			}
+			else {
+				bitVector.delete();
+			}
+		}
+	}
+
+	/**
+	 * Acquires an empty integer vector to be used as scratch buffer.
+	 * 
+	 * @param iCapacity Number of elements to reserve space for. Must not be negative.
+	 * 
+	 * @return Empty integer vector, which must be passed to {@link #releaseIntVector(Int_Vect)}
+	 * 		by the calling thread when it is not used anymore.
+	 */
+	public static Int_Vect acquireIntVector(final int iCapacity) {
+		if (iCapacity < 0) {
+			throw new IllegalArgumentException("Capacity must not be negative.");
+		}
+
+		final PooledObjects pool = POOLS.get();
+		Int_Vect intVector = pool.m_intVector;
+
+		if (intVector != null) {
+			pool.m_intVector = null;
+			intVector.clear();
+		}
+		else {
+			intVector = new Int_Vect();
+		}
+		intVector.reserve(iCapacity);
+
+		return intVector;
+	}
+
+	/**
+	 * Releases an integer vector that was acquired before by the calling thread.
+	 * It either goes back into the pool or gets deleted, if the pool is occupied
+	 * or the vector has grown too large to be kept.
+	 * 
+	 * @param intVector Integer vector acquired via {@link #acquireIntVector(int)}.
+	 * 		Can be null.
+	 */
+	public static void releaseIntVector(final Int_Vect intVector) {
+		if (intVector != null) {
+			final PooledObjects pool = POOLS.get();
+
+			if (pool.m_intVector == null && intVector.capacity() <= MAX_POOLED_INT_VECTOR_CAPACITY) {
+				pool.m_intVector = intVector;
+			}
+			else {
+				intVector.delete();
+			}
+		}
+	}
+
+	/**
+	 * Deletes all pooled objects of the calling thread. This should be called
+	 * by long-living threads that do not need the pool anymore. The pool gets
+	 * refilled on demand when it is used again later.
+	 */
+	public static void releaseThreadResources() {
+		final PooledObjects pool = POOLS.get();
+
+		if (pool.m_bitVector != null) {
+			pool.m_bitVector.delete();
+			pool.m_bitVector = null;
+		}
+		if (pool.m_intVector != null) {
+			pool.m_intVector.delete();
+			pool.m_intVector = null;
+		}
+
+		POOLS.remove();
+	}
+}
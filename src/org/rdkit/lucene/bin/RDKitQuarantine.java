@@ -0,0 +1,304 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene.bin;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.RDKit.ExplicitBitVect;
+import org.RDKit.Int_Vect;
+import org.RDKit.ROMol;
+import org.RDKit.UInt_Vect;
+
+/**
+ * Holds RDKit objects in quarantine for a certain time before they get
+ * deleted. This is used for objects that may still be in use by native code
+ * (e.g. after a timeout), so that they cannot be deleted right away.
+ * All deletions are performed by a shared scheduled executor, which is
+ * expected to run a single daemon thread. Objects quarantined within a short time window
+ * are combined into one batch, so that bursts of quarantined waves do not
+ * cause a burst of scheduled tasks.
+ * 
+ * @author Manuel Schwarze
+ */
+class RDKitQuarantine {
+
+	//
+	// Constants
+	//
+
+	/** The logger instance. */
+	private static final Logger LOGGER = Logger.getLogger(RDKitQuarantine.class.getName());
+
+	/** Time window in milliseconds, in which quarantined objects get combined into one batch. */
+	private static final long BATCH_WINDOW = 1000;
+
+	//
+	// Inner Classes
+	//
+
+	/**
+	 * Objects that get deleted together.
+	 */
+	private static class Batch {
+
+		/** The objects to be deleted. */
+		private final List<Object> m_listObjects = new ArrayList<Object>();
+
+		/** Estimated native memory of all objects. */
+		private long m_lNativeBytes;
+
+		/** Time (System.nanoTime()) when the first objects of the batch were due for deletion. */
+		private long m_lFirstDueTime;
+
+		/** Time (System.nanoTime()) when the batch is due for deletion. */
+		private long m_lDueTime;
+	}
+
+	//
+	// Members
+	//
+
+	/** Time in milliseconds objects stay in quarantine. */
+	private final long m_lDelay;
+
+	/** The executor, which deletes the quarantined objects. */
+	private final ScheduledExecutorService m_execCleanup;
+
+	/** The batches waiting for deletion, ordered by their due time. Access is synchronized on this object. */
+	private final LinkedList<Batch> m_listBatches = new LinkedList<Batch>();
+
+	/** Flag to determine, if a cleanup run is scheduled. Access is synchronized on this object. */
+	private boolean m_bCleanupScheduled = false;
+
+	/** The number of objects waiting for deletion. */
+	private final AtomicLong m_lPendingObjects = new AtomicLong();
+
+	/** The estimated native memory of all objects waiting for deletion. */
+	private final AtomicLong m_lPendingNativeBytes = new AtomicLong();
+
+	/** The number of objects deleted so far. */
+	private final AtomicLong m_lDeletedObjects = new AtomicLong();
+
+	//
+	// Constructor
+	//
+
+	/**
+	 * Creates a new quarantine.
+	 * 
+	 * @param lDelay Time in milliseconds objects stay in quarantine before they get deleted.
+	 * @param execCleanup The executor, which deletes the quarantined objects. Must not be null.
+	 */
+	RDKitQuarantine(final long lDelay, final ScheduledExecutorService execCleanup) {
+		m_lDelay = lDelay;
+		m_execCleanup = execCleanup;
+	}
+
+	//
+	// Package Methods
+	//
+
+	/**
+	 * Puts the specified objects into quarantine. They get deleted when the
+	 * quarantine delay has passed. The objects are not touched before, as
+	 * they may still be in use by native code.
+	 * 
+	 * @param listObjects Objects to be deleted later. Must not be null.
+	 * @param lNativeBytes Estimated native memory of the objects, which was
+	 * 		determined when they got registered.
+	 */
+	void quarantine(final List<Object> listObjects, final long lNativeBytes) {
+		if (!listObjects.isEmpty()) {
+			m_lPendingObjects.addAndGet(listObjects.size());
+			m_lPendingNativeBytes.addAndGet(lNativeBytes);
+
+			final long lDueTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(m_lDelay);
+
+			synchronized (this) {
+				// Extend the last batch, if it was started only shortly before
+				Batch batch = m_listBatches.peekLast();
+				if (batch == null || lDueTime - batch.m_lFirstDueTime > TimeUnit.MILLISECONDS.toNanos(BATCH_WINDOW)) {
+					batch = new Batch();
+					batch.m_lFirstDueTime = lDueTime;
+					m_listBatches.addLast(batch);
+				}
+				batch.m_listObjects.addAll(listObjects);
+				batch.m_lNativeBytes += lNativeBytes;
+				batch.m_lDueTime = lDueTime;
+
+				if (!m_bCleanupScheduled) {
+					scheduleCleanup(m_listBatches.peekFirst().m_lDueTime);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of objects in quarantine, which are waiting for deletion.
+	 * 
+	 * @return Number of pending objects.
+	 */
+	long getPendingObjectCount() {
+		return m_lPendingObjects.get();
+	}
+
+	/**
+	 * Returns the estimated native memory in bytes of all objects in quarantine.
+	 * The estimate is rough and only meant to detect leaks or unusual load.
+	 * 
+	 * @return Estimated native memory of pending objects.
+	 */
+	long getPendingNativeBytes() {
+		return m_lPendingNativeBytes.get();
+	}
+
+	/**
+	 * Returns the number of batches waiting for deletion.
+	 * 
+	 * @return Number of pending batches.
+	 */
+	synchronized int getPendingBatchCount() {
+		return m_listBatches.size();
+	}
+
+	/**
+	 * Returns the number of objects, which have been deleted after their
+	 * quarantine so far.
+	 * 
+	 * @return Number of deleted objects.
+	 */
+	long getDeletedObjectCount() {
+		return m_lDeletedObjects.get();
+	}
+
+	/**
+	 * Estimates the native memory used by an RDKit object. The estimate
+	 * is based on the size of the object, but not on its detailed content.
+	 * 
+	 * @param rdkitObject An RDKit related object. Can be null.
+	 * 
+	 * @return Estimated native memory in bytes.
+	 */
+	static long estimateNativeBytes(final Object rdkitObject) {
+		long lBytes = 0;
+
+		try {
+			if (rdkitObject instanceof ROMol) {
+				final ROMol mol = (ROMol)rdkitObject;
+				lBytes = 512 + 256 * mol.getNumAtoms() + 96 * mol.getNumBonds();
+			}
+			else if (rdkitObject instanceof ExplicitBitVect) {
+				lBytes = 48 + ((ExplicitBitVect)rdkitObject).getNumBits() / 8;
+			}
+			else if (rdkitObject instanceof Int_Vect) {
+				lBytes = 24 + 4 * ((Int_Vect)rdkitObject).capacity();
+			}
+			else if (rdkitObject instanceof UInt_Vect) {
+				lBytes = 24 + 4 * ((UInt_Vect)rdkitObject).capacity();
+			}
+			else if (rdkitObject != null) {
+				lBytes = 64;
+			}
+		}
+		catch (final RuntimeException exc) {
+			// The object may be in an unusable state, which is not a problem for its deletion
+			lBytes = 64;
+		}
+
+		return lBytes;
+	}
+
+	//
+	// Private Methods
+	//
+
+	/**
+	 * Schedules the next cleanup run. Must be called while synchronized on this object.
+	 * 
+	 * @param lDueTime Time (System.nanoTime()) of the next cleanup run.
+	 */
+	private void scheduleCleanup(final long lDueTime) {
+		m_bCleanupScheduled = true;
+		m_execCleanup.schedule(new Runnable() {
+			@Override
+			public void run() {
+				cleanupDueBatches();
+			}
+		}, Math.max(0, lDueTime - System.nanoTime()), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Deletes the objects of all batches, which are due, and schedules the
+	 * next run, if there are batches left.
+	 */
+	private void cleanupDueBatches() {
+		final List<Batch> listDue = new ArrayList<Batch>();
+		final long lNow = System.nanoTime();
+
+		synchronized (this) {
+			while (!m_listBatches.isEmpty() && m_listBatches.peekFirst().m_lDueTime - lNow <= 0) {
+				listDue.add(m_listBatches.removeFirst());
+			}
+
+			if (m_listBatches.isEmpty()) {
+				m_bCleanupScheduled = false;
+			}
+			else {
+				scheduleCleanup(m_listBatches.peekFirst().m_lDueTime);
+			}
+		}
+
+		for (final Batch batch : listDue) {
+			try {
+				for (final Object objForCleanup : batch.m_listObjects) {
+					RDKitDeleteDispatcher.delete(objForCleanup);
+				}
+			}
+			catch (final RuntimeException exc) {
+				LOGGER.log(Level.SEVERE, "Cleaning up quarantined objects failed.", exc);
+			}
+			finally {
+				m_lPendingObjects.addAndGet(-batch.m_listObjects.size());
+				m_lPendingNativeBytes.addAndGet(-batch.m_lNativeBytes);
+				m_lDeletedObjects.addAndGet(batch.m_listObjects.size());
+			}
+		}
+	}
+}
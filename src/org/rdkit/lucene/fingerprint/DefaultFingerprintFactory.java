@@ -32,7 +32,13 @@
  */
 package org.rdkit.lucene.fingerprint;
 
+import java.util.ArrayList;
 import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -41,6 +47,9 @@ import org.RDKit.RDKFuncs;
 import org.RDKit.ROMol;
 import org.RDKit.RWMol;
 import org.rdkit.lucene.bin.RDKit;
+import org.rdkit.lucene.bin.RDKitCleanupScope;
+import org.rdkit.lucene.bin.RDKitObjectPool;
+import org.rdkit.lucene.util.ChemUtils;
 
 /**
  * A fingerprint factory is an object that knows how to produce fingerprints for SMILES.
@@ -50,7 +59,7 @@ import org.rdkit.lucene.bin.RDKit;
  * 
  * @author Manuel Schwarze
  */
-public class DefaultFingerprintFactory implements FingerprintFactory {
+public class DefaultFingerprintFactory implements MoleculeFingerprintFactory {
 
 	//
 	// Constants
@@ -59,6 +68,29 @@ public class DefaultFingerprintFactory implements FingerprintFactory {
 	/** The logger instance. */
 	private static final Logger LOGGER = Logger.getLogger(DefaultFingerprintFactory.class.getName());
 
+	/** Structures used to validate concurrent fingerprint calculation. */
+	private static final String[] VALIDATION_SMILES = new String[] {
+		"c1ccccc1", "CC(=O)Oc1ccccc1C(=O)O", "CN1CCC[C@H]1c1cccnc1", "O=C(O)C[C@@H](N)C(=O)O",
+		"CC(C)Cc1ccc(cc1)[C@@H](C)C(=O)O", "Cn1cnc2c1c(=O)n(C)c(=O)n2C", "C1CCC2(CC1)OCCO2",
+		"[NH3+]CC(=O)[O-]", "Clc1ccc(Cl)c(Cl)c1", "FC(F)(F)c1ccc(Oc2ccccc2)cc1",
+		"CC12CCC3C(CCC4=CC(=O)CCC34C)C1CCC2O", "c1ccc2c(c1)ccc1ccccc12", "OC[C@H]1OC(O)[C@H](O)[C@@H](O)[C@@H]1O",
+		"C=CC(=O)N", "N#Cc1ccc(cc1)S(=O)(=O)N", "CCOP(=S)(OCC)Oc1ccc(cc1)[N+](=O)[O-]",
+		"Brc1ccc2[nH]ccc2c1", "C1=CC=CC=CC=C1", "CC(C)(C)OC(=O)N[C@@H](Cc1ccccc1)C(=O)O", "[Na+].[Cl-]"
+	};
+
+	/** Number of times each thread calculates all validation fingerprints. */
+	private static final int VALIDATION_ROUNDS = 25;
+
+	/** Minimal number of threads calculating validation fingerprints concurrently. */
+	private static final int VALIDATION_MIN_THREADS = 4;
+
+	//
+	// Statics
+	//
+
+	/** Validation results per fingerprint settings (string representation) for this Java VM. */
+	private static final Map<String, Boolean> g_mapValidationResults = new ConcurrentHashMap<String, Boolean>();
+
 	//
 	// Members
 	//
@@ -69,6 +101,9 @@ public class DefaultFingerprintFactory implements FingerprintFactory {
 	/** The settings to be used for calculating query fingerprints with this factory. */
 	private final FingerprintSettings m_settingsQueryFps;
 
+	/** Flag to determine, if fingerprints are calculated without the JVM-wide locks of their types. */
+	private volatile boolean m_bConcurrentCalculation = false;
+
 	//
 	// Constructors
 	//
@@ -130,6 +165,54 @@ public class DefaultFingerprintFactory implements FingerprintFactory {
 		return m_settingsQueryFps;
 	}
 
+	/**
+	 * Enables or disables the calculation of fingerprints without the JVM-wide
+	 * locks of fingerprint types, which are considered not thread-safe (Avalon
+	 * and Pattern, see {@link FingerprintType#isLockRequired()}). Without locks
+	 * the fingerprint throughput scales with the number of calculating threads.
+	 * Before the locks are lifted the concurrent calculation gets validated
+	 * once per Java VM and settings: Fingerprints of a set of reference
+	 * structures get calculated concurrently by several threads and compared
+	 * with the results of the locked calculation. If any result differs or
+	 * fails, the locks are kept. Note: The validation can only detect wrong
+	 * results, not crashes of native code. The Avalon lock was introduced
+	 * because of such crashes under Windows 7, hence concurrent calculation
+	 * should only be enabled for RDKit builds known to be thread-safe.
+	 * 
+	 * @param bConcurrent True to calculate fingerprints without locks, if the
+	 * 		validation succeeds. False to use the locks, which is the default.
+	 * 
+	 * @return True, if fingerprints are calculated concurrently now. False,
+	 * 		if locks are used.
+	 */
+	public synchronized boolean setConcurrentCalculation(final boolean bConcurrent) {
+		if (bConcurrent) {
+			m_bConcurrentCalculation = validateConcurrentCalculation(m_settingsStructureFps) &&
+					(m_settingsQueryFps == m_settingsStructureFps || validateConcurrentCalculation(m_settingsQueryFps));
+			if (!m_bConcurrentCalculation) {
+				LOGGER.warning("Concurrent fingerprint calculation failed the validation. " +
+						"Fingerprints are still calculated using locks.");
+			}
+		}
+		else {
+			m_bConcurrentCalculation = false;
+		}
+
+		return m_bConcurrentCalculation;
+	}
+
+	/**
+	 * Determines, if fingerprints are calculated without the JVM-wide locks of
+	 * their types.
+	 * 
+	 * @return True, if fingerprints are calculated concurrently. False, if locks are used.
+	 * 
+	 * @see #setConcurrentCalculation(boolean)
+	 */
+	public boolean isConcurrentCalculation() {
+		return m_bConcurrentCalculation;
+	}
+
 	/**
 	 * Creates a fingerprint based on the passed in SMILES.
 	 * 
@@ -156,6 +239,41 @@ public class DefaultFingerprintFactory implements FingerprintFactory {
 		return createFingerprint(strSmiles, isCanonSmiles, m_settingsQueryFps);
 	}
 
+	/**
+	 * Creates a fingerprint based on the passed in molecule.
+	 * 
+	 * @param mol Sanitized RDKit molecule. Must not be null.
+	 * 
+	 * @return Fingerprint as BitSet.
+	 */
+	@Override
+	public BitSet createStructureFingerprint(final ROMol mol) {
+		return createFingerprint(mol, m_settingsStructureFps);
+	}
+
+	/**
+	 * Creates a fingerprint based on the passed in molecule.
+	 * 
+	 * @param mol Sanitized RDKit molecule. Must not be null.
+	 * 
+	 * @return Fingerprint as BitSet.
+	 */
+	@Override
+	public BitSet createQueryFingerprint(final ROMol mol) {
+		return createFingerprint(mol, m_settingsQueryFps);
+	}
+
+	/**
+	 * Avalon fingerprints are calculated directly from canonical SMILES, which
+	 * is a lot faster than calculating them from an RDKit molecule.
+	 * 
+	 * @return False for Avalon fingerprints, true otherwise.
+	 */
+	@Override
+	public boolean isMoleculeRequiredForStructureFingerprint() {
+		return m_settingsStructureFps.getRdkitFingerprintType() != FingerprintType.avalon;
+	}
+
 	//
 	// Protected Methods
 	//
@@ -171,24 +289,52 @@ public class DefaultFingerprintFactory implements FingerprintFactory {
 	 */
 	protected BitSet createFingerprint(final String strSmiles, final boolean isCanonSmiles,
 			final FingerprintSettings settings) {
+		return createFingerprint(strSmiles, isCanonSmiles, settings, !m_bConcurrentCalculation);
+	}
+
+	/**
+	 * Creates a fingerprint based on the passed in SMILES.
+	 * 
+	 * @param strSmiles SMILES structure, preferably canonicalized by RDKit before. Must not be null.
+	 * @param isCanonSmiles Set to true, if the SMILES was already canonicalized by RDKit.
+	 * @param settings Fingerprint settings to be used.
+	 * @param bLocked True to calculate under the lock of the fingerprint type, if it has one.
+	 * 
+	 * @return Fingerprint as BitSet.
+	 */
+	protected BitSet createFingerprint(final String strSmiles, final boolean isCanonSmiles,
+			final FingerprintSettings settings, final boolean bLocked) {
 		if (strSmiles == null) {
 			throw new IllegalArgumentException("SMILES must not be null.");
 		}
 
 		BitSet fingerprint = null;
-		final int iWaveId = RDKit.createUniqueCleanupWaveId();
+		final RDKitCleanupScope scope = RDKit.openCleanupScope();
 		final int iLength = settings.getNumBits();
 
 		try {
 			// Exception: AvalonFP can directly be calculated from canonicalized SMILES
 			if (settings.getRdkitFingerprintType() == FingerprintType.avalon && isCanonSmiles) {
-				final ExplicitBitVect rdkitBitVector = RDKit.markForCleanup(new ExplicitBitVect(iLength), iWaveId);
-				synchronized (FingerprintType.AVALON_FP_LOCK) {
-					RDKFuncs.getAvalonFP(strSmiles, true, rdkitBitVector, iLength,
-							settings.getAvalonQueryFlag() == 1, true /** resetVect */,
-							settings.getAvalonBitFlags());
+				// The vector is reset by the calculation and only used for conversion, so it gets reused
+				final ExplicitBitVect rdkitBitVector = RDKitObjectPool.acquireBitVector(iLength);
+				try {
+					if (bLocked) {
+						synchronized (FingerprintType.AVALON_FP_LOCK) {
+							RDKFuncs.getAvalonFP(strSmiles, true, rdkitBitVector, iLength,
+									settings.getAvalonQueryFlag() == 1, true /** resetVect */,
+									settings.getAvalonBitFlags());
+						}
+					}
+					else {
+						RDKFuncs.getAvalonFP(strSmiles, true, rdkitBitVector, iLength,
+								settings.getAvalonQueryFlag() == 1, true /** resetVect */,
+								settings.getAvalonBitFlags());
+					}
+					fingerprint = convert(rdkitBitVector);
+				}
+				finally {
+					RDKitObjectPool.releaseBitVector(rdkitBitVector);
 				}
-				fingerprint = convert(rdkitBitVector);
 			}
 
 			// Normally: ROMol objects are needed to calculate fingerprints
@@ -198,31 +344,179 @@ public class DefaultFingerprintFactory implements FingerprintFactory {
 
 				// Performance trick, if SMILES is already canonicalized
 				if (isCanonSmiles) {
-					mol = RDKit.markForCleanup(RWMol.MolFromSmiles(strSmiles, 0, false /** Do not sanitize */), iWaveId);
+					mol = scope.markForCleanup(RWMol.MolFromSmiles(strSmiles, 0, false /** Do not sanitize */));
 					mol.updatePropertyCache();
 					RDKFuncs.fastFindRings(mol);
 				}
 
 				// Otherwise go the longer way
 				else {
-					mol = RDKit.markForCleanup(RWMol.MolFromSmiles(strSmiles, 0, true /** Sanitize */), iWaveId);
+					mol = scope.markForCleanup(RWMol.MolFromSmiles(strSmiles, 0, true /** Sanitize */));
 				}
 
 				// Calculate fingerprint
-				fingerprint = convert(RDKit.markForCleanup(
-						settings.getRdkitFingerprintType().calculate(mol, settings), iWaveId));
+				fingerprint = convert(scope.markForCleanup(
+						settings.getRdkitFingerprintType().calculate(mol, settings, bLocked)));
 			}
 		}
 		catch (final Exception exc) {
 			LOGGER.log(Level.SEVERE, "Fingerprint calculation failed.", exc);
 		}
 		finally {
-			RDKit.cleanupMarkedObjects(iWaveId);
+			scope.close();
 		}
 
 		return fingerprint;
 	}
 
+	/**
+	 * Creates a fingerprint based on the passed in molecule.
+	 * 
+	 * @param mol Sanitized RDKit molecule. Must not be null. It will not be freed
+	 * 		by this method.
+	 * @param settings Fingerprint settings to be used.
+	 * 
+	 * @return Fingerprint as BitSet.
+	 */
+	protected BitSet createFingerprint(final ROMol mol, final FingerprintSettings settings) {
+		return createFingerprint(mol, settings, !m_bConcurrentCalculation);
+	}
+
+	/**
+	 * Creates a fingerprint based on the passed in molecule.
+	 * 
+	 * @param mol Sanitized RDKit molecule. Must not be null. It will not be freed
+	 * 		by this method.
+	 * @param settings Fingerprint settings to be used.
+	 * @param bLocked True to calculate under the lock of the fingerprint type, if it has one.
+	 * 
+	 * @return Fingerprint as BitSet.
+	 */
+	protected BitSet createFingerprint(final ROMol mol, final FingerprintSettings settings,
+			final boolean bLocked) {
+		if (mol == null) {
+			throw new IllegalArgumentException("Molecule must not be null.");
+		}
+
+		BitSet fingerprint = null;
+		final RDKitCleanupScope scope = RDKit.openCleanupScope();
+
+		try {
+			fingerprint = convert(scope.markForCleanup(
+					settings.getRdkitFingerprintType().calculate(mol, settings, bLocked)));
+		}
+		catch (final Exception exc) {
+			LOGGER.log(Level.SEVERE, "Fingerprint calculation failed.", exc);
+		}
+		finally {
+			scope.close();
+		}
+
+		return fingerprint;
+	}
+
+	/**
+	 * Validates that fingerprints with the specified settings can be calculated
+	 * concurrently without lock. The result is cached for the Java VM.
+	 * 
+	 * @param settings Fingerprint settings to be validated. Must not be null.
+	 * 
+	 * @return True, if concurrent calculation delivered the same results as the
+	 * 		locked calculation or if the fingerprint type does not use a lock
+	 * 		anyway. False otherwise.
+	 * 
+	 * @see #setConcurrentCalculation(boolean)
+	 */
+	protected boolean validateConcurrentCalculation(final FingerprintSettings settings) {
+		if (!settings.getRdkitFingerprintType().isLockRequired()) {
+			return true;
+		}
+
+		final String strKey = settings.toString();
+		Boolean bValid = g_mapValidationResults.get(strKey);
+
+		if (bValid == null) {
+			// Calculate reference fingerprints with locks, from canonical SMILES as well as from molecules
+			final List<String> listSmiles = new ArrayList<String>();
+			final List<Boolean> listCanon = new ArrayList<Boolean>();
+			final List<BitSet> listReferences = new ArrayList<BitSet>();
+			for (final String strSmiles : VALIDATION_SMILES) {
+				final String strCanonSmiles = RDKFuncs.getCanonSmiles(strSmiles, true);
+				for (final boolean bCanon : new boolean[] { true, false }) {
+					final BitSet fpReference = createFingerprint(strCanonSmiles, bCanon, settings, true);
+					if (fpReference != null) {
+						listSmiles.add(strCanonSmiles);
+						listCanon.add(bCanon);
+						listReferences.add(fpReference);
+					}
+				}
+			}
+
+			// Calculate them concurrently without locks and compare
+			final int iThreads = Math.max(VALIDATION_MIN_THREADS, 2 * Runtime.getRuntime().availableProcessors());
+			final CountDownLatch latchStart = new CountDownLatch(1);
+			final AtomicReference<String> refFailure = new AtomicReference<String>();
+			final List<Thread> listThreads = new ArrayList<Thread>(iThreads);
+
+			for (int i = 0; i < iThreads; i++) {
+				final int iOffset = i;
+				final Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							latchStart.await();
+							final int iCount = listSmiles.size();
+							for (int iRound = 0; iRound < VALIDATION_ROUNDS && refFailure.get() == null; iRound++) {
+								for (int j = 0; j < iCount && refFailure.get() == null; j++) {
+									// Threads start at different structures to mix fingerprint inputs
+									final int index = (j + iOffset) % iCount;
+									if (!listReferences.get(index).equals(createFingerprint(
+											listSmiles.get(index), listCanon.get(index), settings, false))) {
+										refFailure.compareAndSet(null, "Different result for " + listSmiles.get(index));
+									}
+								}
+							}
+						}
+						catch (final Throwable exc) {
+							refFailure.compareAndSet(null, exc.toString());
+						}
+					}
+				}, "Fingerprint Validation-" + i);
+				thread.setDaemon(true);
+				thread.start();
+				listThreads.add(thread);
+			}
+
+			latchStart.countDown();
+			try {
+				for (final Thread thread : listThreads) {
+					thread.join();
+				}
+			}
+			catch (final InterruptedException exc) {
+				Thread.currentThread().interrupt();
+				refFailure.compareAndSet(null, "Validation was interrupted.");
+			}
+
+			bValid = (refFailure.get() == null);
+			if (bValid) {
+				LOGGER.info("Concurrent calculation of " + settings.getRdkitFingerprintType() +
+						" fingerprints validated with " + iThreads + " threads.");
+			}
+			else {
+				LOGGER.warning("Concurrent calculation of " + settings.getRdkitFingerprintType() +
+						" fingerprints failed the validation: " + refFailure.get());
+			}
+
+			// Interrupted validations are not cached, they can be repeated later
+			if (!Thread.currentThread().isInterrupted()) {
+				g_mapValidationResults.put(strKey, bValid);
+			}
+		}
+
+		return bValid;
+	}
+
 	//
 	// Private Methods
 	//
@@ -233,20 +527,10 @@ public class DefaultFingerprintFactory implements FingerprintFactory {
 	 * @param rdkitBitVector RDKit (C++ based) bit vector. Can be null.
 	 * 
 	 * @return BitSet or null, if null was passed in.
+	 * 
+	 * @see ChemUtils#toBitSet(ExplicitBitVect)
 	 */
 	private BitSet convert(final ExplicitBitVect rdkitBitVector) {
-		BitSet fingerprint = null;
-
-		if (rdkitBitVector != null) {
-			final int iLength = (int)rdkitBitVector.getNumBits();
-			fingerprint = new BitSet(iLength);
-			for (int i = 0; i < iLength; i++) {
-				if (rdkitBitVector.getBit(i)) {
-					fingerprint.set(i);
-				}
-			}
-		}
-
-		return fingerprint;
+		return ChemUtils.toBitSet(rdkitBitVector);
 	}
 }
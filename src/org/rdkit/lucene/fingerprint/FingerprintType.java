@@ -296,14 +296,30 @@ public enum FingerprintType {
 
 		@Override
 		public ExplicitBitVect calculate(final ROMol mol, final FingerprintSettings settings) {
+			return calculate(mol, settings, true);
+		}
+
+		@Override
+		public ExplicitBitVect calculate(final ROMol mol, final FingerprintSettings settings, final boolean bLocked) {
 			final int bitNumber = settings.getNumBits();
 			final ExplicitBitVect fingerprint = new ExplicitBitVect(bitNumber);
-			synchronized (AVALON_FP_LOCK) {
+			if (bLocked) {
+				synchronized (AVALON_FP_LOCK) {
+					RDKFuncs.getAvalonFP(mol, fingerprint, bitNumber, settings.getAvalonQueryFlag() == 1, false /** reset Vector */,
+							settings.getAvalonBitFlags());
+				}
+			}
+			else {
 				RDKFuncs.getAvalonFP(mol, fingerprint, bitNumber, settings.getAvalonQueryFlag() == 1, false /** reset Vector */,
 						settings.getAvalonBitFlags());
 			}
 			return fingerprint;
 		}
+
+		@Override
+		public boolean isLockRequired() {
+			return true;
+		}
 	},
 
 	layered("Layered") {
@@ -427,9 +443,22 @@ public enum FingerprintType {
 
 		@Override
 		public ExplicitBitVect calculate(final ROMol mol, final FingerprintSettings settings) {
-			synchronized (PATTERN_FP_LOCK) {
-				return RDKFuncs.PatternFingerprintMol(mol, settings.getNumBits());
+			return calculate(mol, settings, true);
+		}
+
+		@Override
+		public ExplicitBitVect calculate(final ROMol mol, final FingerprintSettings settings, final boolean bLocked) {
+			if (bLocked) {
+				synchronized (PATTERN_FP_LOCK) {
+					return RDKFuncs.PatternFingerprintMol(mol, settings.getNumBits());
+				}
 			}
+			return RDKFuncs.PatternFingerprintMol(mol, settings.getNumBits());
+		}
+
+		@Override
+		public boolean isLockRequired() {
+			return true;
 		}
 	};
 
@@ -525,6 +554,38 @@ public enum FingerprintType {
 	 */
 	public abstract ExplicitBitVect calculate(final ROMol mol, final FingerprintSettings settings);
 
+	/**
+	 * Calculates the fingerprint based on the specified settings, optionally
+	 * without acquiring the JVM-wide lock of fingerprint types, which are
+	 * considered not thread-safe (see {@link #isLockRequired()}). Calculating
+	 * without lock must only be done, if it has been validated for the
+	 * used RDKit build, e.g. via
+	 * {@link DefaultFingerprintFactory#setConcurrentCalculation(boolean)}.
+	 * Important: It is the responsibility of the caller of the function to
+	 * free memory for the returned fingerprint when it is not needed anymore.
+	 * 
+	 * @param mol Molecule. Must not be null.
+	 * @param settings Fingerprint settings. Must not be null.
+	 * @param bLocked True to calculate under the lock of the fingerprint type,
+	 * 		if it has one. False to calculate without lock.
+	 * 
+	 * @return Fingerprint or null.
+	 */
+	public ExplicitBitVect calculate(final ROMol mol, final FingerprintSettings settings, final boolean bLocked) {
+		return calculate(mol, settings);
+	}
+
+	/**
+	 * Determines, if the calculation of this fingerprint type is serialized
+	 * by a JVM-wide lock by default, because the underlying RDKit functionality
+	 * has not been thread-safe in the past.
+	 * 
+	 * @return True, if the calculation is locked by default. False otherwise.
+	 */
+	public boolean isLockRequired() {
+		return false;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
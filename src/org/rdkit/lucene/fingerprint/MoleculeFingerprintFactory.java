@@ -0,0 +1,80 @@
+/*
+ * Copyright (C)2014, Novartis Institutes for BioMedical Research Inc.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * 
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ * 
+ * - Neither the name of Novartis Institutes for BioMedical Research Inc.
+ *   nor the names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.rdkit.lucene.fingerprint;
+
+import java.util.BitSet;
+
+import org.RDKit.ROMol;
+
+/**
+ * An optional extension of a fingerprint factory, which calculates fingerprints
+ * also for RDKit molecules that the caller has available already. The chemical
+ * index checks for this interface and falls back to the SMILES based methods
+ * of {@link FingerprintFactory}, if a factory does not implement it.
+ * 
+ * @author Manuel Schwarze
+ */
+public interface MoleculeFingerprintFactory extends FingerprintFactory {
+
+	/**
+	 * Creates a structure fingerprint based on the passed in molecule. This avoids
+	 * parsing the molecule again, if the caller has it already available.
+	 * 
+	 * @param mol Sanitized RDKit molecule. Must not be null. The caller stays
+	 * 		responsible for freeing its resources.
+	 * 
+	 * @return Fingerprint as BitSet.
+	 */
+	public BitSet createStructureFingerprint(final ROMol mol);
+
+	/**
+	 * Creates a query fingerprint based on the passed in molecule. This avoids
+	 * parsing the molecule again, if the caller has it already available.
+	 * 
+	 * @param mol Sanitized RDKit molecule. Must not be null. The caller stays
+	 * 		responsible for freeing its resources.
+	 * 
+	 * @return Fingerprint as BitSet.
+	 */
+	public BitSet createQueryFingerprint(final ROMol mol);
+
+	/**
+	 * Determines, if the structure fingerprint needs an RDKit molecule or if it
+	 * can be calculated more cheaply directly from a canonical SMILES.
+	 * 
+	 * @return True, if {@link #createStructureFingerprint(ROMol)} should be preferred.
+	 * 		False, if {@link #createStructureFingerprint(String, boolean)} with a
+	 * 		canonical SMILES is cheaper.
+	 */
+	public boolean isMoleculeRequiredForStructureFingerprint();
+}
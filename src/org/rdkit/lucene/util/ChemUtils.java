@@ -32,8 +32,11 @@
  */
 package org.rdkit.lucene.util;
 
+import java.util.BitSet;
 import java.util.logging.Logger;
 
+import org.RDKit.ExplicitBitVect;
+import org.RDKit.Int_Vect;
 import org.RDKit.ROMol;
 import org.RDKit.RWMol;
 import org.RDKit.UInt_Vect;
@@ -155,6 +158,63 @@ public final class ChemUtils {
 		return reverseList;
 	}
 
+	/**
+	 * Converts an RDKit bit vector into a Java BitSet. Only the set bits are
+	 * transferred from the native side in one call, which is a lot cheaper than
+	 * querying every single bit position, especially for sparse fingerprints.
+	 * 
+	 * @param rdkitBitVector RDKit (C++ based) bit vector. Can be null to return null.
+	 * 
+	 * @return BitSet or null, if null was passed in as bit vector.
+	 */
+	public static BitSet toBitSet(final ExplicitBitVect rdkitBitVector) {
+		BitSet fingerprintRet = null;
+
+		if (rdkitBitVector != null) {
+			fingerprintRet = new BitSet((int)rdkitBitVector.getNumBits());
+
+			final Int_Vect onBits = rdkitBitVector.getOnBits();
+			try {
+				final int iCount = (int)onBits.size();
+				for (int i = 0; i < iCount; i++) {
+					fingerprintRet.set(onBits.get(i));
+				}
+			}
+			finally {
+				onBits.delete();
+			}
+		}
+
+		return fingerprintRet;
+	}
+
+	/**
+	 * Calculates a fixed-width 64 bit hash of a canonical SMILES, which
+	 * serves as compact key for exact structure lookups. Different structures
+	 * may share a hash, hence matches need to be confirmed with the SMILES.
+	 * The hash is stable across Java versions and platforms.
+	 * 
+	 * @param canonSmiles Canonical SMILES. Must not be null.
+	 * 
+	 * @return Hash as hexadecimal string with 16 characters.
+	 */
+	public static String getStructureHash(final String canonSmiles) {
+		// FNV-1a over the characters followed by the 64 bit finalizer of MurmurHash3
+		long lHash = 0xcbf29ce484222325L;
+		for (int i = 0; i < canonSmiles.length(); i++) {
+			lHash ^= canonSmiles.charAt(i);
+			lHash *= 0x100000001b3L;
+		}
+		lHash ^= (lHash >>> 33);
+		lHash *= 0xff51afd7ed558ccdL;
+		lHash ^= (lHash >>> 33);
+		lHash *= 0xc4ceb9fe1a85ec53L;
+		lHash ^= (lHash >>> 33);
+
+		final String strHex = Long.toHexString(lHash);
+		return "0000000000000000".substring(strHex.length()) + strHex;
+	}
+
 	//
 	// Constructor
 	//
@@ -32,6 +32,9 @@
  */
 package org.rdkit.lucene.util;
 
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * This utility class contains convenience methods to detect and use
  * functionality of operating systems.
@@ -77,6 +80,27 @@ public final class SystemUtils {
 		return (os.indexOf("nix") >= 0 || os.indexOf("nux") >= 0);
 	}
 
+	/**
+	 * Creates a thread factory for daemon threads, which do not prevent
+	 * the Java VM from exiting. Threads get numbered.
+	 * 
+	 * @param strName Name prefix of the threads. Must not be null.
+	 * 
+	 * @return Thread factory.
+	 */
+	public static ThreadFactory createDaemonThreadFactory(final String strName) {
+		return new ThreadFactory() {
+			private final AtomicInteger m_iThreadNumber = new AtomicInteger(1);
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, strName + "-" + m_iThreadNumber.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
 	//
 	// Constructor
 	//